@@ -0,0 +1,36 @@
+package org.transparent.diamond.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.transparent.diamond.compiletest.AnnotationProcessorClassLoader;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks defining classes through a fresh {@link AnnotationProcessorClassLoader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ClassLoaderBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int classCount;
+
+    private Map<String, byte[]> classes;
+
+    @Setup
+    public void setUp() {
+        classes = Fixtures.classes("Loaded", classCount);
+    }
+
+    @Benchmark
+    public void defineAll(Blackhole blackhole) throws ClassNotFoundException {
+        AnnotationProcessorClassLoader classLoader = new AnnotationProcessorClassLoader(classes);
+        for (String name : classes.keySet()) {
+            blackhole.consume(classLoader.loadClass(name));
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.transparent.diamond.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.transparent.diamond.compiletest.CompileTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link CompileTestUtils#compileWithAnnotationProcessor(String, String, javax.annotation.processing.Processor)}
+ * on a cold instance, which has to index the classpath first, on a warm one,
+ * with and without an annotation processor, and on one with pooled javac contexts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompileTestUtilsBenchmark {
+
+    @Param({"0", "8", "32"})
+    public int classpathJars;
+
+    @Param({"1", "50"})
+    public int members;
+
+    private Path workDir;
+    private File sourceRoot;
+    private List<File> classpath;
+    private String source;
+    private CompileTestUtils warm;
+    private CompileTestUtils pooled;
+
+    @Setup
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("diamond-bench");
+        sourceRoot = Files.createDirectories(workDir.resolve("src")).toFile();
+        classpath = new ArrayList<>();
+        for (int i = 0; i < classpathJars; i++) {
+            classpath.add(Fixtures.jar(workDir, "lib" + i, 200));
+        }
+        source = Fixtures.exampleSource(members);
+        warm = new CompileTestUtils(sourceRoot, classpath);
+        warm.compileWithAnnotationProcessor("Example", source, null);
+        pooled = new CompileTestUtils(sourceRoot, classpath).pooledContexts(1);
+        pooled.compileWithAnnotationProcessor("Example", source, null);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        warm.close();
+        pooled.close();
+        Fixtures.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public Optional<Map<String, byte[]>> coldCompile() throws IOException {
+        try (CompileTestUtils utils = new CompileTestUtils(sourceRoot, classpath)) {
+            return utils.compileWithAnnotationProcessor("Example", source, null);
+        }
+    }
+
+    @Benchmark
+    public Optional<Map<String, byte[]>> warmCompile() throws IOException {
+        return warm.compileWithAnnotationProcessor("Example", source, null);
+    }
+
+    @Benchmark
+    public Optional<Map<String, byte[]>> pooledCompile() throws IOException {
+        return pooled.compileWithAnnotationProcessor("Example", source, null);
+    }
+
+    @Benchmark
+    public Optional<Map<String, byte[]>> warmCompileWithProcessor() throws IOException {
+        return warm.compileWithAnnotationProcessor("Example", source, new NoopProcessor());
+    }
+
+}
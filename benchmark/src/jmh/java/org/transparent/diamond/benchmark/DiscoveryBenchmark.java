@@ -0,0 +1,47 @@
+package org.transparent.diamond.benchmark;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.openjdk.jmh.annotations.*;
+import org.transparent.diamond.compiletest.CompileTestOptions;
+import org.transparent.diamond.compiletest.CompileTestRunner;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks test discovery in {@link CompileTestRunner#runProcessorTestsIn(File, java.util.Collection, CompileTestOptions)}:
+ * compiling the source root, loading its classes and building the tests, without running them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DiscoveryBenchmark {
+
+    @Param({"10", "50", "200"})
+    public int sourceRootSize;
+
+    private Path sourceRoot;
+
+    @Setup
+    public void setUp() throws Exception {
+        sourceRoot = Files.createTempDirectory("diamond-bench");
+        Fixtures.writeProcessorTests(sourceRoot, sourceRootSize);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Fixtures.deleteRecursively(sourceRoot);
+    }
+
+    @Benchmark
+    public long discover() throws Exception {
+        CompileTestOptions options = new CompileTestOptions().useProcessorTestIndex(false);
+        try (Stream<DynamicTest> tests = CompileTestRunner.runProcessorTestsIn(sourceRoot.toFile(), null, options)) {
+            return tests.count();
+        }
+    }
+
+}
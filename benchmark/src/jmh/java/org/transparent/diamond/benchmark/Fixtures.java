@@ -0,0 +1,129 @@
+package org.transparent.diamond.benchmark;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * Generates the synthetic sources, classes and JARs the benchmarks run against.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return Source of an <code>Example</code> class with the given number of methods
+     */
+    static String exampleSource(int members) {
+        StringBuilder source = new StringBuilder("public class Example {\n");
+        for (int i = 0; i < members; i++) {
+            source.append("    public int example").append(i).append("(int value) {\n")
+                    .append("        int result = value * ").append(i).append(";\n")
+                    .append("        return result + ").append(i).append(";\n")
+                    .append("    }\n");
+        }
+        return source.append("}").toString();
+    }
+
+    /**
+     * Writes a source root with the given number of processor tests,
+     * each depending on a shared helper class.
+     */
+    static void writeProcessorTests(Path sourceRoot, int count) throws IOException {
+        Path packageDir = Files.createDirectories(sourceRoot.resolve("bench"));
+        write(packageDir.resolve("Helper.java"), "package bench;\n"
+                + "public class Helper {\n"
+                + "    public static boolean claim() { return false; }\n"
+                + "}\n");
+        for (int i = 0; i < count; i++) {
+            write(packageDir.resolve("Processor" + i + ".java"), "package bench;\n"
+                    + "import java.util.Set;\n"
+                    + "import javax.annotation.processing.*;\n"
+                    + "import javax.lang.model.SourceVersion;\n"
+                    + "import javax.lang.model.element.TypeElement;\n"
+                    + "@org.transparent.diamond.compiletest.ProcessorTest(\n"
+                    + "        target = java.lang.annotation.ElementType.TYPE,\n"
+                    + "        expected = \"public class Example {}\")\n"
+                    + "@SupportedAnnotationTypes(\"*\")\n"
+                    + "public class Processor" + i + " extends AbstractProcessor {\n"
+                    + "    @Override\n"
+                    + "    public SourceVersion getSupportedSourceVersion() { return SourceVersion.latestSupported(); }\n"
+                    + "    @Override\n"
+                    + "    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {\n"
+                    + "        return Helper.claim();\n"
+                    + "    }\n"
+                    + "}\n");
+        }
+    }
+
+    /**
+     * Generates empty classes in the package <code>bench.generated</code>.
+     *
+     * @param prefix Prefix for the simple names of the classes
+     * @param count  Number of classes
+     * @return The bytecode of the classes, keyed by binary name
+     */
+    static Map<String, byte[]> classes(String prefix, int count) {
+        HashMap<String, byte[]> classes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String internalName = "bench/generated/" + prefix + i;
+            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", null);
+            MethodVisitor constructor = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+            constructor.visitCode();
+            constructor.visitVarInsn(Opcodes.ALOAD, 0);
+            constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            constructor.visitInsn(Opcodes.RETURN);
+            constructor.visitMaxs(0, 0);
+            constructor.visitEnd();
+            writer.visitEnd();
+            classes.put(internalName.replace('/', '.'), writer.toByteArray());
+        }
+        return classes;
+    }
+
+    /**
+     * Writes a JAR of generated classes.
+     */
+    static File jar(Path directory, String name, int classCount) throws IOException {
+        File jar = directory.resolve(name + ".jar").toFile();
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            for (Map.Entry<String, byte[]> entry : classes(name + "_", classCount).entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey().replace('.', '/') + ".class"));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        if (path == null || !Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+}
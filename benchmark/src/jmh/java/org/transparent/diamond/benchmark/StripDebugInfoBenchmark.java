@@ -0,0 +1,41 @@
+package org.transparent.diamond.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.transparent.diamond.compiletest.CompileTestRunner;
+import org.transparent.diamond.compiletest.CompileTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link CompileTestRunner#stripDebugInfo(byte[])} on classes of growing size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StripDebugInfoBenchmark {
+
+    @Param({"1", "50", "500"})
+    public int members;
+
+    private byte[] bytecode;
+
+    @Setup
+    public void setUp() throws Exception {
+        Path sourceRoot = Files.createTempDirectory("diamond-bench");
+        try (CompileTestUtils utils = new CompileTestUtils(sourceRoot.toFile(), null)) {
+            bytecode = utils.compileWithAnnotationProcessor("Example", Fixtures.exampleSource(members), null)
+                    .orElseThrow(IllegalStateException::new)
+                    .get("Example");
+        } finally {
+            Fixtures.deleteRecursively(sourceRoot);
+        }
+    }
+
+    @Benchmark
+    public byte[] strip() {
+        return CompileTestRunner.stripDebugInfo(bytecode);
+    }
+
+}
@@ -6,6 +6,9 @@ import java.util.Map;
 
 /**
  * A classloader that allows specifying the bytecode of some classes.
+ * <p>
+ * Its own classes are defined by itself, even if its parent could also define them, so that a
+ * thin child can hold the classes of one test on top of a parent that holds the shared ones.
  */
 public class AnnotationProcessorClassLoader extends SecureClassLoader {
 
@@ -22,6 +25,15 @@ public class AnnotationProcessorClassLoader extends SecureClassLoader {
         this.classes = Collections.unmodifiableMap(classes);
     }
 
+    /**
+     * Builds an AnnotationProcessorClassLoader from a map of classes,
+     * delegating every other class to the given parent.
+     */
+    public AnnotationProcessorClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+        super(parent);
+        this.classes = Collections.unmodifiableMap(classes);
+    }
+
     @Override
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
         synchronized (getClassLoadingLock(name)) {
@@ -0,0 +1,177 @@
+package org.transparent.diamond.compiletest;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Collects the results of {@link ProcessorBenchmark}s and writes them in the JSON format
+ * of JMH's <code>-rf json</code>, so that existing JMH tooling can compare them across commits.
+ * Every measured compilation is one single-shot operation; the primary metric is the time spent
+ * in the processor, and the secondary metrics are the rest of the compilation and its total.
+ */
+final class BenchmarkReport {
+
+    /**
+     * The z-score of the 99.9% confidence interval that JMH reports. It stands in for
+     * the Student's t quantile JMH uses, which it approaches as iterations grow.
+     */
+    private static final double Z_999 = 3.2905;
+
+    private final List<Result> results = new ArrayList<>();
+
+    synchronized void add(Result result) {
+        results.add(result);
+    }
+
+    /**
+     * Writes every result added so far to a file, replacing it.
+     *
+     * @throws IOException If the file cannot be written
+     */
+    synchronized void write(File file) throws IOException {
+        StringBuilder out = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            results.get(i).appendJson(out);
+            out.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        out.append("]\n");
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        Files.write(file.toPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The value as a JSON string
+     */
+    static String string(String value) {
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    /**
+     * @return The value as a JSON number, or as the string <code>"NaN"</code> like JMH writes it
+     */
+    static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    /**
+     * The measurements of one benchmark, in milliseconds per compilation.
+     */
+    static final class Result {
+
+        private final String benchmark;
+        private final int warmupIterations;
+        private final double[] processor;
+        private final double[] javac;
+        private final double[] total;
+
+        Result(String benchmark, int warmupIterations, double[] processor, double[] javac, double[] total) {
+            this.benchmark = benchmark;
+            this.warmupIterations = warmupIterations;
+            this.processor = processor;
+            this.javac = javac;
+            this.total = total;
+        }
+
+        /**
+         * @return A one line summary, such as <code>processor 1.2 &plusmn; 0.1 ms/op, javac 20.3 &plusmn; 1.5 ms/op</code>
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "processor %.3f \u00b1 %.3f ms/op, javac %.3f \u00b1 %.3f ms/op",
+                    mean(processor), error(processor), mean(javac), error(javac));
+        }
+
+        private void appendJson(StringBuilder out) {
+            out.append("    {\n");
+            field(out, "jmhVersion", "diamond-compiletest");
+            field(out, "benchmark", benchmark);
+            field(out, "mode", "ss");
+            out.append("        \"threads\" : 1,\n");
+            out.append("        \"forks\" : 1,\n");
+            field(out, "jvm", System.getProperty("java.home"));
+            out.append("        \"jvmArgs\" : [");
+            List<String> jvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
+            for (int i = 0; i < jvmArgs.size(); i++) {
+                out.append(i == 0 ? "" : ", ").append(string(jvmArgs.get(i)));
+            }
+            out.append("],\n");
+            field(out, "jdkVersion", System.getProperty("java.version"));
+            field(out, "vmName", System.getProperty("java.vm.name"));
+            field(out, "vmVersion", System.getProperty("java.vm.version"));
+            out.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+            field(out, "warmupTime", "single-shot");
+            out.append("        \"warmupBatchSize\" : 1,\n");
+            out.append("        \"measurementIterations\" : ").append(processor.length).append(",\n");
+            field(out, "measurementTime", "single-shot");
+            out.append("        \"measurementBatchSize\" : 1,\n");
+            out.append("        \"primaryMetric\" : ");
+            metric(out, processor, "        ");
+            out.append(",\n        \"secondaryMetrics\" : {\n");
+            out.append("            \"javac\" : ");
+            metric(out, javac, "            ");
+            out.append(",\n            \"total\" : ");
+            metric(out, total, "            ");
+            out.append("\n        }\n    }");
+        }
+
+        private static void metric(StringBuilder out, double[] values, String indent) {
+            double mean = mean(values);
+            double error = error(values);
+            out.append("{\n");
+            out.append(indent).append("    \"score\" : ").append(number(mean)).append(",\n");
+            out.append(indent).append("    \"scoreError\" : ").append(number(error)).append(",\n");
+            out.append(indent).append("    \"scoreConfidence\" : [").append(number(mean - error))
+                    .append(", ").append(number(mean + error)).append("],\n");
+            out.append(indent).append("    \"scoreUnit\" : \"ms/op\",\n");
+            out.append(indent).append("    \"rawData\" : [[");
+            for (int i = 0; i < values.length; i++) {
+                out.append(i == 0 ? "" : ", ").append(number(values[i]));
+            }
+            out.append("]]\n").append(indent).append("}");
+        }
+
+        private static void field(StringBuilder out, String name, String value) {
+            out.append("        ").append(string(name)).append(" : ").append(string(value)).append(",\n");
+        }
+
+        private static double mean(double[] values) {
+            double sum = 0;
+            for (double value : values) {
+                sum += value;
+            }
+            return sum / values.length;
+        }
+
+        private static double error(double[] values) {
+            if (values.length < 2) {
+                return Double.NaN;
+            }
+            double mean = mean(values);
+            double squares = 0;
+            for (double value : values) {
+                squares += (value - mean) * (value - mean);
+            }
+            return Z_999 * Math.sqrt(squares / (values.length - 1)) / Math.sqrt(values.length);
+        }
+
+    }
+
+}
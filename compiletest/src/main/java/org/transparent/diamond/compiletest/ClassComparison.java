@@ -0,0 +1,352 @@
+package org.transparent.diamond.compiletest;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * Compares the whole set of classes of a compilation, such as a class with its inner, anonymous
+ * and generated classes, against another. Classes are compared in canonical form, that is, without
+ * debug information and with a constant pool rebuilt in the order ASM visits the class, so only
+ * what the compiler generated counts.
+ * <p>
+ * Equal sets are recognized by comparing their bytes alone. Only if some class differs are the classes parsed
+ * and diffed member by member and instruction by instruction, and the diff is cut off after
+ * {@value #MAX_DIFF_LINES} lines, however large the classes are.
+ */
+final class ClassComparison {
+
+    static final int MAX_DIFF_LINES = 40;
+
+    /**
+     * Instructions shown around the first one that differs in a method.
+     */
+    private static final int CONTEXT_INSTRUCTIONS = 3;
+
+    private static final String[] OPCODES = (
+            "NOP ACONST_NULL ICONST_M1 ICONST_0 ICONST_1 ICONST_2 ICONST_3 ICONST_4 ICONST_5 LCONST_0 LCONST_1 "
+                    + "FCONST_0 FCONST_1 FCONST_2 DCONST_0 DCONST_1 BIPUSH SIPUSH LDC LDC_W LDC2_W ILOAD LLOAD FLOAD DLOAD ALOAD "
+                    + "ILOAD_0 ILOAD_1 ILOAD_2 ILOAD_3 LLOAD_0 LLOAD_1 LLOAD_2 LLOAD_3 FLOAD_0 FLOAD_1 FLOAD_2 FLOAD_3 "
+                    + "DLOAD_0 DLOAD_1 DLOAD_2 DLOAD_3 ALOAD_0 ALOAD_1 ALOAD_2 ALOAD_3 IALOAD LALOAD FALOAD DALOAD AALOAD "
+                    + "BALOAD CALOAD SALOAD ISTORE LSTORE FSTORE DSTORE ASTORE ISTORE_0 ISTORE_1 ISTORE_2 ISTORE_3 "
+                    + "LSTORE_0 LSTORE_1 LSTORE_2 LSTORE_3 FSTORE_0 FSTORE_1 FSTORE_2 FSTORE_3 DSTORE_0 DSTORE_1 DSTORE_2 "
+                    + "DSTORE_3 ASTORE_0 ASTORE_1 ASTORE_2 ASTORE_3 IASTORE LASTORE FASTORE DASTORE AASTORE BASTORE CASTORE "
+                    + "SASTORE POP POP2 DUP DUP_X1 DUP_X2 DUP2 DUP2_X1 DUP2_X2 SWAP IADD LADD FADD DADD ISUB LSUB FSUB DSUB "
+                    + "IMUL LMUL FMUL DMUL IDIV LDIV FDIV DDIV IREM LREM FREM DREM INEG LNEG FNEG DNEG ISHL LSHL ISHR LSHR "
+                    + "IUSHR LUSHR IAND LAND IOR LOR IXOR LXOR IINC I2L I2F I2D L2I L2F L2D F2I F2L F2D D2I D2L D2F I2B I2C "
+                    + "I2S LCMP FCMPL FCMPG DCMPL DCMPG IFEQ IFNE IFLT IFGE IFGT IFLE IF_ICMPEQ IF_ICMPNE IF_ICMPLT IF_ICMPGE "
+                    + "IF_ICMPGT IF_ICMPLE IF_ACMPEQ IF_ACMPNE GOTO JSR RET TABLESWITCH LOOKUPSWITCH IRETURN LRETURN FRETURN "
+                    + "DRETURN ARETURN RETURN GETSTATIC PUTSTATIC GETFIELD PUTFIELD INVOKEVIRTUAL INVOKESPECIAL INVOKESTATIC "
+                    + "INVOKEINTERFACE INVOKEDYNAMIC NEW NEWARRAY ANEWARRAY ARRAYLENGTH ATHROW CHECKCAST INSTANCEOF "
+                    + "MONITORENTER MONITOREXIT WIDE MULTIANEWARRAY IFNULL IFNONNULL GOTO_W JSR_W"
+    ).split(" ");
+
+    private ClassComparison() {
+    }
+
+    /**
+     * Puts every class of a compilation in canonical form, leaving out anything that is not a class file,
+     * such as resources written by a processor.
+     *
+     * @param outputs Outputs of the compilation, keyed by class name
+     * @return The canonical classes, keyed by class name
+     */
+    static Map<String, byte[]> canonicalize(Map<String, byte[]> outputs) {
+        TreeMap<String, byte[]> classes = new TreeMap<>();
+        for (Map.Entry<String, byte[]> entry : outputs.entrySet()) {
+            if (isClassFile(entry.getValue())) {
+                classes.put(entry.getKey(), CompileTestRunner.stripDebugInfo(entry.getValue()));
+            }
+        }
+        return classes;
+    }
+
+    static boolean isClassFile(byte[] bytes) {
+        return bytes.length >= 4
+                && (bytes[0] & 0xFF) == 0xCA && (bytes[1] & 0xFF) == 0xFE
+                && (bytes[2] & 0xFF) == 0xBA && (bytes[3] & 0xFF) == 0xBE;
+    }
+
+    /**
+     * @param expected Canonical expected classes, keyed by class name
+     * @param actual   Canonical generated classes, keyed by class name
+     * @return Whether both sets hold the same classes
+     */
+    static boolean same(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+        if (!expected.keySet().equals(actual.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), actual.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Describes how two sets of canonical classes differ: which classes are missing or extra,
+     * and, for the classes in both, which members are missing, extra or different, down to the first
+     * instruction that differs in each method.
+     *
+     * @param expected Canonical expected classes, keyed by class name
+     * @param actual   Canonical generated classes, keyed by class name
+     * @return The differences, one per line, or an empty string if there are none
+     */
+    static String diff(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+        Diff diff = new Diff();
+        TreeSet<String> names = new TreeSet<>(expected.keySet());
+        names.addAll(actual.keySet());
+        for (String name : names) {
+            byte[] expectedBytecode = expected.get(name);
+            byte[] actualBytecode = actual.get(name);
+            if (actualBytecode == null) {
+                diff.add("missing class " + name);
+            } else if (expectedBytecode == null) {
+                diff.add("unexpected class " + name);
+            } else if (!Arrays.equals(expectedBytecode, actualBytecode)) {
+                int before = diff.size();
+                diffClass(diff, name, read(expectedBytecode), read(actualBytecode));
+                if (diff.size() == before) {
+                    diff.add("class " + name + ": differs in its constant pool or attributes");
+                }
+            }
+        }
+        return diff.toString();
+    }
+
+    private static ClassNode read(byte[] bytecode) {
+        ClassNode node = new ClassNode();
+        new ClassReader(bytecode).accept(node, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return node;
+    }
+
+    private static void diffClass(Diff diff, String name, ClassNode expected, ClassNode actual) {
+        String prefix = "class " + name + ": ";
+        diff.compare(prefix + "version", expected.version, actual.version);
+        diff.compare(prefix + "access", expected.access, actual.access);
+        diff.compare(prefix + "signature", expected.signature, actual.signature);
+        diff.compare(prefix + "superclass", expected.superName, actual.superName);
+        diff.compare(prefix + "interfaces", expected.interfaces, actual.interfaces);
+        diff.compare(prefix + "annotations", annotations(expected.visibleAnnotations, expected.invisibleAnnotations),
+                annotations(actual.visibleAnnotations, actual.invisibleAnnotations));
+        diff.compare(prefix + "inner classes", innerClasses(expected), innerClasses(actual));
+
+        Map<String, FieldNode> expectedFields = new LinkedHashMap<>();
+        expected.fields.forEach(f -> expectedFields.put(f.name + " " + f.desc, f));
+        Map<String, FieldNode> actualFields = new LinkedHashMap<>();
+        actual.fields.forEach(f -> actualFields.put(f.name + " " + f.desc, f));
+        for (String field : union(expectedFields.keySet(), actualFields.keySet())) {
+            FieldNode e = expectedFields.get(field);
+            FieldNode a = actualFields.get(field);
+            String fieldPrefix = prefix + "field " + field;
+            if (a == null) {
+                diff.add(prefix + "missing field " + field);
+            } else if (e == null) {
+                diff.add(prefix + "unexpected field " + field);
+            } else {
+                diff.compare(fieldPrefix + " access", e.access, a.access);
+                diff.compare(fieldPrefix + " signature", e.signature, a.signature);
+                diff.compare(fieldPrefix + " constant value", e.value, a.value);
+                diff.compare(fieldPrefix + " annotations", annotations(e.visibleAnnotations, e.invisibleAnnotations),
+                        annotations(a.visibleAnnotations, a.invisibleAnnotations));
+            }
+        }
+        if (expectedFields.keySet().equals(actualFields.keySet())) {
+            diff.compare(prefix + "field order", new ArrayList<>(expectedFields.keySet()), new ArrayList<>(actualFields.keySet()));
+        }
+
+        Map<String, MethodNode> expectedMethods = new LinkedHashMap<>();
+        expected.methods.forEach(m -> expectedMethods.put(m.name + m.desc, m));
+        Map<String, MethodNode> actualMethods = new LinkedHashMap<>();
+        actual.methods.forEach(m -> actualMethods.put(m.name + m.desc, m));
+        for (String method : union(expectedMethods.keySet(), actualMethods.keySet())) {
+            MethodNode e = expectedMethods.get(method);
+            MethodNode a = actualMethods.get(method);
+            String methodPrefix = prefix + "method " + method;
+            if (a == null) {
+                diff.add(prefix + "missing method " + method);
+            } else if (e == null) {
+                diff.add(prefix + "unexpected method " + method);
+            } else {
+                diff.compare(methodPrefix + " access", e.access, a.access);
+                diff.compare(methodPrefix + " signature", e.signature, a.signature);
+                diff.compare(methodPrefix + " exceptions", e.exceptions, a.exceptions);
+                diff.compare(methodPrefix + " annotations", annotations(e.visibleAnnotations, e.invisibleAnnotations),
+                        annotations(a.visibleAnnotations, a.invisibleAnnotations));
+                diffInstructions(diff, methodPrefix, instructions(e), instructions(a));
+            }
+        }
+        if (expectedMethods.keySet().equals(actualMethods.keySet())) {
+            diff.compare(prefix + "method order", new ArrayList<>(expectedMethods.keySet()), new ArrayList<>(actualMethods.keySet()));
+        }
+    }
+
+    private static void diffInstructions(Diff diff, String prefix, List<String> expected, List<String> actual) {
+        int first = 0;
+        while (first < expected.size() && first < actual.size() && expected.get(first).equals(actual.get(first))) {
+            first++;
+        }
+        if (first == expected.size() && first == actual.size()) {
+            return;
+        }
+        diff.add(prefix + ": instructions differ from #" + first + " on (" + expected.size() + " expected, "
+                + actual.size() + " generated)");
+        int from = Math.max(0, first - CONTEXT_INSTRUCTIONS);
+        diff.add("    expected:  " + window(expected, from, first + CONTEXT_INSTRUCTIONS));
+        diff.add("    generated: " + window(actual, from, first + CONTEXT_INSTRUCTIONS));
+    }
+
+    private static String window(List<String> instructions, int from, int to) {
+        StringJoiner window = new StringJoiner("; ", from > 0 ? "... " : "", to < instructions.size() ? " ..." : "");
+        for (int i = from; i < Math.min(to, instructions.size()); i++) {
+            window.add(instructions.get(i));
+        }
+        return window.toString();
+    }
+
+    /**
+     * Renders the instructions of a method, numbering labels in the order they appear,
+     * along with its try-catch blocks.
+     */
+    private static List<String> instructions(MethodNode method) {
+        Map<LabelNode, String> labels = new HashMap<>();
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn instanceof LabelNode) {
+                labels.put((LabelNode) insn, "L" + labels.size());
+            }
+        }
+        ArrayList<String> instructions = new ArrayList<>();
+        for (AbstractInsnNode insn : method.instructions) {
+            String rendered = instruction(insn, labels);
+            if (rendered != null) {
+                instructions.add(rendered);
+            }
+        }
+        for (TryCatchBlockNode block : method.tryCatchBlocks) {
+            instructions.add("TRYCATCH " + labels.get(block.start) + " " + labels.get(block.end) + " "
+                    + labels.get(block.handler) + " " + block.type);
+        }
+        instructions.add("MAXS " + method.maxStack + " " + method.maxLocals);
+        return instructions;
+    }
+
+    private static String instruction(AbstractInsnNode insn, Map<LabelNode, String> labels) {
+        if (insn instanceof LabelNode) {
+            return labels.get(insn) + ":";
+        }
+        if (insn.getOpcode() < 0) {
+            // Line numbers and frames are not compared.
+            return null;
+        }
+        String opcode = OPCODES[insn.getOpcode()];
+        if (insn instanceof IntInsnNode) {
+            return opcode + " " + ((IntInsnNode) insn).operand;
+        } else if (insn instanceof VarInsnNode) {
+            return opcode + " " + ((VarInsnNode) insn).var;
+        } else if (insn instanceof IincInsnNode) {
+            return opcode + " " + ((IincInsnNode) insn).var + " " + ((IincInsnNode) insn).incr;
+        } else if (insn instanceof TypeInsnNode) {
+            return opcode + " " + ((TypeInsnNode) insn).desc;
+        } else if (insn instanceof FieldInsnNode) {
+            FieldInsnNode field = (FieldInsnNode) insn;
+            return opcode + " " + field.owner + "." + field.name + " " + field.desc;
+        } else if (insn instanceof MethodInsnNode) {
+            MethodInsnNode method = (MethodInsnNode) insn;
+            return opcode + " " + method.owner + "." + method.name + method.desc;
+        } else if (insn instanceof InvokeDynamicInsnNode) {
+            InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode) insn;
+            return opcode + " " + indy.name + indy.desc + " " + indy.bsm + " " + Arrays.toString(indy.bsmArgs);
+        } else if (insn instanceof JumpInsnNode) {
+            return opcode + " " + labels.get(((JumpInsnNode) insn).label);
+        } else if (insn instanceof LdcInsnNode) {
+            Object constant = ((LdcInsnNode) insn).cst;
+            return opcode + " " + (constant instanceof String ? "\"" + constant + "\"" : constant);
+        } else if (insn instanceof TableSwitchInsnNode) {
+            TableSwitchInsnNode table = (TableSwitchInsnNode) insn;
+            return opcode + " " + table.min + ".." + table.max + " " + labelNames(table.labels, labels)
+                    + " default " + labels.get(table.dflt);
+        } else if (insn instanceof LookupSwitchInsnNode) {
+            LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) insn;
+            return opcode + " " + lookup.keys + " " + labelNames(lookup.labels, labels) + " default " + labels.get(lookup.dflt);
+        } else if (insn instanceof MultiANewArrayInsnNode) {
+            return opcode + " " + ((MultiANewArrayInsnNode) insn).desc + " " + ((MultiANewArrayInsnNode) insn).dims;
+        }
+        return opcode;
+    }
+
+    private static List<String> labelNames(List<LabelNode> nodes, Map<LabelNode, String> labels) {
+        ArrayList<String> names = new ArrayList<>(nodes.size());
+        for (LabelNode node : nodes) {
+            names.add(labels.get(node));
+        }
+        return names;
+    }
+
+    private static List<String> annotations(List<AnnotationNode> visible, List<AnnotationNode> invisible) {
+        ArrayList<String> annotations = new ArrayList<>();
+        for (List<AnnotationNode> nodes : Arrays.asList(visible, invisible)) {
+            if (nodes != null) {
+                for (AnnotationNode node : nodes) {
+                    annotations.add(Type.getType(node.desc).getClassName() + (node.values == null ? "" : String.valueOf(node.values)));
+                }
+            }
+        }
+        return annotations;
+    }
+
+    private static List<String> innerClasses(ClassNode node) {
+        ArrayList<String> innerClasses = new ArrayList<>();
+        for (InnerClassNode inner : node.innerClasses) {
+            innerClasses.add(inner.name + " (access " + inner.access + ")");
+        }
+        return innerClasses;
+    }
+
+    private static Set<String> union(Set<String> first, Set<String> second) {
+        LinkedHashSet<String> union = new LinkedHashSet<>(first);
+        union.addAll(second);
+        return union;
+    }
+
+    /**
+     * Lines of a diff, of which only the first {@value #MAX_DIFF_LINES} are kept.
+     */
+    private static final class Diff {
+
+        private final List<String> lines = new ArrayList<>();
+        private int omitted;
+
+        void add(String line) {
+            if (lines.size() < MAX_DIFF_LINES) {
+                lines.add(line);
+            } else {
+                omitted++;
+            }
+        }
+
+        void compare(String what, Object expected, Object actual) {
+            if (!Objects.equals(expected, actual)) {
+                add(what + ": expected " + expected + " but was " + actual);
+            }
+        }
+
+        int size() {
+            return lines.size() + omitted;
+        }
+
+        @Override
+        public String toString() {
+            StringJoiner out = new StringJoiner(System.lineSeparator());
+            lines.forEach(out::add);
+            if (omitted > 0) {
+                out.add("... and " + omitted + " more differences");
+            }
+            return out.toString();
+        }
+
+    }
+
+}
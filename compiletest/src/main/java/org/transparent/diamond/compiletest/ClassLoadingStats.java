@@ -0,0 +1,51 @@
+package org.transparent.diamond.compiletest;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.Locale;
+
+/**
+ * A snapshot of how many classes the JVM holds and how much metaspace they take,
+ * to tell whether running tests keeps adding classes that are never unloaded.
+ */
+final class ClassLoadingStats {
+
+    private final long metaspaceBytes;
+    private final int loadedClasses;
+    private final long unloadedClasses;
+
+    private ClassLoadingStats(long metaspaceBytes, int loadedClasses, long unloadedClasses) {
+        this.metaspaceBytes = metaspaceBytes;
+        this.loadedClasses = loadedClasses;
+        this.unloadedClasses = unloadedClasses;
+    }
+
+    /**
+     * Takes a snapshot. On JDK 8 and above, metaspace is the memory pool named <code>Metaspace</code>;
+     * on older JVMs, or if it cannot be found, it is reported as unknown.
+     */
+    static ClassLoadingStats now() {
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        long metaspaceBytes = -1;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                metaspaceBytes = pool.getUsage().getUsed();
+                break;
+            }
+        }
+        return new ClassLoadingStats(metaspaceBytes, classLoading.getLoadedClassCount(), classLoading.getUnloadedClassCount());
+    }
+
+    /**
+     * @return A one line summary, such as <code>metaspace 41.2 MB, 6120 classes loaded, 35 unloaded</code>
+     */
+    @Override
+    public String toString() {
+        String metaspace = metaspaceBytes < 0
+                ? "metaspace unknown"
+                : String.format(Locale.ROOT, "metaspace %.1f MB", metaspaceBytes / (1024.0 * 1024.0));
+        return metaspace + ", " + loadedClasses + " classes loaded, " + unloadedClasses + " unloaded";
+    }
+
+}
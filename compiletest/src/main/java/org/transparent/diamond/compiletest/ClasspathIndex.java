@@ -0,0 +1,266 @@
+package org.transparent.diamond.compiletest;
+
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A read-only index of the directories and JARs on a compile classpath.
+ * Every JAR directory and package listing is read once when the index is
+ * built, after which the index can be shared between concurrent compilations.
+ */
+final class ClasspathIndex implements Closeable {
+
+    private final Map<String, List<IndexedFileObject>> packages = new HashMap<>();
+    private final List<ZipFile> archives = new ArrayList<>();
+
+    /**
+     * Indexes the given classpath roots, in order. Roots that do not exist are skipped.
+     *
+     * @throws IOException If a directory or JAR cannot be read
+     */
+    ClasspathIndex(Collection<File> roots) throws IOException {
+        try {
+            for (File root : roots) {
+                if (root.isDirectory()) {
+                    indexDirectory(root);
+                } else if (root.isFile()) {
+                    indexArchive(root);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        for (Map.Entry<String, List<IndexedFileObject>> entry : packages.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+    }
+
+    private void indexDirectory(File root) throws IOException {
+        Path rootPath = root.toPath();
+        try (Stream<Path> files = Files.walk(rootPath)) {
+            Iterator<Path> iterator = files.filter(Files::isRegularFile).iterator();
+            while (iterator.hasNext()) {
+                Path file = iterator.next();
+                String relativePath = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+                add(root, relativePath, new IndexedFileObject(root, file.toUri(), relativePath, file.toFile().lastModified()) {
+                    @Override
+                    public InputStream openInputStream() throws IOException {
+                        return Files.newInputStream(file);
+                    }
+                });
+            }
+        }
+    }
+
+    private void indexArchive(File root) throws IOException {
+        ZipFile archive = new ZipFile(root);
+        archives.add(archive);
+        URI archiveUri = root.toURI();
+        Enumeration<? extends ZipEntry> entries = archive.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+            URI uri;
+            try {
+                uri = new URI(archiveUri.getScheme(), null, archiveUri.getPath() + "!/" + entry.getName(), null);
+            } catch (URISyntaxException e) {
+                throw new IOException("Could not build a URI for " + entry.getName() + " in " + root, e);
+            }
+            add(root, entry.getName(), new IndexedFileObject(root, uri, entry.getName(), entry.getTime()) {
+                @Override
+                public InputStream openInputStream() throws IOException {
+                    return archive.getInputStream(entry);
+                }
+
+                @Override
+                public URI toUri() {
+                    return URI.create("jar:" + uri);
+                }
+
+                @Override
+                public String getName() {
+                    return root.getPath() + "(" + entry.getName() + ")";
+                }
+            });
+        }
+    }
+
+    private void add(File root, String relativePath, IndexedFileObject file) {
+        if (relativePath.startsWith("META-INF/") || relativePath.endsWith("module-info.class")) {
+            return;
+        }
+        int slash = relativePath.lastIndexOf('/');
+        String packageName = slash < 0 ? "" : relativePath.substring(0, slash).replace('/', '.');
+        packages.computeIfAbsent(packageName, k -> new ArrayList<>()).add(file);
+    }
+
+    /**
+     * Lists the indexed files in a package, in classpath order.
+     *
+     * @param packageName Name of the package, with packages separated by dots.
+     * @param kinds       Kinds of files to return.
+     * @param recurse     Whether to include files in subpackages.
+     */
+    List<IndexedFileObject> list(String packageName, Set<Kind> kinds, boolean recurse) {
+        ArrayList<IndexedFileObject> files = new ArrayList<>();
+        if (recurse) {
+            String prefix = packageName + ".";
+            for (Map.Entry<String, List<IndexedFileObject>> entry : packages.entrySet()) {
+                if (packageName.isEmpty() || entry.getKey().equals(packageName) || entry.getKey().startsWith(prefix)) {
+                    addMatching(entry.getValue(), kinds, files);
+                }
+            }
+        } else {
+            addMatching(packages.getOrDefault(packageName, Collections.emptyList()), kinds, files);
+        }
+        return files;
+    }
+
+    private static void addMatching(List<IndexedFileObject> candidates, Set<Kind> kinds, List<IndexedFileObject> out) {
+        for (IndexedFileObject file : candidates) {
+            if (kinds.contains(file.getKind())) {
+                out.add(file);
+            }
+        }
+    }
+
+    /**
+     * Finds a file that was indexed from a specific classpath root.
+     *
+     * @param root       Classpath root the file must come from.
+     * @param binaryName Binary name of the class.
+     * @param kind       Kind of file.
+     * @return The file, or <code>null</code> if it was not indexed.
+     */
+    IndexedFileObject find(File root, String binaryName, Kind kind) {
+        int dot = binaryName.lastIndexOf('.');
+        String packageName = dot < 0 ? "" : binaryName.substring(0, dot);
+        for (IndexedFileObject file : packages.getOrDefault(packageName, Collections.emptyList())) {
+            if (file.root.equals(root) && file.getKind() == kind && file.binaryName.equals(binaryName)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds every file of a kind that was indexed from a specific classpath root.
+     *
+     * @param root Classpath root the files must come from.
+     * @param kind Kind of file.
+     * @return The files, sorted by binary name.
+     */
+    List<IndexedFileObject> findAll(File root, Kind kind) {
+        ArrayList<IndexedFileObject> files = new ArrayList<>();
+        for (List<IndexedFileObject> candidates : packages.values()) {
+            for (IndexedFileObject file : candidates) {
+                if (file.root.equals(root) && file.getKind() == kind) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(IndexedFileObject::getBinaryName));
+        return files;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ZipFile archive : archives) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        archives.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A file found on the classpath. Its contents are read on demand.
+     */
+    abstract static class IndexedFileObject extends SimpleJavaFileObject {
+
+        private final File root;
+        private final String binaryName;
+        private final String fileName;
+        private final long lastModified;
+
+        IndexedFileObject(File root, URI uri, String relativePath, long lastModified) {
+            super(uri, kindOf(relativePath));
+            this.root = root;
+            this.fileName = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+            String withoutExtension = getKind() == Kind.OTHER
+                    ? relativePath
+                    : relativePath.substring(0, relativePath.length() - getKind().extension.length());
+            this.binaryName = withoutExtension.replace('/', '.');
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return The binary name of the class this file holds.
+         */
+        String getBinaryName() {
+            return binaryName;
+        }
+
+        @Override
+        public abstract InputStream openInputStream() throws IOException;
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            try (InputStream in = openInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+            return new StringReader(getCharContent(ignoreEncodingErrors).toString());
+        }
+
+        @Override
+        public boolean isNameCompatible(String simpleName, Kind kind) {
+            return getKind() == kind && fileName.equals(simpleName + kind.extension);
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        private static Kind kindOf(String path) {
+            if (path.endsWith(Kind.CLASS.extension)) {
+                return Kind.CLASS;
+            } else if (path.endsWith(Kind.SOURCE.extension)) {
+                return Kind.SOURCE;
+            } else {
+                return Kind.OTHER;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.transparent.diamond.compiletest;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.util.Locale;
+
+/**
+ * A diagnostic reported by javac, or by an annotation processor through its
+ * {@link javax.annotation.processing.Messager}, during a compilation by {@link CompileTestUtils}.
+ * Unlike a {@link Diagnostic}, it holds no reference to the compiler, so it can be kept
+ * after the compilation is done.
+ */
+public final class CompilationDiagnostic {
+
+    private final Diagnostic.Kind kind;
+    private final String source;
+    private final long line;
+    private final long column;
+    private final String code;
+    private final String message;
+    private final String formatted;
+
+    private CompilationDiagnostic(Diagnostic.Kind kind, String source, long line, long column,
+                                  String code, String message, String formatted) {
+        this.kind = kind;
+        this.source = source;
+        this.line = line;
+        this.column = column;
+        this.code = code;
+        this.message = message;
+        this.formatted = formatted;
+    }
+
+    static CompilationDiagnostic of(Diagnostic<? extends JavaFileObject> diagnostic) {
+        JavaFileObject source = diagnostic.getSource();
+        return new CompilationDiagnostic(
+                diagnostic.getKind(),
+                source == null ? null : source.getName(),
+                diagnostic.getLineNumber(),
+                diagnostic.getColumnNumber(),
+                diagnostic.getCode(),
+                diagnostic.getMessage(Locale.ROOT),
+                diagnostic.toString()
+        );
+    }
+
+    static CompilationDiagnostic ofThrowable(String stackTrace) {
+        return new CompilationDiagnostic(Diagnostic.Kind.ERROR, null, Diagnostic.NOPOS, Diagnostic.NOPOS,
+                null, stackTrace, stackTrace);
+    }
+
+    /**
+     * Describes something that happened around a compilation rather than in it, such as a batch
+     * that could not run, so that it is printed within the same limit as javac's diagnostics.
+     */
+    static CompilationDiagnostic ofMessage(Diagnostic.Kind kind, String message) {
+        return new CompilationDiagnostic(kind, null, Diagnostic.NOPOS, Diagnostic.NOPOS, null, message, message);
+    }
+
+    /**
+     * @return Kind of the diagnostic
+     */
+    public Diagnostic.Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return Whether the diagnostic is a warning, mandatory or not
+     */
+    public boolean isWarning() {
+        return kind == Diagnostic.Kind.WARNING || kind == Diagnostic.Kind.MANDATORY_WARNING;
+    }
+
+    /**
+     * @return Name of the source file the diagnostic is about, or <code>null</code> if there is none
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return Line in the source file, starting at 1, or {@link Diagnostic#NOPOS} if unknown
+     */
+    public long getLine() {
+        return line;
+    }
+
+    /**
+     * @return Column in the source file, starting at 1, or {@link Diagnostic#NOPOS} if unknown
+     */
+    public long getColumn() {
+        return column;
+    }
+
+    /**
+     * @return javac's code for the diagnostic, such as <code>compiler.err.cant.resolve</code>,
+     * or <code>null</code> if it has none, as for diagnostics of annotation processors
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @return Message of the diagnostic, without its source and position
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The diagnostic as javac prints it
+     */
+    @Override
+    public String toString() {
+        return formatted;
+    }
+
+}
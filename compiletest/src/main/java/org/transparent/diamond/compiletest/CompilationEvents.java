@@ -0,0 +1,142 @@
+package org.transparent.diamond.compiletest;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Emits JDK Flight Recorder events for compilations and their phases, in the
+ * <code>Diamond</code> category. Since Diamond still runs on JDKs without
+ * <code>jdk.jfr</code>, the event types are built through reflection with
+ * <code>jdk.jfr.EventFactory</code>; on such JDKs, or while no recording has
+ * ever been started, every method here does nothing.
+ */
+final class CompilationEvents {
+
+    static final String COMPILATION_EVENT = "org.transparent.diamond.Compilation";
+    static final String PHASE_EVENT = "org.transparent.diamond.CompilePhase";
+
+    private static final Method IS_INITIALIZED;
+    private static final Method NEW_EVENT;
+    private static final Method SET;
+    private static final Method BEGIN;
+    private static final Method END;
+    private static final Method COMMIT;
+    private static final Object COMPILATION_FACTORY;
+    private static final Object PHASE_FACTORY;
+
+    static {
+        Method isInitialized = null;
+        Method newEvent = null;
+        Method set = null;
+        Method begin = null;
+        Method end = null;
+        Method commit = null;
+        Object compilationFactory = null;
+        Object phaseFactory = null;
+        try {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Method create = factoryClass.getMethod("create", List.class, List.class);
+            compilationFactory = create.invoke(null,
+                    annotations(COMPILATION_EVENT, "Compilation", "A javac compilation run by Diamond-CompileTest"),
+                    fields("unit", "processor"));
+            phaseFactory = create.invoke(null,
+                    annotations(PHASE_EVENT, "Compile Phase", "One javac phase of a compilation run by Diamond-CompileTest"),
+                    fields("unit", "phase"));
+            isInitialized = Class.forName("jdk.jfr.FlightRecorder").getMethod("isInitialized");
+            newEvent = factoryClass.getMethod("newEvent");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            commit = eventClass.getMethod("commit");
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // No Flight Recorder on this JDK.
+            compilationFactory = null;
+            phaseFactory = null;
+        }
+        IS_INITIALIZED = isInitialized;
+        NEW_EVENT = newEvent;
+        SET = set;
+        BEGIN = begin;
+        END = end;
+        COMMIT = commit;
+        COMPILATION_FACTORY = compilationFactory;
+        PHASE_FACTORY = phaseFactory;
+    }
+
+    private CompilationEvents() {
+    }
+
+    /**
+     * Begins a compilation event.
+     *
+     * @param unit      Name of what is compiled
+     * @param processor Class name of the annotation processor, or <code>null</code>
+     * @return The event to {@link #commit(Object)}, or <code>null</code> if none is recorded
+     */
+    static Object beginCompilation(String unit, String processor) {
+        return begin(COMPILATION_FACTORY, unit, processor);
+    }
+
+    /**
+     * Begins a phase event.
+     *
+     * @param unit  Name of what is compiled
+     * @param phase Name of the javac phase
+     * @return The event to {@link #commit(Object)}, or <code>null</code> if none is recorded
+     */
+    static Object beginPhase(String unit, String phase) {
+        return begin(PHASE_FACTORY, unit, phase);
+    }
+
+    /**
+     * Ends and commits an event returned by one of the begin methods.
+     */
+    static void commit(Object event) {
+        if (event == null) {
+            return;
+        }
+        try {
+            END.invoke(event);
+            COMMIT.invoke(event);
+        } catch (ReflectiveOperationException ignored) {
+            // The event is lost, the compilation is not affected.
+        }
+    }
+
+    private static Object begin(Object factory, String first, String second) {
+        if (factory == null) {
+            return null;
+        }
+        try {
+            if (!(Boolean) IS_INITIALIZED.invoke(null)) {
+                return null;
+            }
+            Object event = NEW_EVENT.invoke(factory);
+            SET.invoke(event, 0, first);
+            SET.invoke(event, 1, second);
+            BEGIN.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static List<Object> annotations(String name, String label, String description) throws ReflectiveOperationException {
+        Constructor<?> element = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+        return Arrays.asList(
+                element.newInstance(Class.forName("jdk.jfr.Name"), name),
+                element.newInstance(Class.forName("jdk.jfr.Label"), label),
+                element.newInstance(Class.forName("jdk.jfr.Description"), description),
+                element.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"Diamond"})
+        );
+    }
+
+    private static List<Object> fields(String first, String second) throws ReflectiveOperationException {
+        Constructor<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+        return Arrays.asList(descriptor.newInstance(String.class, first), descriptor.newInstance(String.class, second));
+    }
+
+}
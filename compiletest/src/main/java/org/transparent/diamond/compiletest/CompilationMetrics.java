@@ -0,0 +1,97 @@
+package org.transparent.diamond.compiletest;
+
+import com.sun.source.util.TaskEvent;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Where the time of one compilation went, as reported by javac's task events.
+ * <p>
+ * Phases nest (entering generated sources happens inside annotation processing, for example),
+ * so each phase is charged only for the time no nested phase was running.
+ * The phase times therefore add up to at most the total time; the rest is
+ * {@link #getOtherTime() spent outside of javac's phases}, setting up the compiler
+ * and reading and writing files.
+ */
+public final class CompilationMetrics {
+
+    private final long totalNanos;
+    private final EnumMap<TaskEvent.Kind, Long> phaseNanos;
+    private final List<Long> roundNanos;
+
+    CompilationMetrics(long totalNanos, EnumMap<TaskEvent.Kind, Long> phaseNanos, List<Long> roundNanos) {
+        this.totalNanos = totalNanos;
+        this.phaseNanos = phaseNanos;
+        this.roundNanos = roundNanos;
+    }
+
+    /**
+     * @return Wall clock time of the whole compilation, from creating the javac task to its end
+     */
+    public Duration getTotalTime() {
+        return Duration.ofNanos(totalNanos);
+    }
+
+    /**
+     * @return Time spent in each phase that javac reported, not counting nested phases, in phase order
+     */
+    public Map<TaskEvent.Kind, Duration> getPhaseTimes() {
+        EnumMap<TaskEvent.Kind, Duration> phaseTimes = new EnumMap<>(TaskEvent.Kind.class);
+        for (Map.Entry<TaskEvent.Kind, Long> entry : phaseNanos.entrySet()) {
+            phaseTimes.put(entry.getKey(), Duration.ofNanos(entry.getValue()));
+        }
+        return phaseTimes;
+    }
+
+    /**
+     * @return Time spent in a phase, not counting nested phases, or {@link Duration#ZERO} if it did not run
+     */
+    public Duration getPhaseTime(TaskEvent.Kind phase) {
+        return Duration.ofNanos(phaseNanos.getOrDefault(phase, 0L));
+    }
+
+    /**
+     * @return Time spent in each annotation processing round, including the phases nested in it
+     */
+    public List<Duration> getRoundTimes() {
+        ArrayList<Duration> roundTimes = new ArrayList<>(roundNanos.size());
+        for (Long nanos : roundNanos) {
+            roundTimes.add(Duration.ofNanos(nanos));
+        }
+        return roundTimes;
+    }
+
+    /**
+     * @return Time not spent in any phase reported by javac
+     */
+    public Duration getOtherTime() {
+        long phases = 0;
+        for (Long nanos : phaseNanos.values()) {
+            phases += nanos;
+        }
+        return Duration.ofNanos(Math.max(0, totalNanos - phases));
+    }
+
+    /**
+     * @return A one line summary of the total and the phase times, such as <code>12.3 ms (parse 1.0 ms, enter 0.4 ms, ...)</code>
+     */
+    @Override
+    public String toString() {
+        StringJoiner phases = new StringJoiner(", ", " (", ")");
+        for (Map.Entry<TaskEvent.Kind, Long> entry : phaseNanos.entrySet()) {
+            String phase = entry.getKey().name().toLowerCase(Locale.ROOT).replace('_', ' ');
+            if (entry.getKey() == TaskEvent.Kind.ANNOTATION_PROCESSING_ROUND) {
+                phase = "processing rounds (" + roundNanos.size() + ")";
+            }
+            phases.add(phase + " " + millis(entry.getValue()));
+        }
+        phases.add("other " + millis(getOtherTime().toNanos()));
+        return millis(totalNanos) + phases;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f ms", nanos / 1_000_000.0);
+    }
+
+}
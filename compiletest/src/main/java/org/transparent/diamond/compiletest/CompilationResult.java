@@ -0,0 +1,81 @@
+package org.transparent.diamond.compiletest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The outcome of one compilation by {@link CompileTestUtils}:
+ * the generated bytecode, or element signatures, if it succeeded, what javac reported, and where the time went.
+ */
+public final class CompilationResult {
+
+    private final Map<String, byte[]> classes;
+    private final Map<String, String> elementSignatures;
+    private final CompilationMetrics metrics;
+    private final List<CompilationDiagnostic> diagnostics;
+    private final String output;
+
+    CompilationResult(Map<String, byte[]> classes, Map<String, String> elementSignatures, CompilationMetrics metrics,
+                      List<CompilationDiagnostic> diagnostics, String output) {
+        this.classes = classes;
+        this.elementSignatures = elementSignatures;
+        this.metrics = metrics;
+        this.diagnostics = Collections.unmodifiableList(diagnostics);
+        this.output = output;
+    }
+
+    /**
+     * @return Whether the compilation succeeded
+     */
+    public boolean isSuccess() {
+        return classes != null;
+    }
+
+    /**
+     * @return If compilation succeeded, an Optional containing the generated bytecode
+     * for all compiled classes. If compilation failed, {@link Optional#empty()}.
+     */
+    public Optional<Map<String, byte[]>> getClasses() {
+        return Optional.ofNullable(classes);
+    }
+
+    /**
+     * @return If the compilation stopped after analysis and succeeded, an Optional containing a description
+     * of every top level class by its element model, keyed by class name. Otherwise, {@link Optional#empty()}.
+     * @see CompileTestUtils#analyzeForResult(String, String, javax.annotation.processing.Processor)
+     */
+    public Optional<Map<String, String>> getElementSignatures() {
+        return Optional.ofNullable(elementSignatures);
+    }
+
+    /**
+     * @return Timings of the compilation
+     */
+    public CompilationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Every diagnostic of the compilation, in the order they were reported
+     */
+    public List<CompilationDiagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * @return Anything else javac printed during the compilation, or an empty string
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    /**
+     * Copies this result, as failed, keeping everything but the classes and element signatures.
+     */
+    CompilationResult asFailure() {
+        return new CompilationResult(null, null, metrics, diagnostics, output);
+    }
+
+}
@@ -0,0 +1,506 @@
+package org.transparent.diamond.compiletest;
+
+import org.transparent.diamond.DiamondConstants;
+
+import java.io.File;
+
+/**
+ * Options for {@link CompileTestRunner}. Every option has a default,
+ * so a fresh instance runs tests exactly like the plain runner does.
+ */
+public class CompileTestOptions {
+
+    private int parallelism = 1;
+    private File expectedBytecodeCache = null;
+    private boolean useProcessorTestIndex = true;
+    private boolean reportCompilationMetrics = false;
+    private boolean poolCompilerContexts = false;
+    private File incrementalManifest = null;
+    private File benchmarkResults = null;
+    private int batchSize = 1;
+    private boolean reportClassLoading = false;
+    private int[] scalabilitySizes = {10, 40, 160, 640};
+    private double maxScalingExponent = 1.2;
+    private File scalabilityReport = null;
+    private int consoleDiagnostics = Integer.MAX_VALUE;
+    private boolean snapshots = false;
+    private boolean updateSnapshots = false;
+    private boolean requireSnapshots = false;
+    private boolean checkIncrementalProcessing = false;
+    private boolean detectLeaks = false;
+    private int shardIndex = Integer.getInteger(DiamondConstants.SHARD_INDEX_PROPERTY, 0);
+    private int shardCount = Integer.getInteger(DiamondConstants.SHARD_COUNT_PROPERTY, 1);
+    private File testDurations = System.getProperty(DiamondConstants.TEST_DURATIONS_PROPERTY) == null
+            ? null
+            : new File(System.getProperty(DiamondConstants.TEST_DURATIONS_PROPERTY));
+
+    /**
+     * Sets how many processor tests may compile at the same time.
+     * Tests are still reported in a stable order, regardless of which one finishes first.
+     * Tests with a time or allocation budget, and every test if {@link #detectLeaks(boolean) leaks are detected},
+     * still run one at a time, once the others are done.
+     *
+     * @param parallelism Maximum number of tests running at once. Defaults to 1.
+     *                    {@link Runtime#availableProcessors()} uses every core.
+     * @return This instance
+     * @throws IllegalArgumentException If parallelism is less than 1
+     */
+    public CompileTestOptions parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1!");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @return Maximum number of tests running at once
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Enables a persistent cache of the bytecode compiled from {@link ProcessorTest#expected()}
+     * and {@link ProcessorTest#expectedFile()} sources. Entries are keyed by a hash of the source,
+     * the javac options, the contents of the classpath and the JDK, so a hit skips the expected-side javac call.
+     * Entries that go unused for a month are deleted when the cache is next opened.
+     *
+     * @param directory Directory to keep the cache in, or <code>null</code> to disable it. Defaults to <code>null</code>.
+     * @return This instance
+     */
+    public CompileTestOptions expectedBytecodeCache(File directory) {
+        this.expectedBytecodeCache = directory;
+        return this;
+    }
+
+    /**
+     * @return Directory of the expected bytecode cache, or <code>null</code> if it is disabled
+     */
+    public File getExpectedBytecodeCache() {
+        return expectedBytecodeCache;
+    }
+
+    /**
+     * Sets whether to look for an index written by {@link ProcessorTestIndexer} on the
+     * context classloader. If the index lists tests from the source root, only those tests
+     * are compiled and loaded, instead of scanning every source file.
+     *
+     * @param useProcessorTestIndex Whether to use the index. Defaults to <code>true</code>.
+     * @return This instance
+     */
+    public CompileTestOptions useProcessorTestIndex(boolean useProcessorTestIndex) {
+        this.useProcessorTestIndex = useProcessorTestIndex;
+        return this;
+    }
+
+    /**
+     * @return Whether to use a build-time index of processor tests when one is found
+     */
+    public boolean isUseProcessorTestIndex() {
+        return useProcessorTestIndex;
+    }
+
+    /**
+     * Sets whether to print, for every test, how long compiling the stub with the processor took
+     * and how that time splits over javac's phases and annotation processing rounds.
+     * The same timings are always available as JDK Flight Recorder events
+     * in the <code>Diamond</code> category.
+     *
+     * @param reportCompilationMetrics Whether to print the timings. Defaults to <code>false</code>.
+     * @return This instance
+     * @see CompilationMetrics
+     */
+    public CompileTestOptions reportCompilationMetrics(boolean reportCompilationMetrics) {
+        this.reportCompilationMetrics = reportCompilationMetrics;
+        return this;
+    }
+
+    /**
+     * @return Whether to print the compilation timings of every test
+     */
+    public boolean isReportCompilationMetrics() {
+        return reportCompilationMetrics;
+    }
+
+    /**
+     * Sets whether compilations without an annotation processor, such as those of expected
+     * sources, reuse warm javac contexts, which keep the symbols already read from the platform
+     * and the classpath, instead of each starting from a cold one. This needs JDK 9 or above;
+     * on older JDKs it has no effect.
+     *
+     * @param poolCompilerContexts Whether to pool javac contexts. Defaults to <code>false</code>.
+     * @return This instance
+     * @see CompileTestUtils#pooledContexts(int)
+     */
+    public CompileTestOptions poolCompilerContexts(boolean poolCompilerContexts) {
+        this.poolCompilerContexts = poolCompilerContexts;
+        return this;
+    }
+
+    /**
+     * @return Whether compilations reuse warm javac contexts
+     */
+    public boolean isPoolCompilerContexts() {
+        return poolCompilerContexts;
+    }
+
+    /**
+     * Enables incremental runs. After each run, the manifest records every test that passed,
+     * with a hash of its inputs: the stub, the expected source, and the sources of the processor,
+     * of the annotation, and of every class from the source root they reference. A later run skips
+     * those tests whose inputs did not change, reporting them as aborted. A different classpath,
+     * set of javac options or JDK discards the whole manifest, so every test runs again.
+     *
+     * @param file File to keep the manifest in, or <code>null</code> to run every test. Defaults to <code>null</code>.
+     * @return This instance
+     */
+    public CompileTestOptions incrementalManifest(File file) {
+        this.incrementalManifest = file;
+        return this;
+    }
+
+    /**
+     * @return File of the incremental manifest, or <code>null</code> if every test runs
+     */
+    public File getIncrementalManifest() {
+        return incrementalManifest;
+    }
+
+    /**
+     * Sets where {@link CompileTestRunner#runProcessorBenchmarksIn(File, java.util.Collection, CompileTestOptions)}
+     * writes its results, in the JSON format of JMH. Name the file after the commit or version
+     * to compare results across them with JMH tooling.
+     *
+     * @param file File to write the results to, or <code>null</code> to only print them. Defaults to <code>null</code>.
+     * @return This instance
+     */
+    public CompileTestOptions benchmarkResults(File file) {
+        this.benchmarkResults = file;
+        return this;
+    }
+
+    /**
+     * @return File to write benchmark results to, or <code>null</code> if they are only printed
+     */
+    public File getBenchmarkResults() {
+        return benchmarkResults;
+    }
+
+    /**
+     * Multiplexes processor tests into shared compilations. Up to this many tests that share an
+     * annotation and a target compile their stubs together, each processor seeing only its own stub,
+     * and their expected sources together; the classes are then split back out per test. A test that
+     * does not pass in its batch runs again on its own, so failures are always reported by the test
+     * that caused them. Processors that behave differently depending on the other classes in the
+     * compilation, or on the name of the stub class, only lose the speedup.
+     *
+     * @param batchSize Maximum number of tests per compilation. Defaults to 1, which compiles every test on its own.
+     * @return This instance
+     * @throws IllegalArgumentException If batchSize is less than 1
+     */
+    public CompileTestOptions batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1!");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @return Maximum number of tests per compilation
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Prints how many classes the JVM holds and how much metaspace they take after each test,
+     * and once all tests ran. Each processor is loaded in a thin classloader of its own, on top
+     * of one that holds the classes its source file depends on, so these should stay flat
+     * as tests run, apart from what a garbage collection has not unloaded yet.
+     *
+     * @param reportClassLoading Whether to print class loading statistics. Defaults to <code>false</code>.
+     * @return This instance
+     */
+    public CompileTestOptions reportClassLoading(boolean reportClassLoading) {
+        this.reportClassLoading = reportClassLoading;
+        return this;
+    }
+
+    /**
+     * @return Whether class loading statistics are printed
+     */
+    public boolean isReportClassLoading() {
+        return reportClassLoading;
+    }
+
+    /**
+     * Sets the input sizes that {@link CompileTestRunner#runScalabilityAnalysisIn(File, java.util.Collection, CompileTestOptions)}
+     * measures every processor at. Each size is a number of synthetic classes compiled together,
+     * every one with several members and one annotated element.
+     *
+     * @param sizes Numbers of classes, in increasing order. Defaults to 10, 40, 160 and 640.
+     * @return This instance
+     * @throws IllegalArgumentException If there are fewer than two sizes, or they are not positive and increasing
+     */
+    public CompileTestOptions scalabilitySizes(int... sizes) {
+        if (sizes.length < 2) {
+            throw new IllegalArgumentException("At least two scalability sizes are needed to fit a curve!");
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] < 1 || (i > 0 && sizes[i] <= sizes[i - 1])) {
+                throw new IllegalArgumentException("Scalability sizes must be positive and increasing!");
+            }
+        }
+        this.scalabilitySizes = sizes.clone();
+        return this;
+    }
+
+    /**
+     * @return Numbers of classes every processor is measured at
+     */
+    public int[] getScalabilitySizes() {
+        return scalabilitySizes.clone();
+    }
+
+    /**
+     * Sets how fast the time spent in a processor may grow with the number of annotated elements.
+     * The growth is fitted as <code>time = c &times; n<sup>k</sup></code>; a scalability analysis
+     * fails if <code>k</code> is above this. Linear processors measure 1 or below, since fixed costs
+     * weigh most at the smaller sizes; quadratic ones measure above 1, and approach 2 as the sizes grow.
+     *
+     * @param maxScalingExponent Largest allowed exponent. Defaults to 1.2.
+     * @return This instance
+     * @throws IllegalArgumentException If maxScalingExponent is not positive
+     */
+    public CompileTestOptions maxScalingExponent(double maxScalingExponent) {
+        if (!(maxScalingExponent > 0)) {
+            throw new IllegalArgumentException("maxScalingExponent must be positive!");
+        }
+        this.maxScalingExponent = maxScalingExponent;
+        return this;
+    }
+
+    /**
+     * @return Largest exponent the processor time may grow with
+     */
+    public double getMaxScalingExponent() {
+        return maxScalingExponent;
+    }
+
+    /**
+     * Sets where {@link CompileTestRunner#runScalabilityAnalysisIn(File, java.util.Collection, CompileTestOptions)}
+     * writes its results as JSON: the times measured at every size, the fitted exponent, and whether
+     * it is over {@link #maxScalingExponent(double)}, for a build to check before merging.
+     *
+     * @param file File to write the results to, or <code>null</code> to only print them. Defaults to <code>null</code>.
+     * @return This instance
+     */
+    public CompileTestOptions scalabilityReport(File file) {
+        this.scalabilityReport = file;
+        return this;
+    }
+
+    /**
+     * @return File to write scalability results to, or <code>null</code> if they are only printed
+     */
+    public File getScalabilityReport() {
+        return scalabilityReport;
+    }
+
+    /**
+     * Limits how many diagnostics of each compilation are printed to the console. Every diagnostic
+     * is still collected, checked against {@link ProcessorTest#expectedWarnings()} and
+     * {@link ProcessorTest#expectedErrors()}, and the errors of a compilation that fails
+     * are part of the message of the test that fails with it.
+     *
+     * @param maxDiagnostics Maximum number of diagnostics printed per compilation, or 0 to print nothing.
+     *                       Defaults to {@link Integer#MAX_VALUE}, which prints everything.
+     * @return This instance
+     * @throws IllegalArgumentException If maxDiagnostics is negative
+     * @see CompileTestUtils#consoleDiagnostics(int)
+     */
+    public CompileTestOptions consoleDiagnostics(int maxDiagnostics) {
+        if (maxDiagnostics < 0) {
+            throw new IllegalArgumentException("maxDiagnostics must not be negative!");
+        }
+        this.consoleDiagnostics = maxDiagnostics;
+        return this;
+    }
+
+    /**
+     * @return Maximum number of diagnostics printed per compilation
+     */
+    public int getConsoleDiagnostics() {
+        return consoleDiagnostics;
+    }
+
+    /**
+     * Enables golden snapshots for processor tests that set neither {@link ProcessorTest#expected()}
+     * nor {@link ProcessorTest#expectedFile()}. Such a test compares what the processor generates against
+     * a snapshot next to the processor's source file, such as <code>MyProcessor.jdk11.snapshot</code>,
+     * instead of compiling an expected source. If there is no snapshot for the running JDK yet,
+     * the test records one and passes, unless {@link #requireSnapshots(boolean)} is set;
+     * commit it to keep the test from then on.
+     *
+     * @param snapshots Whether tests without an expected source use snapshots. Defaults to <code>false</code>.
+     * @return This instance
+     */
+    public CompileTestOptions snapshots(boolean snapshots) {
+        this.snapshots = snapshots;
+        return this;
+    }
+
+    /**
+     * @return Whether tests without an expected source use snapshots
+     */
+    public boolean isSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * Sets whether every snapshot test records a new snapshot from what the processor generates,
+     * rather than comparing against the one it has. Check the changed snapshots before committing them.
+     * Has no effect unless {@link #snapshots(boolean)} is set.
+     *
+     * @param updateSnapshots Whether to record snapshots again. Defaults to <code>false</code>.
+     * @return This instance
+     */
+    public CompileTestOptions updateSnapshots(boolean updateSnapshots) {
+        this.updateSnapshots = updateSnapshots;
+        return this;
+    }
+
+    /**
+     * @return Whether snapshot tests record new snapshots
+     */
+    public boolean isUpdateSnapshots() {
+        return updateSnapshots;
+    }
+
+    /**
+     * Sets whether a snapshot test fails if there is no snapshot for the running JDK, instead of
+     * recording one and passing. Set it on CI, so that a snapshot that was never committed cannot go unnoticed.
+     * Has no effect while {@link #updateSnapshots(boolean)} is set.
+     *
+     * @param requireSnapshots Whether a missing snapshot fails the test. Defaults to <code>false</code>.
+     * @return This instance
+     */
+    public CompileTestOptions requireSnapshots(boolean requireSnapshots) {
+        this.requireSnapshots = requireSnapshots;
+        return this;
+    }
+
+    /**
+     * @return Whether a missing snapshot fails the test
+     */
+    public boolean isRequireSnapshots() {
+        return requireSnapshots;
+    }
+
+    /**
+     * Checks that each processor under test keeps to the rules of the category it is registered with
+     * as a Gradle incremental annotation processor, in <code>META-INF/gradle/incremental.annotation.processors</code>
+     * on the test classpath, such as giving an isolating processor's generated files exactly one originating element.
+     * A processor that is not registered, or breaks a rule while compiling its test's stub, fails its test.
+     *
+     * @param checkIncrementalProcessing Whether to check processors against their category. Defaults to <code>false</code>.
+     * @return This instance
+     */
+    public CompileTestOptions checkIncrementalProcessing(boolean checkIncrementalProcessing) {
+        this.checkIncrementalProcessing = checkIncrementalProcessing;
+        return this;
+    }
+
+    /**
+     * @return Whether processors are checked against their incremental processing category
+     */
+    public boolean isCheckIncrementalProcessing() {
+        return checkIncrementalProcessing;
+    }
+
+    /**
+     * Runs only one slice of the processor tests, so that several JVMs or machines can split them without overlap.
+     * Tests are split by a stable hash of their names, or balanced by their {@link #testDurations(File) durations}
+     * if those are recorded, so every shard of one run must see the same source root and durations.
+     * <p>
+     * Defaults to the <code>diamond.shardIndex</code> and <code>diamond.shardCount</code> system properties,
+     * which the Diamond Gradle plugin sets on test JVMs, or to a single shard holding every test.
+     *
+     * @param index Index of the shard to run, from 0
+     * @param count Number of shards
+     * @return This instance
+     * @throws IllegalArgumentException If count is less than 1, or index is not between 0 and count
+     */
+    public CompileTestOptions shard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Shard index must be at least 0 and less than a shard count of at least 1!");
+        }
+        this.shardIndex = index;
+        this.shardCount = count;
+        return this;
+    }
+
+    /**
+     * @return Index of the shard to run, from 0
+     */
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * @return Number of shards the tests are split into
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Sets a file of test durations, in milliseconds by test name, that balances {@link #shard(int, int) shards}
+     * by time rather than by number of tests. Each run records the durations of the tests it ran: an unsharded
+     * run into this file, and a sharded one into a file of its own next to it, such as
+     * <code>durations.properties.shard-1-of-4</code>, so that every shard reads the same durations.
+     * Merge those back into this file for the next run.
+     *
+     * @param file File of recorded durations, or <code>null</code> to split by hash only.
+     *             Defaults to the <code>diamond.testDurations</code> system property, or <code>null</code>.
+     * @return This instance
+     */
+    public CompileTestOptions testDurations(File file) {
+        this.testDurations = file;
+        return this;
+    }
+
+    /**
+     * @return File of recorded test durations, or <code>null</code> if tests are split by hash only
+     */
+    public File getTestDurations() {
+        return testDurations;
+    }
+
+    /**
+     * Checks that nothing a processor test compiled with outlives the test: not the processor instance,
+     * not the {@link AnnotationProcessorClassLoader} it was loaded in, and not the javac context it ran in.
+     * Processors that keep elements, trees or the processing environment somewhere that outlives them,
+     * such as a static field of a shared class, keep the whole context alive, which builds up in a long
+     * running Gradle daemon. After each test, garbage is collected until those are gone; a test that leaks
+     * any of them fails. Tests checked for leaks run one at a time, regardless of {@link #parallelism(int)},
+     * so that another test cannot keep those alive, and are not {@link #batchSize(int) batched}.
+     *
+     * @param detectLeaks Whether to check tests for leaks. Defaults to <code>false</code>.
+     * @return This instance
+     */
+    public CompileTestOptions detectLeaks(boolean detectLeaks) {
+        this.detectLeaks = detectLeaks;
+        return this;
+    }
+
+    /**
+     * @return Whether tests are checked for leaks
+     */
+    public boolean isDetectLeaks() {
+        return detectLeaks;
+    }
+
+}
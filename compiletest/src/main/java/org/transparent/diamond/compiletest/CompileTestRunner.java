@@ -1,19 +1,29 @@
 package org.transparent.diamond.compiletest;
 
-import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DynamicTest;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.opentest4j.AssertionFailedError;
+import org.opentest4j.TestAbortedException;
+import org.transparent.diamond.compiletest.LambdaUtils.FunctionThatCanThrow;
+import org.transparent.diamond.compiletest.LambdaUtils.SupplierThatCanThrow;
 
 import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
 import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
-import java.lang.annotation.ElementType;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.transparent.diamond.compiletest.LambdaUtils.rethrowChecked;
@@ -21,9 +31,32 @@ import static org.transparent.diamond.compiletest.LambdaUtils.rethrowChecked;
 public class CompileTestRunner {
 
     public static class CompilerException extends Exception {
+        /**
+         * Errors listed in the message, at most.
+         */
+        private static final int MAX_ERRORS = 10;
+
         public CompilerException(String clazz) {
             super("Could not compile " + clazz);
         }
+
+        public CompilerException(String clazz, List<CompilationDiagnostic> diagnostics) {
+            super("Could not compile " + clazz + errors(diagnostics));
+        }
+
+        private static String errors(List<CompilationDiagnostic> diagnostics) {
+            StringBuilder errors = new StringBuilder();
+            int count = 0;
+            for (CompilationDiagnostic diagnostic : diagnostics) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR && count++ < MAX_ERRORS) {
+                    errors.append(System.lineSeparator()).append(diagnostic);
+                }
+            }
+            if (count > MAX_ERRORS) {
+                errors.append(System.lineSeparator()).append("... and ").append(count - MAX_ERRORS).append(" more errors");
+            }
+            return errors.toString();
+        }
     }
 
     /**
@@ -54,23 +87,298 @@ public class CompileTestRunner {
      */
     public static Stream<DynamicTest> runProcessorTestsIn(File sourceRoot, Collection<File> classpath)
             throws IllegalArgumentException, UnsupportedOperationException, CompilerException, IOException {
+        return runProcessorTestsIn(sourceRoot, classpath, new CompileTestOptions());
+    }
+
+    /**
+     * Tests each processor annotated with {@link ProcessorTest} in the given directory.
+     * <p>
+     * The returned tests are independent of each other and may also be executed
+     * concurrently by JUnit's parallel execution. Tests with a time or allocation budget, and every test
+     * if leaks are detected, still wait until no other test is running.
+     *
+     * @param sourceRoot Directory to look in for tests
+     * @param classpath  Compile classpath for javac
+     * @param options    Options for running the tests
+     * @return A stream of {@link DynamicTest}s that can be passed to JUnit
+     * @throws IllegalArgumentException      If sourceRoot is null, does not exist, or is not a directory
+     * @throws UnsupportedOperationException If a processor test has an invalid or unsupported configuration
+     * @throws CompilerException             If an error occurs in compiling a processor
+     * @throws IOException                   If an error occurs in IO
+     */
+    public static Stream<DynamicTest> runProcessorTestsIn(File sourceRoot, Collection<File> classpath, CompileTestOptions options)
+            throws IllegalArgumentException, UnsupportedOperationException, CompilerException, IOException {
         if (sourceRoot == null || !sourceRoot.exists() || !sourceRoot.isDirectory()) {
             throw new IllegalArgumentException("sourceRoot must be a directory!");
         }
         CompileTestUtils compileTestUtils = new CompileTestUtils(sourceRoot, classpath);
-        Path sourceRootPath = sourceRoot.toPath();
-        return Files.walk(sourceRootPath)
-                .filter(p -> p.getFileName().toString().endsWith(".java"))
-                .filter(p -> {
-                    File f = p.toFile();
-                    return f.exists() && f.isFile();
+        if (options.isPoolCompilerContexts()) {
+            compileTestUtils.pooledContexts(options.getParallelism());
+        }
+        CompileTestRunner runner = new CompileTestRunner(compileTestUtils, sourceRoot, options);
+        Stream<DynamicTest> tests;
+        try {
+            tests = runner.discoverTests(runner::processorTest).onClose(rethrowChecked(runner::close));
+        } catch (IOException | CompilerException | RuntimeException e) {
+            runner.compileTestUtils.close();
+            throw e;
+        }
+        if (runner.testBatches != null && options.getParallelism() == 1) {
+            // Every test must join its batch before the first one runs.
+            Stream<DynamicTest> discovered = tests;
+            tests = discovered.collect(Collectors.toList()).stream().onClose(discovered::close);
+        }
+        if (options.getParallelism() > 1) {
+            return ParallelTests.run(tests, options.getParallelism(), runner.testsRunAlone::contains);
+        }
+        return tests;
+    }
+
+    /**
+     * Benchmarks each processor annotated with {@link ProcessorBenchmark} in the given directory.
+     * Every benchmark is one {@link DynamicTest}, which fails only if the processor cannot be run;
+     * it prints how long the processor and the rest of javac took per compilation. Benchmarks
+     * always run one after the other, regardless of {@link CompileTestOptions#parallelism(int)}.
+     * <p>
+     * If {@link CompileTestOptions#benchmarkResults(File)} is set, the results are written there
+     * in JMH's JSON format once the returned stream is closed.
+     *
+     * @param sourceRoot Directory to look in for benchmarks
+     * @param classpath  Compile classpath for javac
+     * @param options    Options for running the benchmarks
+     * @return A stream of {@link DynamicTest}s that can be passed to JUnit
+     * @throws IllegalArgumentException If sourceRoot is null, does not exist, or is not a directory
+     * @throws IOException              If an error occurs in IO
+     */
+    public static Stream<DynamicTest> runProcessorBenchmarksIn(File sourceRoot, Collection<File> classpath, CompileTestOptions options)
+            throws IllegalArgumentException, IOException {
+        if (sourceRoot == null || !sourceRoot.exists() || !sourceRoot.isDirectory()) {
+            throw new IllegalArgumentException("sourceRoot must be a directory!");
+        }
+        CompileTestRunner runner = new CompileTestRunner(new CompileTestUtils(sourceRoot, classpath), sourceRoot, options);
+        try {
+            return runner.benchmarksFromSourceRoot().onClose(rethrowChecked(runner::close));
+        } catch (IOException | RuntimeException e) {
+            runner.compileTestUtils.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Analyzes how each processor annotated with {@link ProcessorTest} in the given directory scales
+     * with the size of its input. For every size in {@link CompileTestOptions#scalabilitySizes(int...)},
+     * that many synthetic classes, each with {@value #SYNTHETIC_MEMBERS} fields, methods and constructors
+     * and one annotated element, are compiled together with the processor, and the median time spent
+     * inside it is measured. The growth of that time with the number of classes is then fitted as a power law.
+     * <p>
+     * Every processor is one {@link DynamicTest}, which fails if the processor cannot be run on the
+     * synthetic classes, or if its time grows faster than {@link CompileTestOptions#maxScalingExponent(double)}
+     * allows. Expected sources are not compared. Like benchmarks, the analyses always run one after the other.
+     * If {@link CompileTestOptions#scalabilityReport(File)} is set, the results are written there
+     * as JSON once the returned stream is closed.
+     *
+     * @param sourceRoot Directory to look in for tests
+     * @param classpath  Compile classpath for javac
+     * @param options    Options for running the analyses
+     * @return A stream of {@link DynamicTest}s that can be passed to JUnit
+     * @throws IllegalArgumentException If sourceRoot is null, does not exist, or is not a directory
+     * @throws CompilerException        If an error occurs in compiling a processor
+     * @throws IOException              If an error occurs in IO
+     */
+    public static Stream<DynamicTest> runScalabilityAnalysisIn(File sourceRoot, Collection<File> classpath, CompileTestOptions options)
+            throws IllegalArgumentException, CompilerException, IOException {
+        if (sourceRoot == null || !sourceRoot.exists() || !sourceRoot.isDirectory()) {
+            throw new IllegalArgumentException("sourceRoot must be a directory!");
+        }
+        CompileTestRunner runner = new CompileTestRunner(new CompileTestUtils(sourceRoot, classpath), sourceRoot, options);
+        try {
+            return runner.discoverTests(runner::scalabilityTest).onClose(rethrowChecked(runner::close));
+        } catch (IOException | CompilerException | RuntimeException e) {
+            runner.compileTestUtils.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of fields, methods and constructors of every synthetic class in a scalability analysis.
+     */
+    private static final int SYNTHETIC_MEMBERS = 10;
+
+    /**
+     * Builds the test for one processor from its {@link ProcessorTest} annotation.
+     */
+    @FunctionalInterface
+    private interface ProcessorTestFactory {
+        DynamicTest create(String name, ProcessorTest annotation, SupplierThatCanThrow<Class<?>, Exception> processorClass)
+                throws IOException;
+    }
+
+    private final CompileTestUtils compileTestUtils;
+    private final File sourceRoot;
+    private final Path sourceRootPath;
+    private final CompileTestOptions options;
+    private final ExpectedBytecodeCache expectedBytecodeCache;
+    private final IncrementalManifest incrementalManifest;
+    private volatile Map<String, byte[]> discoveredClasses;
+    private final BenchmarkReport benchmarkReport = new BenchmarkReport();
+    private final ScalabilityReport scalabilityReport = new ScalabilityReport();
+    private final TestBatches testBatches;
+    private final TestDurations testDurations;
+    private final ReadWriteLock isolation = new ReentrantReadWriteLock();
+    private final Set<DynamicTest> testsRunAlone = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private CompileTestRunner(CompileTestUtils compileTestUtils, File sourceRoot, CompileTestOptions options) throws IOException {
+        this.compileTestUtils = compileTestUtils.consoleDiagnostics(options.getConsoleDiagnostics());
+        this.sourceRoot = sourceRoot;
+        this.sourceRootPath = sourceRoot.toPath();
+        this.options = options;
+        this.expectedBytecodeCache = options.getExpectedBytecodeCache() == null
+                ? null
+                : new ExpectedBytecodeCache(options.getExpectedBytecodeCache());
+        this.incrementalManifest = options.getIncrementalManifest() == null
+                ? null
+                : new IncrementalManifest(options.getIncrementalManifest(), compileTestUtils.fingerprint());
+        this.testBatches = options.getBatchSize() > 1
+                ? new TestBatches(compileTestUtils, expectedBytecodeCache, options.getBatchSize(), options.isReportCompilationMetrics())
+                : null;
+        if (options.getShardCount() < 1 || options.getShardIndex() < 0 || options.getShardIndex() >= options.getShardCount()) {
+            throw new IllegalArgumentException("Shard index " + options.getShardIndex() + " is not between 0 and the shard count "
+                    + options.getShardCount() + "!");
+        }
+        this.testDurations = options.getTestDurations() == null
+                ? null
+                : new TestDurations(options.getTestDurations(), options.getShardIndex(), options.getShardCount());
+    }
+
+    private void close() throws IOException {
+        try {
+            if (options.isReportClassLoading()) {
+                System.out.println("After all tests: " + ClassLoadingStats.now());
+            }
+            if (incrementalManifest != null) {
+                incrementalManifest.save();
+            }
+            if (testDurations != null) {
+                testDurations.save();
+            }
+            if (options.getBenchmarkResults() != null) {
+                benchmarkReport.write(options.getBenchmarkResults());
+            }
+            if (options.getScalabilityReport() != null) {
+                scalabilityReport.write(options.getScalabilityReport());
+            }
+        } finally {
+            compileTestUtils.close();
+        }
+    }
+
+    /**
+     * Finds the processor tests under the source root. If a {@link ProcessorTestIndexer build-time index}
+     * lists tests from this source root, only those are compiled; otherwise every source file is
+     * compiled and checked for a {@link ProcessorTest} annotation. Either way, only the classes
+     * in this run's {@link CompileTestOptions#shard(int, int) shard} are considered.
+     */
+    private Stream<DynamicTest> discoverTests(ProcessorTestFactory factory) throws IOException, CompilerException {
+        if (options.isUseProcessorTestIndex()) {
+            ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            ProcessorTestIndex index = ProcessorTestIndex.load(
+                    contextClassLoader != null ? contextClassLoader : CompileTestRunner.class.getClassLoader(),
+                    sourceRoot
+            );
+            if (!index.isEmpty()) {
+                return testsFromIndex(index, factory);
+            }
+        }
+        return testsFromSourceRoot(factory);
+    }
+
+    private Stream<DynamicTest> testsFromIndex(ProcessorTestIndex index, ProcessorTestFactory factory)
+            throws IOException, CompilerException {
+        List<String> classNames = inShard(index.getClassNames());
+        FunctionThatCanThrow<String, Class<?>, Exception> classLoader = discoveryClassLoader(index.getSourceClassNames());
+        return classNames.stream()
+                .map(rethrowChecked(className -> {
+                    ProcessorTest annotation = index.getAnnotation(className, classLoader);
+                    return factory.create(className, annotation, () -> asProcessorClass(classLoader.apply(className)));
+                }));
+    }
+
+    /**
+     * Checks that a class listed in the index is a processor, as the index may be older than the class.
+     *
+     * @throws IllegalArgumentException If the class does not implement {@link Processor}
+     */
+    private static Class<?> asProcessorClass(Class<?> clazz) {
+        if (!Processor.class.isAssignableFrom(clazz)) {
+            throw new IllegalArgumentException(clazz.getName() + " is annotated with @ProcessorTest, but does not implement "
+                    + Processor.class.getName() + "!");
+        }
+        return clazz;
+    }
+
+    private Stream<DynamicTest> testsFromSourceRoot(ProcessorTestFactory factory) throws IOException {
+        FunctionThatCanThrow<String, Class<?>, Exception> classLoader = discoveryClassLoader(null);
+        return processorsInSourceRoot(classLoader, true)
+                .map(rethrowChecked(c -> {
+                    ProcessorTest annotation = null;
+                    for (Annotation maybeAnnotation : c.getAnnotations()) {
+                        if (maybeAnnotation instanceof ProcessorTest) {
+                            annotation = (ProcessorTest) maybeAnnotation;
+                            break;
+                        }
+                    }
+                    if (annotation == null) {
+                        return null;
+                    }
+                    // The test loads its own copy, so that this one can be unloaded right away.
+                    String className = c.getName();
+                    return factory.create(className, annotation, () -> classLoader.apply(className));
+                }))
+                .filter(Objects::nonNull);
+    }
+
+    private Stream<DynamicTest> benchmarksFromSourceRoot() throws IOException {
+        return processorsInSourceRoot(discoveryClassLoader(null), false)
+                .map(c -> {
+                    ProcessorBenchmark annotation = c.getAnnotation(ProcessorBenchmark.class);
+                    return annotation == null ? null : processorBenchmark(c, annotation);
                 })
-                .map(sourceRootPath::relativize)
-                .map(rethrowChecked(p -> {
-                    String className = p.toString().replace(".java", "").replace(File.separator, ".");
-                    Map<String, byte[]> byteCode = compileTestUtils.compile(className).orElseThrow(() -> new CompilerException(className));
-                    AnnotationProcessorClassLoader classLoader = new AnnotationProcessorClassLoader(byteCode);
-                    Class<?> maybeProcessorClass = classLoader.loadClass(className);
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Selects the classes of this run's shard, keeping their order.
+     */
+    private List<String> inShard(List<String> classNames) {
+        return TestShards.select(classNames,
+                testDurations == null ? Collections.emptyMap() : testDurations.getRecorded(),
+                options.getShardIndex(), options.getShardCount());
+    }
+
+    /**
+     * Lazily loads every processor class in the source root, or in this run's shard of it.
+     */
+    private Stream<Class<?>> processorsInSourceRoot(FunctionThatCanThrow<String, Class<?>, Exception> classLoader,
+                                                    boolean sharded) throws IOException {
+        List<String> classNames;
+        try (Stream<Path> sourceFiles = Files.walk(sourceRootPath)) {
+            classNames = sourceFiles
+                    .filter(p -> p.getFileName().toString().endsWith(".java"))
+                    .filter(p -> {
+                        File f = p.toFile();
+                        return f.exists() && f.isFile();
+                    })
+                    .map(sourceRootPath::relativize)
+                    .map(p -> p.toString().replace(".java", "").replace(File.separator, "."))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        if (sharded) {
+            classNames = inShard(classNames);
+        }
+        return classNames.stream()
+                .<Class<?>>map(rethrowChecked(className -> {
+                    Class<?> maybeProcessorClass = classLoader.apply(className);
                     HashSet<Class<?>> interfaces = new HashSet<>();
                     Class<?> maybeProcessorSuperclass = maybeProcessorClass;
                     // A wild do-while loop appears!
@@ -83,106 +391,626 @@ public class CompileTestRunner {
                         return null;
                     }
                 }))
-                .filter(Objects::nonNull)
-                .map(rethrowChecked(c -> {
-                    ProcessorTest annotation = null;
-                    for (Annotation maybeAnnotation : c.getAnnotations()) {
-                        if (maybeAnnotation instanceof ProcessorTest) {
-                            annotation = (ProcessorTest) maybeAnnotation;
-                            break;
-                        }
-                    }
-                    if (annotation == null) {
-                        return null;
+                .filter(Objects::nonNull);
+    }
+
+    /**
+     * Builds the test for one processor. The processor class is only loaded once the test runs.
+     */
+    private DynamicTest processorTest(String name,
+                                      ProcessorTest annotation,
+                                      SupplierThatCanThrow<Class<?>, Exception> processorClass) throws IOException {
+        if (!annotation.annotation().isAnnotation() || annotation.annotation().isArray()) {
+            return DynamicTest.dynamicTest(name, () -> {
+                throw new UnsupportedOperationException("annotation must be an annotation class");
+            });
+        }
+
+        String annotationClassName = annotation.annotation().getName();
+        String stubSource = StubSources.stubSource(annotation.target(), annotationClassName);
+        if (stubSource == null) {
+            ProcessorTest finalAnnotation = annotation;
+            return DynamicTest.dynamicTest(name, () -> {
+                throw new UnsupportedOperationException("Unsupported test target type " + finalAnnotation.target().toString());
+            });
+        }
+
+        String expectedSource;
+        if (!annotation.expectedFile().isEmpty()) {
+            Path expectedSourcePath = sourceRootPath.resolve(annotation.expectedFile());
+            expectedSource = String.join("\n", Files.readAllLines(expectedSourcePath));
+        } else if (annotation.expected().length > 0) {
+            String[] rawExpectedSource = annotation.expected();
+            StringJoiner expectedSourceBuilder = new StringJoiner("\n");
+            for (int i = 0; i < rawExpectedSource.length; i++) {
+                expectedSourceBuilder.add(rawExpectedSource[i]);
+            }
+            expectedSource = expectedSourceBuilder.toString();
+        } else if (annotation.expectedErrors().length > 0 || options.isSnapshots()) {
+            expectedSource = "";
+        } else {
+            return DynamicTest.dynamicTest(name, () -> {
+                throw new IllegalArgumentException("Either one of `expected` or `expectedFile` must be set, or snapshots enabled!");
+            });
+        }
+        ProcessorSnapshot snapshot = options.isSnapshots() && annotation.expected().length == 0
+                && annotation.expectedFile().isEmpty() && annotation.expectedErrors().length == 0
+                ? new ProcessorSnapshot(sourceRootPath, name,
+                annotation.analyzeOnly() ? ProcessorSnapshot.ELEMENT_SIGNATURES : ProcessorSnapshot.CLASSES)
+                : null;
+
+        // A test with a budget is measured on its own, and one that checks diagnostics gets them only for its own stub.
+        // Time and allocations also depend on what else runs meanwhile, unlike rounds.
+        boolean measuresResources = annotation.maxProcessingMillis() >= 0 || annotation.maxAllocatedBytes() >= 0;
+        boolean hasBudget = measuresResources || annotation.maxRounds() >= 0;
+        boolean checksDiagnostics = annotation.expectedWarnings().length > 0 || annotation.expectedErrors().length > 0;
+        TestBatches.Member batchMember = testBatches == null || hasBudget || checksDiagnostics || annotation.analyzeOnly()
+                || snapshot != null || options.isCheckIncrementalProcessing() || options.isDetectLeaks()
+                ? null
+                : testBatches.add(annotationClassName, annotation.target(), expectedSource, processorClass,
+                () -> incrementalManifest != null
+                        && incrementalManifest.isUpToDate(name, testInputs(name, annotationClassName, stubSource, expectedSource, null)));
+
+        LeakTracker leakTracker = options.isDetectLeaks() ? new LeakTracker() : null;
+        return withIsolation(measuresResources || leakTracker != null, withClassLoadingReport(withLeakDetection(leakTracker, withDurationRecorded(DynamicTest.dynamicTest(name, () -> {
+            String inputs = null;
+            if (incrementalManifest != null) {
+                inputs = testInputs(name, annotationClassName, stubSource, expectedSource, snapshot);
+                if (incrementalManifest.isUpToDate(name, inputs) && (snapshot == null || !options.isUpdateSnapshots())) {
+                    throw new TestAbortedException("Skipped, since its inputs did not change since it last passed");
+                }
+                incrementalManifest.recordFailure(name);
+            }
+            if (batchMember != null && testBatches.passedInBatch(batchMember)) {
+                if (incrementalManifest != null) {
+                    incrementalManifest.recordPass(name, inputs);
+                }
+                return;
+            }
+            if (annotation.maxProcessingMillis() >= 0 || annotation.maxAllocatedBytes() >= 0) {
+                for (int i = 0; i < annotation.budgetWarmupIterations(); i++) {
+                    compileStub(annotation, stubSource, (Processor) processorClass.get().newInstance());
+                }
+            }
+            Processor processorInstance = (Processor) processorClass.get().newInstance();
+            IncrementalProcessorCheck incrementalCheck = options.isCheckIncrementalProcessing()
+                    ? new IncrementalProcessorCheck(processorInstance,
+                    IncrementalProcessorCheck.registeredCategory(processorInstance.getClass()))
+                    : null;
+            InstrumentedProcessor processor = new InstrumentedProcessor(incrementalCheck != null ? incrementalCheck : processorInstance);
+            CompilationResult generated = compileStub(annotation, stubSource, processor);
+            if (leakTracker != null) {
+                leakTracker.track("processor instance", processorInstance);
+                if (processorInstance.getClass().getClassLoader() instanceof AnnotationProcessorClassLoader) {
+                    leakTracker.track("AnnotationProcessorClassLoader", processorInstance.getClass().getClassLoader());
+                }
+                leakTracker.track("javac context", processor.getProcessingEnvironment());
+            }
+            if (options.isReportCompilationMetrics()) {
+                System.out.println(name + ": " + (annotation.analyzeOnly() ? "analyzed" : "compiled")
+                        + " Example with the processor in " + generated.getMetrics());
+            }
+            if (annotation.expectedErrors().length > 0) {
+                if (generated.isSuccess()) {
+                    throw new AssertionFailedError("Expected compilation to fail with errors "
+                            + Arrays.toString(annotation.expectedErrors()) + ", but it succeeded");
+                }
+                assertDiagnostics("error", annotation.expectedErrors(), generated.getDiagnostics(),
+                        d -> d.getKind() == Diagnostic.Kind.ERROR);
+                assertDiagnostics("warning", annotation.expectedWarnings(), generated.getDiagnostics(),
+                        CompilationDiagnostic::isWarning);
+                if (incrementalManifest != null) {
+                    incrementalManifest.recordPass(name, inputs);
+                }
+                return;
+            }
+            // A processor may fail the compilation by breaking a rule, so the rules are checked first.
+            if (incrementalCheck != null && !incrementalCheck.getViolations().isEmpty()) {
+                String n = System.lineSeparator();
+                throw new AssertionFailedError("Processor breaks the rules of incremental annotation processing in Gradle:" + n
+                        + "    " + String.join(n + "    ", incrementalCheck.getViolations()));
+            }
+            if (!generated.isSuccess()) {
+                throw new CompilerException("Example (with annotation processor)", generated.getDiagnostics());
+            }
+            assertDiagnostics("warning", annotation.expectedWarnings(), generated.getDiagnostics(),
+                    CompilationDiagnostic::isWarning);
+            String expected = snapshot != null ? "the snapshot " + snapshot.getFile() : "the expected ones";
+            if (annotation.analyzeOnly()) {
+                Map<String, String> generatedSignatures = generated.getElementSignatures().get();
+                Map<String, String> expectedSignatures = snapshot != null
+                        ? decode(recordedOrRecord(name, snapshot, encode(generatedSignatures)))
+                        : analyzeExpected(compileTestUtils, expectedBytecodeCache, expectedSource);
+                if (!expectedSignatures.equals(generatedSignatures)) {
+                    throw new AssertionFailedError("Generated classes differ from " + expected + ":" + System.lineSeparator()
+                            + ElementSignatures.diff(expectedSignatures, generatedSignatures));
+                }
+            } else {
+                Map<String, byte[]> generatedClasses = ClassComparison.canonicalize(generated.getClasses().get());
+                Map<String, byte[]> expectedClasses = snapshot != null
+                        ? recordedOrRecord(name, snapshot, generatedClasses)
+                        : compileExpected(compileTestUtils, expectedBytecodeCache, expectedSource);
+                if (!ClassComparison.same(expectedClasses, generatedClasses)) {
+                    throw new AssertionFailedError("Generated classes differ from " + expected + ":" + System.lineSeparator()
+                            + ClassComparison.diff(expectedClasses, generatedClasses));
+                }
+            }
+            assertWithinBudget(annotation, processor);
+            if (incrementalManifest != null) {
+                incrementalManifest.recordPass(name, inputs);
+            }
+        })))));
+    }
+
+    /**
+     * Reads a snapshot, or records what was generated if there is none yet, or if snapshots are being updated.
+     *
+     * @return What the snapshot holds
+     * @throws AssertionFailedError If there is no snapshot yet and snapshots are required
+     */
+    private Map<String, byte[]> recordedOrRecord(String name, ProcessorSnapshot snapshot, Map<String, byte[]> generated)
+            throws IOException {
+        if (!options.isUpdateSnapshots()) {
+            Optional<Map<String, byte[]>> recorded = snapshot.read();
+            if (recorded.isPresent()) {
+                return recorded.get();
+            }
+            if (options.isRequireSnapshots()) {
+                throw new AssertionFailedError("There is no snapshot " + snapshot.getFile()
+                        + "; record it by running the test with updateSnapshots, and commit it");
+            }
+        }
+        snapshot.write(generated);
+        System.out.println(name + ": recorded " + snapshot.getFile());
+        return generated;
+    }
+
+    /**
+     * Compiles the stub with the processor, or only analyzes it if the test compares element signatures.
+     */
+    private CompilationResult compileStub(ProcessorTest annotation, String stubSource, Processor processor) throws IOException {
+        return annotation.analyzeOnly()
+                ? compileTestUtils.analyzeForResult("Example", stubSource, processor)
+                : compileTestUtils.compileForResult("Example", stubSource, processor);
+    }
+
+    /**
+     * Fails unless every expected message is part of the message of some diagnostic of the given kind.
+     */
+    private static void assertDiagnostics(String kind, String[] expectedMessages, List<CompilationDiagnostic> diagnostics,
+                                          Predicate<CompilationDiagnostic> isOfKind) {
+        for (String expectedMessage : expectedMessages) {
+            boolean found = false;
+            for (CompilationDiagnostic diagnostic : diagnostics) {
+                if (isOfKind.test(diagnostic) && diagnostic.getMessage().contains(expectedMessage)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                String n = System.lineSeparator();
+                throw new AssertionFailedError("Expected a " + kind + " containing \"" + expectedMessage + "\", but got:" + n
+                        + diagnostics.stream().filter(isOfKind).map(Object::toString).collect(Collectors.joining(n)));
+            }
+        }
+    }
+
+    /**
+     * Fails if the processor took longer, allocated more or ran more rounds than its test allows.
+     *
+     * @throws TestAbortedException If the test has an allocation budget, but the JVM cannot measure allocations
+     */
+    private static void assertWithinBudget(ProcessorTest annotation, InstrumentedProcessor processor) {
+        if (annotation.maxAllocatedBytes() >= 0 && processor.getAllocatedBytes() < 0) {
+            throw new TestAbortedException("Cannot check the budget of " + annotation.maxAllocatedBytes()
+                    + " allocated bytes, since " + System.getProperty("java.vm.name") + " "
+                    + System.getProperty("java.vm.version") + " cannot measure allocations per thread");
+        }
+        long millis = processor.getNanos() / 1_000_000;
+        if (annotation.maxProcessingMillis() >= 0 && millis > annotation.maxProcessingMillis()) {
+            throw new AssertionFailedError("Processor took " + millis + " ms, over its budget of "
+                    + annotation.maxProcessingMillis() + " ms");
+        }
+        long allocatedBytes = processor.getAllocatedBytes();
+        if (annotation.maxAllocatedBytes() >= 0 && allocatedBytes > annotation.maxAllocatedBytes()) {
+            throw new AssertionFailedError("Processor allocated " + allocatedBytes + " bytes, over its budget of "
+                    + annotation.maxAllocatedBytes() + " bytes");
+        }
+        if (annotation.maxRounds() >= 0 && processor.getRounds() > annotation.maxRounds()) {
+            throw new AssertionFailedError("Processor ran " + processor.getRounds() + " rounds, over its budget of "
+                    + annotation.maxRounds() + " rounds");
+        }
+    }
+
+    /**
+     * Runs a test that measures itself, against a time or allocation budget or for leaks, only once no other test is running,
+     * and holds the others back until it is done. Any other test runs alongside the rest.
+     */
+    private DynamicTest withIsolation(boolean runsAlone, DynamicTest test) {
+        Lock lock = runsAlone ? isolation.writeLock() : isolation.readLock();
+        DynamicTest isolated = DynamicTest.dynamicTest(test.getDisplayName(), () -> {
+            lock.lockInterruptibly();
+            try {
+                test.getExecutable().execute();
+            } finally {
+                lock.unlock();
+            }
+        });
+        if (runsAlone) {
+            testsRunAlone.add(isolated);
+        }
+        return isolated;
+    }
+
+    /**
+     * Records how long a test took, if test durations are kept. Skipped tests keep their earlier duration.
+     */
+    private DynamicTest withDurationRecorded(DynamicTest test) {
+        if (testDurations == null) {
+            return test;
+        }
+        return DynamicTest.dynamicTest(test.getDisplayName(), () -> {
+            long start = System.nanoTime();
+            boolean skipped = false;
+            try {
+                test.getExecutable().execute();
+            } catch (TestAbortedException e) {
+                skipped = true;
+                throw e;
+            } finally {
+                if (!skipped) {
+                    testDurations.record(test.getDisplayName(), (System.nanoTime() - start) / 1_000_000);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fails a test that passed if what it compiled with is not collected once it is over.
+     */
+    private DynamicTest withLeakDetection(LeakTracker leakTracker, DynamicTest test) {
+        if (leakTracker == null) {
+            return test;
+        }
+        return DynamicTest.dynamicTest(test.getDisplayName(), () -> {
+            leakTracker.start();
+            test.getExecutable().execute();
+            List<String> leaked = leakTracker.awaitCollection();
+            if (!leaked.isEmpty()) {
+                throw new AssertionFailedError("Still reachable after the test: " + String.join(", ", leaked));
+            }
+        });
+    }
+
+    /**
+     * Prints how many classes are loaded and how much metaspace they take after the test,
+     * if {@link CompileTestOptions#reportClassLoading(boolean)} is set.
+     */
+    private DynamicTest withClassLoadingReport(DynamicTest test) {
+        if (!options.isReportClassLoading()) {
+            return test;
+        }
+        return DynamicTest.dynamicTest(test.getDisplayName(), () -> {
+            try {
+                test.getExecutable().execute();
+            } finally {
+                System.out.println(test.getDisplayName() + ": " + ClassLoadingStats.now());
+            }
+        });
+    }
+
+    /**
+     * Hashes everything a test depends on besides the environment: the stub, the expected source or snapshot,
+     * and the sources of the processor and the annotation, with every source file they reference.
+     * If the classes of the source root are not known, every source file counts.
+     */
+    private String testInputs(String name, String annotationClassName, String stubSource, String expectedSource,
+                              ProcessorSnapshot snapshot) throws IOException {
+        MessageDigest digest = Digests.sha256();
+        Digests.update(digest, name);
+        Digests.update(digest, stubSource);
+        Digests.update(digest, expectedSource);
+        if (snapshot != null && Files.isRegularFile(snapshot.getFile())) {
+            digest.update(Files.readAllBytes(snapshot.getFile()));
+        }
+        Map<String, byte[]> classes = discoveredClasses;
+        Collection<String> sourceFiles;
+        if (classes != null) {
+            sourceFiles = IncrementalManifest.sourceFiles(classes, Arrays.asList(name, annotationClassName));
+        } else {
+            try (Stream<Path> files = Files.walk(sourceRootPath)) {
+                sourceFiles = files
+                        .filter(p -> p.getFileName().toString().endsWith(".java"))
+                        .map(p -> sourceRootPath.relativize(p).toString().replace(File.separatorChar, '/'))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+        for (String sourceFile : sourceFiles) {
+            Path path = sourceRootPath.resolve(sourceFile);
+            Digests.update(digest, sourceFile);
+            if (Files.isRegularFile(path)) {
+                digest.update(Files.readAllBytes(path));
+            }
+        }
+        return Digests.hex(digest.digest());
+    }
+
+    /**
+     * Builds the benchmark for one processor. Each iteration compiles the stub with a new
+     * instance of the processor; the time spent inside the processor is measured by wrapping it.
+     */
+    private DynamicTest processorBenchmark(Class<?> processorClass, ProcessorBenchmark annotation) {
+        String name = processorClass.getName();
+        String stubSource = StubSources.stubSource(annotation.target(), annotation.annotation().getName());
+        if (stubSource == null) {
+            return DynamicTest.dynamicTest(name, () -> {
+                throw new UnsupportedOperationException("Unsupported benchmark target type " + annotation.target().toString());
+            });
+        }
+        if (annotation.warmupIterations() < 0 || annotation.iterations() < 1) {
+            return DynamicTest.dynamicTest(name, () -> {
+                throw new IllegalArgumentException("warmupIterations must not be negative and iterations must be at least 1!");
+            });
+        }
+        return DynamicTest.dynamicTest(name, () -> {
+            int iterations = annotation.iterations();
+            double[] processor = new double[iterations];
+            double[] javac = new double[iterations];
+            double[] total = new double[iterations];
+            for (int i = -annotation.warmupIterations(); i < iterations; i++) {
+                InstrumentedProcessor instrumented = new InstrumentedProcessor((Processor) processorClass.newInstance());
+                CompilationResult result = compileTestUtils.compileForResult("Example", stubSource, instrumented);
+                if (!result.isSuccess()) {
+                    throw new CompilerException("Example (with annotation processor)", result.getDiagnostics());
+                }
+                if (i >= 0) {
+                    total[i] = result.getMetrics().getTotalTime().toNanos() / 1_000_000.0;
+                    processor[i] = instrumented.getNanos() / 1_000_000.0;
+                    javac[i] = total[i] - processor[i];
+                }
+            }
+            BenchmarkReport.Result result = new BenchmarkReport.Result(
+                    name + ".process", annotation.warmupIterations(), processor, javac, total);
+            benchmarkReport.add(result);
+            System.out.println(name + ": " + result);
+        });
+    }
+
+    /**
+     * Builds the scalability analysis of one processor. At each size, the synthetic classes are
+     * compiled once to warm up, then a few more times, keeping the median time of the processor.
+     */
+    private DynamicTest scalabilityTest(String name,
+                                        ProcessorTest annotation,
+                                        SupplierThatCanThrow<Class<?>, Exception> processorClass) {
+        if (!annotation.annotation().isAnnotation() || annotation.annotation().isArray()) {
+            return DynamicTest.dynamicTest(name, () -> {
+                throw new UnsupportedOperationException("annotation must be an annotation class");
+            });
+        }
+        if (annotation.expectedErrors().length > 0) {
+            return DynamicTest.dynamicTest(name, () -> {
+                throw new TestAbortedException("Skipped, since the processor is expected to fail");
+            });
+        }
+        String annotationClassName = annotation.annotation().getName();
+        if (StubSources.syntheticSource(annotation.target(), annotationClassName, "Example", 1) == null) {
+            return DynamicTest.dynamicTest(name, () -> {
+                throw new UnsupportedOperationException("Unsupported test target type " + annotation.target().toString());
+            });
+        }
+        return DynamicTest.dynamicTest(name, () -> {
+            int[] sizes = options.getScalabilitySizes();
+            double[] processorMillis = new double[sizes.length];
+            double[] javacMillis = new double[sizes.length];
+            for (int s = 0; s < sizes.length; s++) {
+                LinkedHashMap<String, String> sources = new LinkedHashMap<>();
+                for (int i = 0; i < sizes[s]; i++) {
+                    String className = "Example" + i;
+                    sources.put(className, StubSources.syntheticSource(annotation.target(), annotationClassName, className, SYNTHETIC_MEMBERS));
+                }
+                double[] processor = new double[3];
+                double[] javac = new double[processor.length];
+                for (int i = -1; i < processor.length; i++) {
+                    InstrumentedProcessor instrumented = new InstrumentedProcessor((Processor) processorClass.get().newInstance());
+                    CompilationResult result = compileTestUtils.compileBatch(sources, Collections.singletonList(instrumented));
+                    if (!result.isSuccess()) {
+                        throw new CompilerException(sizes[s] + " synthetic classes (with annotation processor)", result.getDiagnostics());
                     }
-                    if (!annotation.annotation().isAnnotation() || annotation.annotation().isArray()) {
-                        return DynamicTest.dynamicTest(c.getName(), () -> {
-                            throw new UnsupportedOperationException("annotation must be an annotation class");
-                        });
+                    if (i >= 0) {
+                        processor[i] = instrumented.getNanos() / 1_000_000.0;
+                        javac[i] = result.getMetrics().getTotalTime().toNanos() / 1_000_000.0 - processor[i];
                     }
+                }
+                Arrays.sort(processor);
+                Arrays.sort(javac);
+                processorMillis[s] = processor[processor.length / 2];
+                javacMillis[s] = javac[javac.length / 2];
+            }
+            ScalabilityReport.Result result = new ScalabilityReport.Result(name, annotation.target().toString(),
+                    sizes, SYNTHETIC_MEMBERS, processorMillis, javacMillis, options.getMaxScalingExponent());
+            scalabilityReport.add(result);
+            System.out.println(name + ": " + result);
+            if (result.isSuperLinear()) {
+                throw new AssertionFailedError(name + " scales super-linearly: " + result);
+            }
+        });
+    }
 
-                    String annotationClassName = annotation.annotation().getName();
-                    String stubSource;
-                    if (annotation.target() == ElementType.TYPE) {
-                        stubSource = new StringBuilder()
-                                .append("import " + annotationClassName + ";\n")
-                                .append("@" + annotationClassName + "\n")
-                                .append("public class Example {}")
-                                .toString();
-                    } else if (annotation.target() == ElementType.METHOD) {
-                        stubSource = new StringBuilder()
-                                .append("import " + annotationClassName + ";\n")
-                                .append("public class Example {\n")
-                                .append("    @" + annotationClassName + "\n")
-                                .append("    public void example() {}\n")
-                                .append("}")
-                                .toString();
-                    } else if (annotation.target() == ElementType.CONSTRUCTOR) {
-                        stubSource = new StringBuilder()
-                                .append("import " + annotationClassName + ";\n")
-                                .append("public class Example {\n")
-                                .append("    @" + annotationClassName + "\n")
-                                .append("    public Example() {}\n")
-                                .append("}")
-                                .toString();
-                    } else if (annotation.target() == ElementType.FIELD) {
-                        stubSource = new StringBuilder()
-                                .append("import " + annotationClassName + ";\n")
-                                .append("public class Example {\n")
-                                .append("    @" + annotationClassName + "\n")
-                                .append("    public int example;\n")
-                                .append("}")
-                                .toString();
-                    } else {
-                        ProcessorTest finalAnnotation = annotation;
-                        return DynamicTest.dynamicTest(c.getName(), () -> {
-                            throw new UnsupportedOperationException("Unsupported test target type " + finalAnnotation.target().toString());
-                        });
-                    }
+    /**
+     * Compiles the given sources, or the whole source root if <code>null</code>, in a single
+     * javac invocation. Classes that reach no test's classes through their references are defined
+     * once, in one shared classloader. Each test file gets a thin child of it, holding the classes
+     * of that file along with every class that reaches them and no other test file, so that no
+     * shared class ever resolves a class of a test in the wrong loader. Classes that reach more than
+     * one test file are loaded from a standalone classloader holding every class, as if compiled on their own.
+     * Nothing keeps a child alive but the classes loaded from it, so the classes of a processor
+     * can be unloaded as soon as its test is done with them. If that compilation fails,
+     * for example because two files declare the same class, each file is compiled on its own.
+     */
+    private FunctionThatCanThrow<String, Class<?>, Exception> discoveryClassLoader(Collection<String> classNames)
+            throws IOException {
+        Optional<Map<String, byte[]>> byteCode = classNames == null
+                ? compileTestUtils.compileSourceRoot()
+                : compileTestUtils.compileSources(classNames);
+        if (byteCode.isPresent()) {
+            Map<String, byte[]> classes = byteCode.get();
+            discoveredClasses = classes;
+            Map<String, Set<String>> testFilesReached = testFilesReached(classes);
+            HashMap<String, byte[]> sharedClasses = new HashMap<>();
+            HashMap<String, Map<String, byte[]>> classesByTestFile = new HashMap<>();
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                Set<String> reached = testFilesReached.get(entry.getKey());
+                if (reached.isEmpty()) {
+                    sharedClasses.put(entry.getKey(), entry.getValue());
+                } else if (reached.size() == 1) {
+                    classesByTestFile
+                            .computeIfAbsent(reached.iterator().next(), k -> new HashMap<>())
+                            .put(entry.getKey(), entry.getValue());
+                }
+            }
+            AnnotationProcessorClassLoader sharedClassLoader = new AnnotationProcessorClassLoader(sharedClasses);
+            return className -> {
+                if (!classes.containsKey(className)) {
+                    throw new CompilerException(className);
+                }
+                Set<String> reached = testFilesReached.get(className);
+                if (reached.isEmpty()) {
+                    return sharedClassLoader.loadClass(className);
+                }
+                if (reached.size() == 1) {
+                    Map<String, byte[]> ownClasses = classesByTestFile.get(reached.iterator().next());
+                    return new AnnotationProcessorClassLoader(ownClasses, sharedClassLoader).loadClass(className);
+                }
+                return new AnnotationProcessorClassLoader(classes).loadClass(className);
+            };
+        }
+        // Only the bytecode is kept, so a class loaded again gets a new loader without compiling again.
+        ConcurrentHashMap<String, Map<String, byte[]>> classesBySourceFile = new ConcurrentHashMap<>();
+        return className -> {
+            String sourceClassName = ProcessorTestIndex.topLevelName(className);
+            Map<String, byte[]> classes = classesBySourceFile.get(sourceClassName);
+            if (classes == null) {
+                classes = compileTestUtils.compile(sourceClassName)
+                        .orElseThrow(() -> new CompilerException(className));
+                classesBySourceFile.put(sourceClassName, classes);
+            }
+            return new AnnotationProcessorClassLoader(classes).loadClass(className);
+        };
+    }
 
-                    String expectedSource;
-                    if (!annotation.expectedFile().isEmpty()) {
-                        Path expectedSourcePath = sourceRootPath.resolve(annotation.expectedFile());
-                        expectedSource = String.join("\n", Files.readAllLines(expectedSourcePath));
-                    } else if (annotation.expected().length > 0) {
-                        String[] rawExpectedSource = annotation.expected();
-                        StringJoiner expectedSourceBuilder = new StringJoiner("\n");
-                        for (int i = 0; i < rawExpectedSource.length; i++) {
-                            expectedSourceBuilder.add(rawExpectedSource[i]);
-                        }
-                        expectedSource = expectedSourceBuilder.toString();
-                    } else {
-                        return DynamicTest.dynamicTest(c.getName(), () -> {
-                            throw new IllegalArgumentException("Either one of `expected` or `expectedFile` must be set!");
-                        });
-                    }
+    /**
+     * Finds, for every class, the test files it reaches through its references, directly or not.
+     * A test file is a source file with a class that references {@link ProcessorTest} or {@link ProcessorBenchmark}.
+     *
+     * @return The top level class names of the test files each class reaches, keyed by binary name
+     */
+    private static Map<String, Set<String>> testFilesReached(Map<String, byte[]> classes) {
+        HashMap<String, Set<String>> referencedBy = new HashMap<>();
+        HashMap<String, Set<String>> testFilesReached = new HashMap<>();
+        HashMap<String, List<String>> testFiles = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            String className = entry.getKey();
+            testFilesReached.put(className, new HashSet<>());
+            Set<String> references = IncrementalManifest.references(entry.getValue());
+            for (String reference : references) {
+                if (classes.containsKey(reference)) {
+                    referencedBy.computeIfAbsent(reference, k -> new HashSet<>()).add(className);
+                }
+            }
+            if (references.contains(ProcessorTest.class.getName())
+                    || references.contains(ProcessorBenchmark.class.getName())) {
+                testFiles.put(ProcessorTestIndex.topLevelName(className), new ArrayList<>());
+            }
+        }
+        for (String className : classes.keySet()) {
+            List<String> fileClasses = testFiles.get(ProcessorTestIndex.topLevelName(className));
+            if (fileClasses != null) {
+                fileClasses.add(className);
+            }
+        }
+        testFiles.forEach((testFile, fileClasses) -> {
+            ArrayDeque<String> pending = new ArrayDeque<>(fileClasses);
+            while (!pending.isEmpty()) {
+                String className = pending.pop();
+                if (testFilesReached.get(className).add(testFile)) {
+                    pending.addAll(referencedBy.getOrDefault(className, Collections.emptySet()));
+                }
+            }
+        });
+        return testFilesReached;
+    }
 
-                    return DynamicTest.dynamicTest(c.getName(), () -> {
-                        byte[] generatedBytecode = compileTestUtils
-                                .compileWithAnnotationProcessor("Example", stubSource, (Processor) c.newInstance())
-                                .orElseThrow(() -> new CompilerException("Example (with annotation processor)"))
-                                .get("Example");
-                        byte[] expectedBytecode = compileTestUtils
-                                .compileWithAnnotationProcessor("Example", expectedSource, null)
-                                .orElseThrow(() -> new CompilerException("Example (no annotation processor)"))
-                                .get("Example");
-                        generatedBytecode = stripDebugInfo(generatedBytecode);
-                        expectedBytecode = stripDebugInfo(expectedBytecode);
-                        try {
-                            Assertions.assertArrayEquals(expectedBytecode, generatedBytecode);
-                        } catch (AssertionFailedError e) {
-                            System.err.println("Expected:");
-                            System.err.println(Arrays.toString(expectedBytecode));
-                            System.err.println("Actual:");
-                            System.err.println(Arrays.toString(generatedBytecode));
-                            throw e;
-                        }
-                    });
-                }))
-                .filter(Objects::nonNull);
+    /**
+     * Compiles an expected source without an annotation processor and puts every resulting
+     * class in canonical form, going through the cache if there is one.
+     */
+    private static Map<String, byte[]> compileExpected(CompileTestUtils compileTestUtils,
+                                                       ExpectedBytecodeCache cache,
+                                                       String expectedSource) throws IOException, CompilerException {
+        String key = null;
+        if (cache != null) {
+            key = ExpectedBytecodeCache.key(compileTestUtils.fingerprint(), "Example", expectedSource);
+            Optional<Map<String, byte[]>> cached = cache.get(key);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+        }
+        CompilationResult result = compileTestUtils.compileForResult("Example", expectedSource, null);
+        Map<String, byte[]> compiled = result.getClasses()
+                .orElseThrow(() -> new CompilerException("Example (no annotation processor)", result.getDiagnostics()));
+        Map<String, byte[]> stripped = ClassComparison.canonicalize(compiled);
+        if (cache != null) {
+            cache.put(key, stripped);
+        }
+        return stripped;
     }
 
-    private static byte[] stripDebugInfo(byte[] bytecode) {
+    /**
+     * Analyzes an expected source without an annotation processor, going through the cache if there is one.
+     * The cache, like snapshots, holds the element signatures as text, apart from the bytecode of the same source.
+     */
+    private static Map<String, String> analyzeExpected(CompileTestUtils compileTestUtils,
+                                                       ExpectedBytecodeCache cache,
+                                                       String expectedSource) throws IOException, CompilerException {
+        String key = null;
+        if (cache != null) {
+            key = ExpectedBytecodeCache.key(compileTestUtils.fingerprint(), "Example (element signatures)", expectedSource);
+            Optional<Map<String, byte[]>> cached = cache.get(key);
+            if (cached.isPresent()) {
+                return decode(cached.get());
+            }
+        }
+        CompilationResult result = compileTestUtils.analyzeForResult("Example", expectedSource, null);
+        Map<String, String> signatures = result.getElementSignatures()
+                .orElseThrow(() -> new CompilerException("Example (no annotation processor)", result.getDiagnostics()));
+        if (cache != null) {
+            cache.put(key, encode(signatures));
+        }
+        return signatures;
+    }
+
+    private static Map<String, byte[]> encode(Map<String, String> signatures) {
+        TreeMap<String, byte[]> encoded = new TreeMap<>();
+        signatures.forEach((name, signature) -> encoded.put(name, signature.getBytes(StandardCharsets.UTF_8)));
+        return encoded;
+    }
+
+    private static Map<String, String> decode(Map<String, byte[]> encoded) {
+        TreeMap<String, String> signatures = new TreeMap<>();
+        encoded.forEach((name, signature) -> signatures.put(name, new String(signature, StandardCharsets.UTF_8)));
+        return signatures;
+    }
+
+    /**
+     * Removes line numbers, local variable names and other debug information from a class,
+     * so that only what the compiler generated is compared.
+     *
+     * @param bytecode Bytecode of the class
+     * @return Bytecode of the class without debug information
+     */
+    public static byte[] stripDebugInfo(byte[] bytecode) {
         ClassReader reader = new ClassReader(bytecode);
         ClassWriter writer = new ClassWriter(0);
         reader.accept(writer, ClassReader.SKIP_DEBUG);
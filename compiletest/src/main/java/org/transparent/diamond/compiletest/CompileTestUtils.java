@@ -1,33 +1,44 @@
 package org.transparent.diamond.compiletest;
 
-import com.sun.tools.javac.file.JavacFileManager;
+import com.sun.source.util.JavacTask;
 import org.transparent.diamond.DiamondConstants;
 
 import javax.annotation.processing.Processor;
-import javax.tools.DiagnosticListener;
-import javax.tools.JavaCompiler;
-import javax.tools.JavaFileObject;
-import javax.tools.StandardLocation;
+import javax.tools.*;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.*;
-
-import static org.transparent.diamond.compiletest.LambdaUtils.rethrowChecked;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Various compile test utils intended to compile stuff at runtime.
+ * <p>
+ * The classpath is indexed once, on first use, and shared by every compilation
+ * until this instance is {@link #close() closed}. Compilations keep no other
+ * shared state, so one instance may be used from several threads at once.
  */
-public class CompileTestUtils {
+public class CompileTestUtils implements Closeable {
 
     private static final DiagnosticListener<JavaFileObject> SYS_ERR_DIAGNOSTICS = (d) -> {
         System.err.println(d.toString());
     };
+    private static volatile JavaCompiler systemCompiler;
     private final JavaCompiler compiler;
     private final File sourceRoot;
-    private final HashSet<File> classpath;
+    private final LinkedHashSet<File> classpath;
+    private volatile SharedFileManager sharedFileManager;
+    private volatile String fingerprint;
+    private volatile JavacContextPool contextPool;
+    private volatile int contextPoolSize;
+    private volatile InMemoryFileManager pooledFileManager;
+    private volatile int maxConsoleDiagnostics = Integer.MAX_VALUE;
 
     /**
      * Builds an instance of CompileTestUtils that wraps the system Java compiler.
@@ -37,9 +48,9 @@ public class CompileTestUtils {
      * @throws RuntimeException If URI decoding of the Diamond jar file location fails
      */
     public CompileTestUtils(File sourceRoot, Collection<File> classpath) {
-        this.compiler = buildCompiler();
+        this.compiler = systemCompiler();
         this.sourceRoot = sourceRoot;
-        this.classpath = new HashSet<>();
+        this.classpath = new LinkedHashSet<>();
         if (classpath != null) {
             this.classpath.addAll(classpath);
         }
@@ -86,6 +97,63 @@ public class CompileTestUtils {
         }
     }
 
+    /**
+     * The system compiler is stateless, so it is looked up once and shared by every instance.
+     */
+    private static JavaCompiler systemCompiler() {
+        JavaCompiler compiler = systemCompiler;
+        if (compiler == null) {
+            compiler = buildCompiler();
+            systemCompiler = compiler;
+        }
+        return compiler;
+    }
+
+    /**
+     * Reuses warm javac contexts across compilations without an annotation processor,
+     * instead of starting every compilation from a cold context. A reused context keeps
+     * the symbols it read from the platform and the classpath, and forgets everything
+     * compiled from sources; a context whose compilation threw is discarded.
+     * Compilations with an annotation processor always start from a cold context,
+     * since javac cannot run annotation processing on a reused one.
+     * <p>
+     * This relies on javac's internal task pool, so it needs JDK 9 or above and
+     * <code>com.sun.tools.javac.api</code> exported to Diamond. Otherwise, every
+     * compilation keeps starting from a cold context.
+     *
+     * @param maxPoolSize Maximum number of idle contexts to keep, or 0 to stop pooling.
+     * @return This instance
+     * @throws IllegalArgumentException If maxPoolSize is negative
+     */
+    public CompileTestUtils pooledContexts(int maxPoolSize) {
+        if (maxPoolSize < 0) {
+            throw new IllegalArgumentException("maxPoolSize must not be negative!");
+        }
+        this.contextPoolSize = maxPoolSize;
+        this.contextPool = maxPoolSize > 0 && JavacContextPool.isSupported()
+                ? JavacContextPool.create(maxPoolSize)
+                : null;
+        return this;
+    }
+
+    /**
+     * Limits how many diagnostics of each compilation are printed to {@link System#err}, along with
+     * anything else javac prints, which goes to {@link System#out}. Every diagnostic is kept in the
+     * {@link CompilationResult} regardless, so callers that check them can turn printing off entirely.
+     *
+     * @param maxDiagnostics Maximum number of diagnostics printed per compilation, or 0 to print nothing.
+     *                       Defaults to {@link Integer#MAX_VALUE}, which prints everything.
+     * @return This instance
+     * @throws IllegalArgumentException If maxDiagnostics is negative
+     */
+    public CompileTestUtils consoleDiagnostics(int maxDiagnostics) {
+        if (maxDiagnostics < 0) {
+            throw new IllegalArgumentException("maxDiagnostics must not be negative!");
+        }
+        this.maxConsoleDiagnostics = maxDiagnostics;
+        return this;
+    }
+
     /**
      * Compiles the given class using the system Java compiler.
      * The source code for the class (and any dependencies) will be
@@ -114,7 +182,7 @@ public class CompileTestUtils {
      * @throws IOException If an error occurs in reading source files or writing output files.
      */
     public Optional<Map<String, byte[]>> compileWithAnnotationProcessor(String clazzName, Processor processor) throws IOException {
-        return compileWithAnnotationProcessor(clazzName, null, null);
+        return compileWithAnnotationProcessor(clazzName, null, processor);
     }
 
     /**
@@ -131,81 +199,363 @@ public class CompileTestUtils {
      * @throws IOException If an error occurs in reading source files or writing output files.
      */
     public Optional<Map<String, byte[]>> compileWithAnnotationProcessor(String clazzName, String clazzSource, Processor processor) throws IOException {
-        String outputPathName = Long.toString(System.currentTimeMillis());
-        Path outputPath = Files.createTempDirectory(outputPathName);
-        String outputClassPathBase = clazzName.replace(".", File.separator);
-        try (JavacFileManager fileManager = (JavacFileManager) this.compiler.getStandardFileManager(
-                SYS_ERR_DIAGNOSTICS,
-                Locale.ROOT,
-                StandardCharsets.UTF_8
-        )) {
-            ArrayList<File> finalClasspath = new ArrayList<>(this.classpath);
-            finalClasspath.add(sourceRoot);
-            finalClasspath.add(outputPath.toFile());
-            fileManager.setLocation(StandardLocation.CLASS_PATH, finalClasspath);
-            fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(outputPath.toFile()));
-            File inputFile;
-            if (clazzSource == null) {
-                inputFile = new File(sourceRoot, clazzName.replace('.', File.separatorChar) + ".java");
-            } else {
-                inputFile = new File(outputPath.toFile(), outputClassPathBase + ".java");
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(inputFile))) {
-                    writer.write(clazzSource);
-                }
+        return compileForResult(clazzName, clazzSource, processor).getClasses();
+    }
+
+    /**
+     * Compiles the given class like {@link #compileWithAnnotationProcessor(String, String, Processor)},
+     * and also records how long each javac phase and annotation processing round took.
+     *
+     * @param clazzName   Name of the class to compile, with packages separated by dots.
+     * @param clazzSource Optional source of the class to compile. If null, the
+     *                    source code for the class (and any dependencies) will be
+     *                    searched for under the {@link CompileTestUtils#sourceRoot}.
+     * @param processor   Annotation processor to use. May be <code>null</code>.
+     * @return The generated bytecode, if compilation succeeds, its diagnostics, and the {@link CompilationMetrics} of the compilation.
+     * @throws IOException If an error occurs in reading source files or writing output files.
+     */
+    public CompilationResult compileForResult(String clazzName, String clazzSource, Processor processor) throws IOException {
+        CompilationResult result = compileOne(clazzName, clazzSource, processor, false);
+        if (result.isSuccess() && !result.getClasses().get().containsKey(clazzName)) {
+            return result.asFailure();
+        }
+        return result;
+    }
+
+    /**
+     * Compiles the given class like {@link #compileForResult(String, String, Processor)}, but stops once
+     * it is analyzed, after annotation processing, attribution and flow analysis, without generating
+     * or writing any class file. The classes are described by their {@link CompilationResult#getElementSignatures()
+     * element signatures} instead.
+     *
+     * @param clazzName   Name of the class to compile, with packages separated by dots.
+     * @param clazzSource Optional source of the class to compile. If null, the
+     *                    source code for the class (and any dependencies) will be
+     *                    searched for under the {@link CompileTestUtils#sourceRoot}.
+     * @param processor   Annotation processor to use. May be <code>null</code>.
+     * @return The element signatures and any source files or resources generated by the processor,
+     * if analysis succeeds, its diagnostics, and the {@link CompilationMetrics} of the compilation.
+     * @throws IOException If an error occurs in reading source files or writing output files.
+     */
+    public CompilationResult analyzeForResult(String clazzName, String clazzSource, Processor processor) throws IOException {
+        CompilationResult result = compileOne(clazzName, clazzSource, processor, true);
+        if (result.isSuccess() && !result.getElementSignatures().get().containsKey(clazzName)) {
+            return result.asFailure();
+        }
+        return result;
+    }
+
+    private CompilationResult compileOne(String clazzName, String clazzSource, Processor processor, boolean analyzeOnly)
+            throws IOException {
+        SharedFileManager sharedFileManager = sharedFileManager();
+        InMemoryFileManager fileManager = new InMemoryFileManager(sharedFileManager);
+        JavaFileObject inputFile;
+        if (clazzSource == null) {
+            inputFile = sharedFileManager.getSourceFile(sourceRoot, clazzName);
+            if (inputFile == null) {
+                throw new FileNotFoundException(new File(sourceRoot, clazzName.replace('.', File.separatorChar) + ".java").getPath());
             }
-            Path outputClassPath = outputPath.resolve(outputClassPathBase + ".class");
-            ArrayList<String> options = new ArrayList<>();
-            if (isJava9OrAbove()) {
-                for (String export : DiamondConstants.REQUIRED_EXPORTS) {
-                    options.add("--add-exports");
-                    options.add("jdk.compiler/" + export + "=ALL-UNNAMED");
-                }
+        } else {
+            inputFile = InMemoryFileManager.sourceFile(clazzName, clazzSource);
+        }
+        List<String> classesForAnnotationProcessing = null;
+        if (processor != null) {
+            classesForAnnotationProcessing = Collections.singletonList(clazzName);
+        }
+        return compileFiles(
+                clazzName,
+                fileManager,
+                classesForAnnotationProcessing,
+                Collections.singletonList(inputFile),
+                processor == null ? Collections.emptyList() : Collections.singletonList(processor),
+                analyzeOnly
+        );
+    }
+
+    /**
+     * Compiles every source file under the {@link CompileTestUtils#sourceRoot}
+     * in a single invocation of the system Java compiler.
+     *
+     * @return If compilation succeeds, returns an Optional containing the generated bytecode
+     * for all compiled classes. If compilation fails, returns {@link Optional#empty()}.
+     * @throws IOException If an error occurs in reading source files or writing output files.
+     */
+    public Optional<Map<String, byte[]>> compileSourceRoot() throws IOException {
+        return compileFiles(sharedFileManager().getSourceFiles(sourceRoot));
+    }
+
+    /**
+     * Compiles the given classes from the {@link CompileTestUtils#sourceRoot}
+     * in a single invocation of the system Java compiler. Their dependencies
+     * are searched for under the source root as well.
+     *
+     * @param clazzNames Names of the top level classes to compile, with packages separated by dots.
+     * @return If compilation succeeds, returns an Optional containing the generated bytecode
+     * for all compiled classes. If compilation fails, returns {@link Optional#empty()}.
+     * @throws IOException If an error occurs in reading source files or writing output files.
+     */
+    public Optional<Map<String, byte[]>> compileSources(Collection<String> clazzNames) throws IOException {
+        SharedFileManager sharedFileManager = sharedFileManager();
+        ArrayList<JavaFileObject> sourceFiles = new ArrayList<>();
+        for (String clazzName : clazzNames) {
+            JavaFileObject sourceFile = sharedFileManager.getSourceFile(sourceRoot, clazzName);
+            if (sourceFile == null) {
+                throw new FileNotFoundException(new File(sourceRoot, clazzName.replace('.', File.separatorChar) + ".java").getPath());
+            }
+            sourceFiles.add(sourceFile);
+        }
+        return compileFiles(sourceFiles);
+    }
+
+    private Optional<Map<String, byte[]>> compileFiles(List<JavaFileObject> sourceFiles) throws IOException {
+        if (sourceFiles.isEmpty()) {
+            return Optional.of(new HashMap<>());
+        }
+        return compileFiles(sourceFiles.size() + " source files", new InMemoryFileManager(sharedFileManager()), null, sourceFiles, Collections.emptyList(), false)
+                .getClasses();
+    }
+
+    /**
+     * Compiles several in-memory classes in a single invocation of the system Java compiler,
+     * running every given annotation processor over all of them.
+     *
+     * @param clazzSources Source code of each class, keyed by its name with packages separated by dots.
+     * @param processors   Annotation processors to use, in order. May be empty.
+     * @return The generated bytecode, if compilation succeeds, its diagnostics, and the {@link CompilationMetrics} of the compilation.
+     * @throws IOException If an error occurs in reading source files or writing output files.
+     */
+    CompilationResult compileBatch(Map<String, String> clazzSources, List<? extends Processor> processors) throws IOException {
+        ArrayList<JavaFileObject> sourceFiles = new ArrayList<>();
+        for (Map.Entry<String, String> clazzSource : clazzSources.entrySet()) {
+            sourceFiles.add(InMemoryFileManager.sourceFile(clazzSource.getKey(), clazzSource.getValue()));
+        }
+        return compileFiles(
+                clazzSources.size() + " batched classes",
+                new InMemoryFileManager(sharedFileManager()),
+                processors.isEmpty() ? null : new ArrayList<>(clazzSources.keySet()),
+                sourceFiles,
+                processors,
+                false
+        );
+    }
+
+    private CompilationResult compileFiles(String unit,
+                                           InMemoryFileManager fileManager,
+                                           List<String> classesForAnnotationProcessing,
+                                           List<JavaFileObject> compilationUnits,
+                                           List<? extends Processor> processors,
+                                           boolean analyzeOnly) throws IOException {
+        List<String> options = compilerOptions();
+        if (processors.isEmpty()) {
+            // Without an explicit processor this is vanilla javac: don't pick up
+            // processors (such as Diamond's own test indexer) from the classpath.
+            options.add("-proc:none");
+        }
+        // Output and diagnostics are collected per compilation, without any locking, and printed
+        // in one bounded piece, so that compilations running in parallel don't interleave their messages.
+        StringWriter output = new StringWriter();
+        ArrayList<CompilationDiagnostic> diagnostics = new ArrayList<>();
+        Object compilationEvent = CompilationEvents.beginCompilation(unit, processors.isEmpty()
+                ? null
+                : processors.stream().map(p -> p.getClass().getName()).collect(Collectors.joining(", ")));
+        PhaseRecorder recorder = new PhaseRecorder(unit);
+        DiagnosticListener<JavaFileObject> diagnosticListener = d -> diagnostics.add(CompilationDiagnostic.of(d));
+        AtomicReference<Map<String, String>> elementSignatures = new AtomicReference<>();
+        Function<JavaCompiler.CompilationTask, Boolean> run = task -> {
+            if (!processors.isEmpty()) {
+                task.setProcessors(processors);
             }
-            List<String> classesForAnnotationProcessing = null;
-            if (processor != null) {
-                classesForAnnotationProcessing = Collections.singletonList(clazzName);
-            }
-            JavaCompiler.CompilationTask task = this.compiler.getTask(
-                    new PrintWriter(System.out),
-                    fileManager,
-                    SYS_ERR_DIAGNOSTICS,
-                    options,
-                    classesForAnnotationProcessing,
-                    Collections.singletonList(fileManager.getRegularFile(inputFile))
-            );
-            if (processor != null) {
-                task.setProcessors(Collections.singletonList(processor));
+            if (task instanceof JavacTask) {
+                ((JavacTask) task).addTaskListener(recorder);
+            }
+            if (!analyzeOnly) {
+                return task.call();
+            }
+            if (!(task instanceof JavacTask)) {
+                throw new UnsupportedOperationException("Only javac can stop a compilation after analysis!");
             }
             try {
-                if (task.call() && outputClassPath.toFile().exists()) {
-                    HashMap<String, byte[]> out = new HashMap<>();
-                    Files.walk(outputPath)
-                            .filter(Files::exists)
-                            .filter(Files::isRegularFile)
-                            .forEach(rethrowChecked(p -> {
-                                String className = outputPath
-                                        .relativize(p)
-                                        .toString()
-                                        .replace(".class", "")
-                                        .replace(File.separator, ".");
-                                byte[] bytecode = Files.readAllBytes(p);
-                                out.put(className, bytecode);
-                            }));
-                    return Optional.of(out);
-                } else {
-                    return Optional.empty();
-                }
-            } catch (Throwable t) {
-                t.printStackTrace();
-                return Optional.empty();
+                // The elements belong to the context, so they are described before it is released.
+                elementSignatures.set(ElementSignatures.of(((JavacTask) task).analyze()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+            return diagnostics.stream().noneMatch(d -> d.getKind() == Diagnostic.Kind.ERROR);
+        };
+        // javac cannot run annotation processing on a reused context, so only plain compilations are pooled.
+        // A pooled context keeps using the file manager it was created with, so they also share one.
+        JavacContextPool contextPool = processors.isEmpty() ? this.contextPool : null;
+        InMemoryFileManager taskFileManager = contextPool != null ? pooledFileManager() : fileManager;
+        boolean success = false;
+        try {
+            success = contextPool != null
+                    ? contextPool.withTask(output, taskFileManager, diagnosticListener, options, classesForAnnotationProcessing, compilationUnits, run)
+                    : run.apply(this.compiler.getTask(output, taskFileManager, diagnosticListener, options, classesForAnnotationProcessing, compilationUnits));
+        } catch (Throwable t) {
+            StringWriter stackTrace = new StringWriter();
+            t.printStackTrace(new PrintWriter(stackTrace));
+            diagnostics.add(CompilationDiagnostic.ofThrowable(stackTrace.toString()));
         } finally {
-            // clean up the temp directory
-            Files.walk(outputPath)
-                    .sorted(Comparator.reverseOrder())
-                    .map(Path::toFile)
-                    .forEach(File::delete);
+            CompilationEvents.commit(compilationEvent);
+            printToConsole(output.toString(), diagnostics);
+        }
+        Map<String, byte[]> outputs = taskFileManager.takeOutputs();
+        return new CompilationResult(success ? outputs : null, success ? elementSignatures.get() : null,
+                recorder.finish(), diagnostics, output.toString());
+    }
+
+    /**
+     * Prints a diagnostic that did not come from javac, unless {@link #consoleDiagnostics(int)} turned printing off.
+     */
+    void printToConsole(CompilationDiagnostic diagnostic) {
+        printToConsole("", Collections.singletonList(diagnostic));
+    }
+
+    private void printToConsole(String output, List<CompilationDiagnostic> diagnostics) {
+        int maxDiagnostics = this.maxConsoleDiagnostics;
+        if (maxDiagnostics == 0) {
+            return;
+        }
+        if (!output.isEmpty()) {
+            System.out.print(output);
+            System.out.flush();
+        }
+        if (!diagnostics.isEmpty()) {
+            String n = System.lineSeparator();
+            StringBuilder printed = new StringBuilder();
+            for (int i = 0; i < diagnostics.size() && i < maxDiagnostics; i++) {
+                printed.append(diagnostics.get(i)).append(n);
+            }
+            if (diagnostics.size() > maxDiagnostics) {
+                printed.append("... and ").append(diagnostics.size() - maxDiagnostics).append(" more diagnostics").append(n);
+            }
+            System.err.print(printed);
+            System.err.flush();
+        }
+    }
+
+    private static List<String> compilerOptions() {
+        ArrayList<String> options = new ArrayList<>();
+        if (isJava9OrAbove()) {
+            for (String export : DiamondConstants.REQUIRED_EXPORTS) {
+                options.add("--add-exports");
+                options.add("jdk.compiler/" + export + "=ALL-UNNAMED");
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Computes a digest of every input besides the compiled sources that can
+     * change compiler output: the javac options, the classpath and the running JDK.
+     * Classpath entries are identified by their contents, with the files in a directory
+     * named relative to it, so the digest does not change when the project moves or its
+     * files are merely touched. The source root is left out, since sources are keyed on their own.
+     *
+     * @throws IOException If a classpath entry cannot be read.
+     */
+    String fingerprint() throws IOException {
+        String fingerprint = this.fingerprint;
+        if (fingerprint == null) {
+            MessageDigest digest = Digests.sha256();
+            Digests.update(digest, System.getProperty("java.vendor"));
+            Digests.update(digest, System.getProperty("java.version"));
+            Digests.update(digest, System.getProperty("java.vm.version"));
+            for (String option : compilerOptions()) {
+                Digests.update(digest, option);
+            }
+            for (File entry : this.classpath) {
+                updateWithEntry(digest, entry);
+            }
+            fingerprint = Digests.hex(digest.digest());
+            this.fingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    private static void updateWithEntry(MessageDigest digest, File entry) throws IOException {
+        if (entry.isDirectory()) {
+            Digests.update(digest, "directory");
+            Path root = entry.toPath();
+            try (Stream<Path> files = Files.walk(root)) {
+                Iterator<Path> iterator = files.filter(Files::isRegularFile).sorted().iterator();
+                while (iterator.hasNext()) {
+                    Path file = iterator.next();
+                    Digests.update(digest, root.relativize(file).toString().replace(File.separatorChar, '/'));
+                    updateWithContents(digest, file);
+                }
+            }
+        } else if (entry.isFile()) {
+            Digests.update(digest, "file");
+            updateWithContents(digest, entry.toPath());
+        } else {
+            Digests.update(digest, "missing");
+        }
+    }
+
+    private static void updateWithContents(MessageDigest digest, Path file) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        Digests.update(digest, "");
+    }
+
+    private SharedFileManager sharedFileManager() throws IOException {
+        SharedFileManager fileManager = this.sharedFileManager;
+        if (fileManager == null) {
+            synchronized (this) {
+                fileManager = this.sharedFileManager;
+                if (fileManager == null) {
+                    ArrayList<File> finalClasspath = new ArrayList<>(this.classpath);
+                    finalClasspath.add(sourceRoot);
+                    fileManager = new SharedFileManager(
+                            this.compiler.getStandardFileManager(SYS_ERR_DIAGNOSTICS, Locale.ROOT, StandardCharsets.UTF_8),
+                            finalClasspath
+                    );
+                    this.sharedFileManager = fileManager;
+                }
+            }
+        }
+        return fileManager;
+    }
+
+    private InMemoryFileManager pooledFileManager() throws IOException {
+        InMemoryFileManager fileManager = this.pooledFileManager;
+        if (fileManager == null) {
+            SharedFileManager sharedFileManager = sharedFileManager();
+            synchronized (this) {
+                fileManager = this.pooledFileManager;
+                if (fileManager == null) {
+                    fileManager = new InMemoryFileManager(sharedFileManager);
+                    this.pooledFileManager = fileManager;
+                }
+            }
+        }
+        return fileManager;
+    }
+
+    /**
+     * Releases the shared classpath index and file manager, and any pooled javac contexts.
+     * A later compilation will rebuild them.
+     *
+     * @throws IOException If an error occurs in closing classpath JARs.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        SharedFileManager fileManager = this.sharedFileManager;
+        this.sharedFileManager = null;
+        this.pooledFileManager = null;
+        if (this.contextPool != null) {
+            // The pooled contexts hold on to the file manager being closed.
+            pooledContexts(this.contextPoolSize);
+        }
+        if (fileManager != null) {
+            fileManager.close();
         }
     }
 
-}
+}
\ No newline at end of file
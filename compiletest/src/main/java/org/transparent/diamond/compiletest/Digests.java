@@ -0,0 +1,50 @@
+package org.transparent.diamond.compiletest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Small helpers for the content hashes Diamond uses as cache keys.
+ */
+final class Digests {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Digests() {
+    }
+
+    /**
+     * @return A fresh SHA-256 digest
+     */
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available!", e);
+        }
+    }
+
+    /**
+     * Adds a string to a digest, followed by a separator so that
+     * consecutive strings cannot run into each other.
+     */
+    static MessageDigest update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return digest;
+    }
+
+    /**
+     * @return The lowercase hexadecimal form of a digest
+     */
+    static String hex(byte[] digest) {
+        char[] out = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            out[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            out[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(out);
+    }
+
+}
@@ -0,0 +1,206 @@
+package org.transparent.diamond.compiletest;
+
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.*;
+
+/**
+ * Describes the classes of an analyzed compilation by their element model: for each class,
+ * its kind, modifiers, type parameters, supertypes and annotations, and the signature of every
+ * field, constructor, method and member class, in declaration order. Annotations that are not
+ * kept in class files are left out, as are type annotations, method bodies and local and anonymous
+ * classes, so two compilations with equal signatures may still differ in their bytecode.
+ */
+final class ElementSignatures {
+
+    private static final int MAX_DIFF_LINES = 40;
+
+    private ElementSignatures() {
+    }
+
+    /**
+     * @param roots Top level classes of the compilation, as returned by {@link com.sun.source.util.JavacTask#analyze()}
+     * @return The signature of each top level class, keyed by its binary name
+     */
+    static Map<String, String> of(Iterable<? extends Element> roots) {
+        TreeMap<String, String> signatures = new TreeMap<>();
+        for (Element root : roots) {
+            if (root instanceof TypeElement && !(root.getEnclosingElement() instanceof TypeElement)) {
+                StringBuilder signature = new StringBuilder();
+                appendType(signature, (TypeElement) root, "");
+                signatures.put(((TypeElement) root).getQualifiedName().toString(), signature.toString());
+            }
+        }
+        return signatures;
+    }
+
+    private static void appendType(StringBuilder out, TypeElement type, String indent) {
+        out.append(indent);
+        appendModifiersAndAnnotations(out, type);
+        out.append(type.getKind().toString().toLowerCase(Locale.ROOT)).append(' ').append(type.getQualifiedName());
+        appendTypeParameters(out, type.getTypeParameters());
+        out.append(" extends ").append(type(type.getSuperclass()));
+        if (!type.getInterfaces().isEmpty()) {
+            out.append(" implements ").append(join(type.getInterfaces()));
+        }
+        out.append('\n');
+        String memberIndent = indent + "    ";
+        for (Element member : type.getEnclosedElements()) {
+            if (member instanceof TypeElement) {
+                appendType(out, (TypeElement) member, memberIndent);
+            } else if (member instanceof VariableElement) {
+                VariableElement field = (VariableElement) member;
+                out.append(memberIndent);
+                appendModifiersAndAnnotations(out, field);
+                out.append(field.getKind() == ElementKind.ENUM_CONSTANT ? "enum constant " : "field ")
+                        .append(type(field.asType())).append(' ').append(field.getSimpleName());
+                if (field.getConstantValue() != null) {
+                    out.append(" = ").append(field.getConstantValue());
+                }
+                out.append('\n');
+            } else if (member instanceof ExecutableElement) {
+                ExecutableElement method = (ExecutableElement) member;
+                out.append(memberIndent);
+                appendModifiersAndAnnotations(out, method);
+                out.append(method.getKind() == ElementKind.CONSTRUCTOR ? "constructor " : "method ");
+                appendTypeParameters(out, method.getTypeParameters());
+                out.append(type(method.getReturnType())).append(' ').append(method.getSimpleName()).append('(');
+                StringJoiner parameters = new StringJoiner(", ");
+                for (VariableElement parameter : method.getParameters()) {
+                    StringBuilder rendered = new StringBuilder();
+                    appendModifiersAndAnnotations(rendered, parameter);
+                    parameters.add(rendered.append(type(parameter.asType())));
+                }
+                out.append(parameters).append(')');
+                if (method.isVarArgs()) {
+                    out.append(" varargs");
+                }
+                if (!method.getThrownTypes().isEmpty()) {
+                    out.append(" throws ").append(join(method.getThrownTypes()));
+                }
+                if (method.getDefaultValue() != null) {
+                    out.append(" default ").append(method.getDefaultValue());
+                }
+                out.append('\n');
+            }
+        }
+    }
+
+    private static void appendModifiersAndAnnotations(StringBuilder out, Element element) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (isKeptInClassFiles(annotation)) {
+                out.append(annotation).append(' ');
+            }
+        }
+        for (Modifier modifier : element.getModifiers()) {
+            out.append(modifier).append(' ');
+        }
+    }
+
+    private static void appendTypeParameters(StringBuilder out, List<? extends TypeParameterElement> typeParameters) {
+        if (typeParameters.isEmpty()) {
+            return;
+        }
+        StringJoiner rendered = new StringJoiner(", ", "<", "> ");
+        for (TypeParameterElement typeParameter : typeParameters) {
+            rendered.add(typeParameter.getSimpleName() + " extends " + join(typeParameter.getBounds()));
+        }
+        out.append(rendered);
+    }
+
+    private static boolean isKeptInClassFiles(AnnotationMirror annotation) {
+        Retention retention = annotation.getAnnotationType().asElement().getAnnotation(Retention.class);
+        return retention == null || retention.value() != RetentionPolicy.SOURCE;
+    }
+
+    private static String join(List<? extends TypeMirror> types) {
+        StringJoiner joined = new StringJoiner(" & ");
+        for (TypeMirror type : types) {
+            joined.add(type(type));
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Renders a type without its type annotations, which {@link TypeMirror#toString()} includes on some JDKs.
+     */
+    private static String type(TypeMirror type) {
+        switch (type.getKind()) {
+            case DECLARED: {
+                DeclaredType declared = (DeclaredType) type;
+                String name = ((TypeElement) declared.asElement()).getQualifiedName().toString();
+                if (declared.getTypeArguments().isEmpty()) {
+                    return name;
+                }
+                StringJoiner arguments = new StringJoiner(",", name + "<", ">");
+                for (TypeMirror argument : declared.getTypeArguments()) {
+                    arguments.add(type(argument));
+                }
+                return arguments.toString();
+            }
+            case ARRAY:
+                return type(((ArrayType) type).getComponentType()) + "[]";
+            case TYPEVAR:
+                return ((TypeVariable) type).asElement().getSimpleName().toString();
+            case WILDCARD: {
+                WildcardType wildcard = (WildcardType) type;
+                if (wildcard.getExtendsBound() != null) {
+                    return "? extends " + type(wildcard.getExtendsBound());
+                }
+                return wildcard.getSuperBound() != null ? "? super " + type(wildcard.getSuperBound()) : "?";
+            }
+            default:
+                return type.getKind().isPrimitive() || type.getKind() == TypeKind.VOID
+                        ? type.getKind().toString().toLowerCase(Locale.ROOT)
+                        : type.toString();
+        }
+    }
+
+    /**
+     * Describes how two sets of signatures differ, line by line: lines prefixed with <code>-</code>
+     * are only expected, and lines prefixed with <code>+</code> were only generated.
+     * The diff is cut off after {@value #MAX_DIFF_LINES} lines.
+     *
+     * @return The differences, one per line, or an empty string if there are none
+     */
+    static String diff(Map<String, String> expected, Map<String, String> actual) {
+        ArrayList<String> lines = new ArrayList<>();
+        TreeSet<String> names = new TreeSet<>(expected.keySet());
+        names.addAll(actual.keySet());
+        for (String name : names) {
+            String expectedSignature = expected.get(name);
+            String actualSignature = actual.get(name);
+            if (actualSignature == null) {
+                lines.add("missing class " + name);
+            } else if (expectedSignature == null) {
+                lines.add("unexpected class " + name);
+            } else if (!expectedSignature.equals(actualSignature)) {
+                lines.add("class " + name + ":");
+                List<String> expectedLines = Arrays.asList(expectedSignature.split("\n"));
+                List<String> actualLines = Arrays.asList(actualSignature.split("\n"));
+                for (String line : expectedLines) {
+                    if (!actualLines.contains(line)) {
+                        lines.add("-" + line);
+                    }
+                }
+                for (String line : actualLines) {
+                    if (!expectedLines.contains(line)) {
+                        lines.add("+" + line);
+                    }
+                }
+                if (new HashSet<>(expectedLines).equals(new HashSet<>(actualLines))) {
+                    lines.add("  (the same members, in a different order)");
+                }
+            }
+        }
+        StringJoiner out = new StringJoiner(System.lineSeparator());
+        lines.stream().limit(MAX_DIFF_LINES).forEach(out::add);
+        if (lines.size() > MAX_DIFF_LINES) {
+            out.add("... and " + (lines.size() - MAX_DIFF_LINES) + " more differences");
+        }
+        return out.toString();
+    }
+
+}
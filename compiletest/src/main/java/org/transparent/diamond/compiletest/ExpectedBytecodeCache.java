@@ -0,0 +1,140 @@
+package org.transparent.diamond.compiletest;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An on-disk, content-addressed cache of compiled expected sources.
+ * Entries are keyed by a hash of the source text and the
+ * {@link CompileTestUtils#fingerprint() compiler fingerprint},
+ * so a stale entry is never found rather than ever being invalidated.
+ * <p>
+ * Stale entries are instead evicted once they have not been used for {@link #MAX_UNUSED_DAYS} days:
+ * each hit refreshes the modification time of its entry, and opening the cache deletes the entries
+ * that were left untouched for longer.
+ */
+final class ExpectedBytecodeCache {
+
+    private static final int MAGIC = 0xD1A30001;
+
+    /**
+     * Days an entry is kept for without being used.
+     */
+    static final int MAX_UNUSED_DAYS = 30;
+
+    private final Path directory;
+
+    /**
+     * Builds a cache that stores its entries in the given directory, creating it if needed,
+     * and evicts the entries that were not used for {@link #MAX_UNUSED_DAYS} days.
+     *
+     * @throws IOException If the directory cannot be created or listed
+     */
+    ExpectedBytecodeCache(File directory) throws IOException {
+        this.directory = Files.createDirectories(directory.toPath());
+        evictUnused(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(MAX_UNUSED_DAYS));
+    }
+
+    private void evictUnused(long usedSince) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.{bin,tmp}")) {
+            for (Path entry : entries) {
+                try {
+                    if (Files.getLastModifiedTime(entry).toMillis() < usedSince) {
+                        Files.deleteIfExists(entry);
+                    }
+                } catch (IOException e) {
+                    // Another run may be using or evicting the same entry; it is evicted next time.
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the cache key for compiling a class.
+     *
+     * @param fingerprint Fingerprint of the compiler setup
+     * @param clazzName   Name of the class to compile
+     * @param source      Source of the class to compile
+     */
+    static String key(String fingerprint, String clazzName, String source) {
+        MessageDigest digest = Digests.sha256();
+        Digests.update(digest, "expected-bytecode");
+        Digests.update(digest, fingerprint);
+        Digests.update(digest, clazzName);
+        Digests.update(digest, source);
+        return Digests.hex(digest.digest());
+    }
+
+    /**
+     * @return The cached bytecode for a key, or {@link Optional#empty()} if there is
+     * none or the entry cannot be read.
+     */
+    Optional<Map<String, byte[]>> get(String key) {
+        Path entry = directory.resolve(key + ".bin");
+        if (!Files.isRegularFile(entry)) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != MAGIC) {
+                return Optional.empty();
+            }
+            int count = in.readInt();
+            HashMap<String, byte[]> classes = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                classes.put(name, bytecode);
+            }
+            touch(entry);
+            return Optional.of(classes);
+        } catch (IOException e) {
+            // A truncated or foreign entry is a miss; it will be overwritten.
+            return Optional.empty();
+        }
+    }
+
+    private static void touch(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // The entry is merely evicted sooner.
+        }
+    }
+
+    /**
+     * Stores bytecode under a key. The entry is written to a temporary file first and
+     * then moved into place, so concurrent readers never see a partial entry.
+     *
+     * @throws IOException If the entry cannot be written
+     */
+    void put(String key, Map<String, byte[]> classes) throws IOException {
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(classes.size());
+                for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            }
+            Path entry = directory.resolve(key + ".bin");
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+package org.transparent.diamond.compiletest;
+
+import javax.tools.*;
+import javax.tools.JavaFileObject.Kind;
+import java.io.*;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A file manager that keeps compiler inputs and outputs in memory.
+ * Class output, generated sources and generated resources are captured
+ * in byte buffers instead of being written to disk; everything else
+ * is forwarded to the wrapped file manager.
+ * <p>
+ * Outputs are kept per thread, so one instance can serve compilations on several
+ * threads at once, as long as each compilation stays on its thread. javac does.
+ */
+class InMemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+    private final ThreadLocal<Map<String, InMemoryFileObject>> outputs = ThreadLocal.withInitial(LinkedHashMap::new);
+
+    /**
+     * Builds an InMemoryFileManager on top of a file manager used for class path lookups.
+     */
+    InMemoryFileManager(JavaFileManager fileManager) {
+        super(fileManager);
+    }
+
+    /**
+     * Builds an in-memory compilation unit.
+     *
+     * @param className Name of the class, with packages separated by dots.
+     * @param source    Source code of the class.
+     */
+    static JavaFileObject sourceFile(String className, String source) {
+        InMemoryFileObject file = new InMemoryFileObject(
+                uriFor(StandardLocation.SOURCE_PATH, className.replace('.', '/') + Kind.SOURCE.extension),
+                Kind.SOURCE,
+                className
+        );
+        file.content = source.getBytes(StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Removes the outputs of the compilation that ran on the current thread.
+     *
+     * @return The bytecode of every class written by the compiler, keyed by binary name,
+     * followed by every other generated file, keyed by its path relative to its output location.
+     */
+    Map<String, byte[]> takeOutputs() {
+        Map<String, InMemoryFileObject> outputs = this.outputs.get();
+        this.outputs.remove();
+        HashMap<String, byte[]> out = new HashMap<>();
+        for (InMemoryFileObject file : outputs.values()) {
+            if (file.content == null) {
+                continue;
+            }
+            if (file.getKind() == Kind.CLASS) {
+                out.put(file.binaryName, file.content);
+            } else {
+                out.put(file.relativePath, file.content);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public boolean hasLocation(Location location) {
+        return isOutputLocation(location) || super.hasLocation(location);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling) throws IOException {
+        if (!isOutputLocation(location)) {
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+        String relativePath = className.replace('.', '/') + kind.extension;
+        InMemoryFileObject file = new InMemoryFileObject(uriFor(location, relativePath), kind, className);
+        outputs.get().put(location.getName() + "/" + relativePath, file);
+        return file;
+    }
+
+    @Override
+    public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) throws IOException {
+        if (!isOutputLocation(location)) {
+            return super.getFileForOutput(location, packageName, relativeName, sibling);
+        }
+        String relativePath = relativePath(packageName, relativeName);
+        InMemoryFileObject file = new InMemoryFileObject(uriFor(location, relativePath), kindOf(relativePath), null);
+        outputs.get().put(location.getName() + "/" + relativePath, file);
+        return file;
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForInput(Location location, String className, Kind kind) throws IOException {
+        if (!isOutputLocation(location)) {
+            return super.getJavaFileForInput(location, className, kind);
+        }
+        return outputs.get().get(location.getName() + "/" + className.replace('.', '/') + kind.extension);
+    }
+
+    @Override
+    public FileObject getFileForInput(Location location, String packageName, String relativeName) throws IOException {
+        if (!isOutputLocation(location)) {
+            return super.getFileForInput(location, packageName, relativeName);
+        }
+        return outputs.get().get(location.getName() + "/" + relativePath(packageName, relativeName));
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse) throws IOException {
+        if (!isOutputLocation(location)) {
+            return super.list(location, packageName, kinds, recurse);
+        }
+        String prefix = location.getName() + "/" + (packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/");
+        ArrayList<JavaFileObject> files = new ArrayList<>();
+        for (Map.Entry<String, InMemoryFileObject> entry : outputs.get().entrySet()) {
+            InMemoryFileObject file = entry.getValue();
+            String path = entry.getKey();
+            if (path.startsWith(prefix) && kinds.contains(file.getKind())
+                    && (recurse || path.indexOf('/', prefix.length()) < 0)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof InMemoryFileObject) {
+            return ((InMemoryFileObject) file).binaryName;
+        }
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof InMemoryFileObject || b instanceof InMemoryFileObject) {
+            return a.toUri().equals(b.toUri());
+        }
+        return super.isSameFile(a, b);
+    }
+
+    /**
+     * Discards nothing: the wrapped file manager is shared and is not owned by this one.
+     */
+    @Override
+    public void close() {
+    }
+
+    private static boolean isOutputLocation(Location location) {
+        return location == StandardLocation.CLASS_OUTPUT || location == StandardLocation.SOURCE_OUTPUT;
+    }
+
+    private static String relativePath(String packageName, String relativeName) {
+        if (packageName == null || packageName.isEmpty()) {
+            return relativeName;
+        }
+        return packageName.replace('.', '/') + "/" + relativeName;
+    }
+
+    private static Kind kindOf(String path) {
+        for (Kind kind : Kind.values()) {
+            if (kind != Kind.OTHER && path.endsWith(kind.extension)) {
+                return kind;
+            }
+        }
+        return Kind.OTHER;
+    }
+
+    private static URI uriFor(Location location, String relativePath) {
+        return URI.create("mem:///" + location.getName() + "/" + relativePath);
+    }
+
+    /**
+     * A file whose contents live in a byte buffer.
+     */
+    static class InMemoryFileObject extends SimpleJavaFileObject {
+
+        private final String binaryName;
+        private final String relativePath;
+        private volatile byte[] content;
+        private long lastModified = 0L;
+
+        InMemoryFileObject(URI uri, Kind kind, String binaryName) {
+            super(uri, kind);
+            this.binaryName = binaryName;
+            String path = uri.getPath();
+            this.relativePath = path.substring(path.indexOf('/', 1) + 1);
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            if (content == null) {
+                throw new FileNotFoundException(toUri().toString());
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    content = toByteArray();
+                    lastModified = System.currentTimeMillis();
+                }
+            };
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+            return new StringReader(getCharContent(ignoreEncodingErrors).toString());
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            if (content == null) {
+                throw new FileNotFoundException(toUri().toString());
+            }
+            return new String(content, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Writer openWriter() {
+            return new OutputStreamWriter(openOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public boolean delete() {
+            boolean existed = content != null;
+            content = null;
+            return existed;
+        }
+
+    }
+
+}
@@ -0,0 +1,246 @@
+package org.transparent.diamond.compiletest;
+
+import org.objectweb.asm.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers which processor tests passed, and with which inputs, so that a later run
+ * can skip the tests whose inputs did not change since.
+ * <p>
+ * The manifest records the {@link CompileTestUtils#fingerprint() environment}
+ * it was written for; loading it in any other environment (another classpath or JDK)
+ * yields an empty manifest, so every test runs again.
+ */
+final class IncrementalManifest {
+
+    private static final String FINGERPRINT = "fingerprint";
+    private static final Pattern DESCRIPTOR_TYPE = Pattern.compile("L([\\w/$]+);");
+
+    private final Path file;
+    private final String fingerprint;
+    private final TreeMap<String, String> passed = new TreeMap<>();
+
+    /**
+     * Loads the manifest from a file, if it exists and was written for the same environment.
+     *
+     * @throws IOException If the file exists but cannot be read
+     */
+    IncrementalManifest(File file, String fingerprint) throws IOException {
+        this.file = file.toPath();
+        this.fingerprint = fingerprint;
+        if (Files.isRegularFile(this.file)) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(this.file)) {
+                properties.load(in);
+            }
+            if (fingerprint.equals(properties.getProperty(FINGERPRINT))) {
+                for (String testName : properties.stringPropertyNames()) {
+                    if (!testName.equals(FINGERPRINT)) {
+                        passed.put(testName, properties.getProperty(testName));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Whether the test passed the last time it ran with these inputs
+     */
+    synchronized boolean isUpToDate(String testName, String inputs) {
+        return inputs.equals(passed.get(testName));
+    }
+
+    synchronized void recordPass(String testName, String inputs) {
+        passed.put(testName, inputs);
+    }
+
+    synchronized void recordFailure(String testName) {
+        passed.remove(testName);
+    }
+
+    /**
+     * Writes the manifest back to its file. It is written to a temporary file first
+     * and then moved into place, so an interrupted run never leaves a partial manifest.
+     *
+     * @throws IOException If the manifest cannot be written
+     */
+    synchronized void save() throws IOException {
+        StringBuilder out = new StringBuilder();
+        out.append(FINGERPRINT).append('=').append(fingerprint).append('\n');
+        for (Map.Entry<String, String> entry : passed.entrySet()) {
+            out.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, out.toString().getBytes(StandardCharsets.ISO_8859_1));
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Finds the source files that the given classes were compiled from, along with
+     * those of every class they reference, directly or not, among the given classes.
+     * Referenced classes that are not among them come from the classpath.
+     *
+     * @param classes Bytecode of the classes compiled from the source root, keyed by binary name
+     * @param roots   Binary names of the classes to start from
+     * @return Paths of the source files, relative to the source root, sorted
+     */
+    static SortedSet<String> sourceFiles(Map<String, byte[]> classes, Collection<String> roots) {
+        TreeSet<String> sourceFiles = new TreeSet<>();
+        HashSet<String> visited = new HashSet<>();
+        ArrayDeque<String> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            String className = pending.pop();
+            byte[] bytecode = classes.get(className);
+            if (bytecode == null || !visited.add(className)) {
+                continue;
+            }
+            References references = read(bytecode);
+            sourceFiles.add(references.sourceFile(className));
+            for (String reference : references.classNames) {
+                if (!visited.contains(reference)) {
+                    pending.push(reference);
+                }
+            }
+        }
+        return sourceFiles;
+    }
+
+    /**
+     * @return Binary names of every class the given class references, directly, including those from the classpath
+     */
+    static Set<String> references(byte[] bytecode) {
+        return read(bytecode).classNames;
+    }
+
+    private static References read(byte[] bytecode) {
+        ClassReader reader = new ClassReader(bytecode);
+        References references = new References();
+        reader.accept(references, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+        references.addConstantPool(reader);
+        return references;
+    }
+
+    /**
+     * Collects the source file of a class and the classes it references: those in its
+     * declarations and annotations, and those its code uses through the constant pool.
+     */
+    private static final class References extends ClassVisitor {
+
+        final HashSet<String> classNames = new HashSet<>();
+        private String sourceFile;
+
+        References() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            addDescriptor(signature);
+        }
+
+        @Override
+        public void visitSource(String source, String debug) {
+            sourceFile = source;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            addDescriptor(descriptor);
+            return null;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            addDescriptor(descriptor);
+            addDescriptor(signature);
+            return new FieldVisitor(Opcodes.ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                    addDescriptor(descriptor);
+                    return null;
+                }
+            };
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            addDescriptor(descriptor);
+            addDescriptor(signature);
+            return new MethodVisitor(Opcodes.ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                    addDescriptor(descriptor);
+                    return null;
+                }
+            };
+        }
+
+        void addConstantPool(ClassReader reader) {
+            char[] buffer = new char[reader.getMaxStringLength()];
+            for (int i = 1; i < reader.getItemCount(); i++) {
+                int offset = reader.getItem(i);
+                if (offset == 0) {
+                    continue;
+                }
+                switch (reader.readByte(offset - 1)) {
+                    case 7: // CONSTANT_Class
+                        String name = reader.readUTF8(offset, buffer);
+                        if (name.startsWith("[")) {
+                            addDescriptor(name);
+                        } else {
+                            classNames.add(name.replace('/', '.'));
+                        }
+                        break;
+                    case 12: // CONSTANT_NameAndType
+                        addDescriptor(reader.readUTF8(offset + 2, buffer));
+                        break;
+                    case 16: // CONSTANT_MethodType
+                        addDescriptor(reader.readUTF8(offset, buffer));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /**
+         * @return The path of the source file the class was compiled from, relative to the source root
+         */
+        String sourceFile(String className) {
+            int packageEnd = className.lastIndexOf('.');
+            String packagePath = packageEnd < 0 ? "" : className.substring(0, packageEnd).replace('.', '/') + "/";
+            if (sourceFile == null) {
+                return packagePath + ProcessorTestIndex.topLevelName(className).substring(packageEnd + 1) + ".java";
+            }
+            return packagePath + sourceFile;
+        }
+
+        private void addDescriptor(String descriptor) {
+            if (descriptor == null) {
+                return;
+            }
+            Matcher matcher = DESCRIPTOR_TYPE.matcher(descriptor);
+            while (matcher.find()) {
+                classNames.add(matcher.group(1).replace('/', '.'));
+            }
+        }
+
+    }
+
+}
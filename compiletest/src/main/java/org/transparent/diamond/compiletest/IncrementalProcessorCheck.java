@@ -0,0 +1,268 @@
+package org.transparent.diamond.compiletest;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Wraps a processor to check that it keeps to the rules of the category it is registered with
+ * as a Gradle incremental annotation processor, in <code>META-INF/gradle/incremental.annotation.processors</code>.
+ * Any violation makes Gradle fall back to recompiling everything, or worse, to an incorrect incremental build.
+ * <p>
+ * Every file an isolating processor creates through the {@link Filer} must have exactly one originating element,
+ * counting elements by their top level type. An aggregating processor may only process annotations that are
+ * kept in class files. Resources may only be created in the output locations. A dynamic processor must support
+ * an option naming its category.
+ * <p>
+ * Like Gradle, the check hands the processor a {@link ProcessingEnvironment} of its own, whose
+ * <code>delegate</code> field holds javac's, so processors that unwrap Gradle's environment work here as well.
+ */
+final class IncrementalProcessorCheck implements Processor {
+
+    static final String REGISTRATION = "META-INF/gradle/incremental.annotation.processors";
+
+    private static final String CATEGORY_OPTION_PREFIX = "org.gradle.annotation.processing.";
+    private static final Set<StandardLocation> RESOURCE_LOCATIONS =
+            EnumSet.of(StandardLocation.CLASS_OUTPUT, StandardLocation.SOURCE_OUTPUT, StandardLocation.NATIVE_HEADER_OUTPUT);
+
+    private final Processor delegate;
+    private final String processorName;
+    private String category;
+    private final Set<String> violations = new LinkedHashSet<>();
+
+    /**
+     * @param delegate The processor to check
+     * @param category The category the processor is registered with, or <code>null</code> if it is not registered
+     */
+    IncrementalProcessorCheck(Processor delegate, String category) {
+        this.delegate = delegate;
+        this.processorName = delegate.getClass().getName();
+        this.category = category;
+        if (category == null) {
+            violations.add(processorName + " is not registered as an incremental processor in " + REGISTRATION);
+        }
+    }
+
+    /**
+     * Looks up the category of a processor in every registration the class loader sees.
+     *
+     * @return The category, in upper case, or <code>null</code> if the processor is not registered
+     */
+    static String registeredCategory(Class<?> processorClass) throws IOException {
+        ClassLoader classLoader = processorClass.getClassLoader() != null
+                ? processorClass.getClassLoader()
+                : ClassLoader.getSystemClassLoader();
+        Enumeration<URL> registrations = classLoader.getResources(REGISTRATION);
+        while (registrations.hasMoreElements()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    registrations.nextElement().openStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(",");
+                    if (parts.length == 2 && parts[0].trim().equals(processorClass.getName())) {
+                        return parts[1].trim().toUpperCase(Locale.ROOT);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Every rule the processor broke so far, each described once
+     */
+    Set<String> getViolations() {
+        return violations;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return delegate.getSupportedOptions();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return delegate.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return delegate.getSupportedSourceVersion();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+        try {
+            delegate.init(new CheckingProcessingEnvironment(processingEnv));
+        } catch (ClassCastException e) {
+            if (String.valueOf(e.getMessage()).contains(CheckingProcessingEnvironment.class.getName())) {
+                violations.add(processorName + " casts its ProcessingEnvironment to javac's own class, which fails once "
+                        + "Gradle wraps the environment for incremental processing; unwrap it from its delegate field first");
+            }
+            throw e;
+        }
+        if ("DYNAMIC".equals(category)) {
+            category = null;
+            for (String option : delegate.getSupportedOptions()) {
+                if (option.equals(CATEGORY_OPTION_PREFIX + "isolating")) {
+                    category = "ISOLATING";
+                } else if (option.equals(CATEGORY_OPTION_PREFIX + "aggregating")) {
+                    category = "AGGREGATING";
+                }
+            }
+            if (category == null) {
+                violations.add(processorName + " is registered as dynamic, but supports neither the "
+                        + CATEGORY_OPTION_PREFIX + "isolating nor the " + CATEGORY_OPTION_PREFIX + "aggregating option");
+            }
+        } else if (category != null && !category.equals("ISOLATING") && !category.equals("AGGREGATING")) {
+            violations.add(processorName + " is registered with the unknown category " + category);
+        }
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if ("AGGREGATING".equals(category)) {
+            for (TypeElement annotation : annotations) {
+                Retention retention = annotation.getAnnotation(Retention.class);
+                if (retention != null && retention.value() == RetentionPolicy.SOURCE) {
+                    violations.add("@" + annotation.getQualifiedName() + " has source retention, "
+                            + "but aggregating processors can only process annotations kept in class files");
+                }
+            }
+        }
+        return delegate.process(annotations, roundEnv);
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+        return delegate.getCompletions(element, annotation, member, userText);
+    }
+
+    private void checkOriginatingElements(String kind, CharSequence name, Element[] originatingElements) {
+        if (!"ISOLATING".equals(category)) {
+            return;
+        }
+        Set<String> types = new TreeSet<>();
+        for (Element element : originatingElements) {
+            Element topLevel = element;
+            while (topLevel != null && topLevel.getEnclosingElement() != null
+                    && topLevel.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+                topLevel = topLevel.getEnclosingElement();
+            }
+            if (topLevel instanceof TypeElement) {
+                types.add(((TypeElement) topLevel).getQualifiedName().toString());
+            } else if (topLevel instanceof PackageElement) {
+                types.add(((PackageElement) topLevel).getQualifiedName() + ".package-info");
+            }
+        }
+        if (types.size() != 1) {
+            violations.add("the generated " + kind + " " + name + " must have exactly one originating element, but had "
+                    + types.size() + (types.isEmpty() ? "" : " " + types));
+        }
+    }
+
+    /**
+     * Hands out the checking {@link Filer}, and everything else from javac's environment.
+     */
+    private final class CheckingProcessingEnvironment implements ProcessingEnvironment {
+
+        private final ProcessingEnvironment delegate;
+        private final Filer filer;
+
+        CheckingProcessingEnvironment(ProcessingEnvironment delegate) {
+            this.delegate = delegate;
+            this.filer = new CheckingFiler(delegate.getFiler());
+        }
+
+        @Override
+        public Map<String, String> getOptions() {
+            return delegate.getOptions();
+        }
+
+        @Override
+        public Messager getMessager() {
+            return delegate.getMessager();
+        }
+
+        @Override
+        public Filer getFiler() {
+            return filer;
+        }
+
+        @Override
+        public Elements getElementUtils() {
+            return delegate.getElementUtils();
+        }
+
+        @Override
+        public Types getTypeUtils() {
+            return delegate.getTypeUtils();
+        }
+
+        @Override
+        public SourceVersion getSourceVersion() {
+            return delegate.getSourceVersion();
+        }
+
+        @Override
+        public Locale getLocale() {
+            return delegate.getLocale();
+        }
+
+    }
+
+    private final class CheckingFiler implements Filer {
+
+        private final Filer delegate;
+
+        CheckingFiler(Filer delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements) throws IOException {
+            checkOriginatingElements("source file", name, originatingElements);
+            return delegate.createSourceFile(name, originatingElements);
+        }
+
+        @Override
+        public JavaFileObject createClassFile(CharSequence name, Element... originatingElements) throws IOException {
+            checkOriginatingElements("class file", name, originatingElements);
+            return delegate.createClassFile(name, originatingElements);
+        }
+
+        @Override
+        public FileObject createResource(JavaFileManager.Location location, CharSequence moduleAndPkg,
+                                         CharSequence relativeName, Element... originatingElements) throws IOException {
+            String name = moduleAndPkg.length() == 0 ? relativeName.toString() : moduleAndPkg + "/" + relativeName;
+            if (!RESOURCE_LOCATIONS.contains(location)) {
+                violations.add("the resource " + name + " is created in " + location.getName()
+                        + ", but incremental processors can only create resources in " + RESOURCE_LOCATIONS);
+            }
+            checkOriginatingElements("resource", name, originatingElements);
+            return delegate.createResource(location, moduleAndPkg, relativeName, originatingElements);
+        }
+
+        @Override
+        public FileObject getResource(JavaFileManager.Location location, CharSequence moduleAndPkg,
+                                      CharSequence relativeName) throws IOException {
+            return delegate.getResource(location, moduleAndPkg, relativeName);
+        }
+
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.transparent.diamond.compiletest;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+
+/**
+ * Wraps a processor to measure how long javac spends inside it, initializing it
+ * and running its rounds, how much it allocates meanwhile, and how many rounds it runs.
+ */
+final class InstrumentedProcessor implements Processor {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Processor delegate;
+    private long nanos;
+    private long allocatedBytes;
+    private int rounds;
+    private WeakReference<ProcessingEnvironment> processingEnv = new WeakReference<>(null);
+
+    InstrumentedProcessor(Processor delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return Time spent in the processor so far, in nanoseconds
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return Bytes allocated on the compiling thread while in the processor so far,
+     * or -1 if the JVM cannot measure allocations per thread
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes(Thread.currentThread()) < 0 ? -1 : allocatedBytes;
+    }
+
+    /**
+     * @return Number of rounds the processor ran so far
+     */
+    int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return The environment javac initialized the processor with, which holds its context,
+     * or <code>null</code> if it was not initialized or was collected since. Only held weakly.
+     */
+    ProcessingEnvironment getProcessingEnvironment() {
+        return processingEnv.get();
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return delegate.getSupportedOptions();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return delegate.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return delegate.getSupportedSourceVersion();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+        this.processingEnv = new WeakReference<>(processingEnv);
+        Thread thread = Thread.currentThread();
+        long startBytes = allocatedBytes(thread);
+        long start = System.nanoTime();
+        try {
+            delegate.init(processingEnv);
+        } finally {
+            nanos += System.nanoTime() - start;
+            allocatedBytes += allocatedBytes(thread) - startBytes;
+        }
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        rounds++;
+        Thread thread = Thread.currentThread();
+        long startBytes = allocatedBytes(thread);
+        long start = System.nanoTime();
+        try {
+            return delegate.process(annotations, roundEnv);
+        } finally {
+            nanos += System.nanoTime() - start;
+            allocatedBytes += allocatedBytes(thread) - startBytes;
+        }
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+        return delegate.getCompletions(element, annotation, member, userText);
+    }
+
+    private static long allocatedBytes(Thread thread) {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(thread.getId());
+        }
+        return -1;
+    }
+
+}
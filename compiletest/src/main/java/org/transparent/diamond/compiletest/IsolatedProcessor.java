@@ -0,0 +1,124 @@
+package org.transparent.diamond.compiletest;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import java.lang.annotation.Annotation;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Wraps a processor that shares a compilation with the processors of other tests,
+ * so that it only sees the stub class of its own test. Elements of the other tests'
+ * stub classes are left out of every round; anything else, such as generated classes,
+ * is seen by every processor.
+ * <p>
+ * The wrapped processor never claims an annotation, since that would hide it
+ * from the processors of the other tests.
+ */
+final class IsolatedProcessor implements Processor {
+
+    private final Processor delegate;
+    private final String stubClassName;
+    private final Set<String> otherStubClassNames;
+
+    /**
+     * @param delegate            Processor under test
+     * @param stubClassName       Name of the stub class of its test
+     * @param otherStubClassNames Names of the stub classes of the other tests in the compilation
+     */
+    IsolatedProcessor(Processor delegate, String stubClassName, Set<String> otherStubClassNames) {
+        this.delegate = delegate;
+        this.stubClassName = stubClassName;
+        this.otherStubClassNames = otherStubClassNames;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return delegate.getSupportedOptions();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return delegate.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return delegate.getSupportedSourceVersion();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+        delegate.init(processingEnv);
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        delegate.process(annotations, new IsolatedRoundEnvironment(roundEnv));
+        return false;
+    }
+
+    @Override
+    public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+        return delegate.getCompletions(element, annotation, member, userText);
+    }
+
+    private boolean isVisible(Element element) {
+        Element topLevel = element;
+        while (topLevel.getEnclosingElement() != null && topLevel.getEnclosingElement().getKind() != ElementKind.PACKAGE) {
+            topLevel = topLevel.getEnclosingElement();
+        }
+        if (!(topLevel instanceof TypeElement)) {
+            return true;
+        }
+        String name = ((TypeElement) topLevel).getQualifiedName().toString();
+        return name.equals(stubClassName) || !otherStubClassNames.contains(name);
+    }
+
+    private Set<? extends Element> visible(Set<? extends Element> elements) {
+        LinkedHashSet<Element> visible = new LinkedHashSet<>();
+        for (Element element : elements) {
+            if (isVisible(element)) {
+                visible.add(element);
+            }
+        }
+        return visible;
+    }
+
+    private final class IsolatedRoundEnvironment implements RoundEnvironment {
+
+        private final RoundEnvironment delegate;
+
+        IsolatedRoundEnvironment(RoundEnvironment delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean processingOver() {
+            return delegate.processingOver();
+        }
+
+        @Override
+        public boolean errorRaised() {
+            return delegate.errorRaised();
+        }
+
+        @Override
+        public Set<? extends Element> getRootElements() {
+            return visible(delegate.getRootElements());
+        }
+
+        @Override
+        public Set<? extends Element> getElementsAnnotatedWith(TypeElement a) {
+            return visible(delegate.getElementsAnnotatedWith(a));
+        }
+
+        @Override
+        public Set<? extends Element> getElementsAnnotatedWith(Class<? extends Annotation> a) {
+            return visible(delegate.getElementsAnnotatedWith(a));
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+package org.transparent.diamond.compiletest;
+
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A pool of warm javac contexts, backed by javac's own
+ * <code>com.sun.tools.javac.api.JavacTaskPool</code> (JDK 9+).
+ * <p>
+ * A context that finished a compilation keeps the symbols it read from the
+ * platform and the classpath, and forgets everything parsed from sources, so the
+ * next compilation with the same options skips reloading them. Contexts whose
+ * compilation threw are dropped instead of being reused, and so are contexts in
+ * which a source redefined a <code>java.*</code> class. Since the pool is internal
+ * to javac, it is accessed through reflection and is unavailable if
+ * <code>com.sun.tools.javac.api</code> is not exported to Diamond.
+ */
+final class JavacContextPool {
+
+    private static final Constructor<?> POOL_CONSTRUCTOR;
+    private static final Method GET_TASK;
+    private static final Class<?> WORKER;
+
+    static {
+        Constructor<?> poolConstructor = null;
+        Method getTask = null;
+        Class<?> worker = null;
+        try {
+            Class<?> poolClass = Class.forName("com.sun.tools.javac.api.JavacTaskPool");
+            worker = Class.forName("com.sun.tools.javac.api.JavacTaskPool$Worker");
+            poolConstructor = poolClass.getConstructor(int.class);
+            getTask = poolClass.getMethod("getTask",
+                    Writer.class, JavaFileManager.class, DiagnosticListener.class,
+                    Iterable.class, Iterable.class, Iterable.class, worker);
+            // Fails here, rather than on the first compilation, if the package is not exported.
+            poolConstructor.newInstance(1);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            poolConstructor = null;
+        }
+        POOL_CONSTRUCTOR = poolConstructor;
+        GET_TASK = getTask;
+        WORKER = worker;
+    }
+
+    private final Object pool;
+
+    private JavacContextPool(Object pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return Whether javac's task pool can be used on this JDK
+     */
+    static boolean isSupported() {
+        return POOL_CONSTRUCTOR != null;
+    }
+
+    /**
+     * Builds a pool that keeps at most the given number of idle contexts.
+     *
+     * @throws UnsupportedOperationException If javac's task pool cannot be used on this JDK
+     */
+    static JavacContextPool create(int maxPoolSize) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("javac's task pool is not available on this JDK");
+        }
+        try {
+            return new JavacContextPool(POOL_CONSTRUCTOR.newInstance(maxPoolSize));
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("javac's task pool is not available on this JDK", e);
+        }
+    }
+
+    /**
+     * Creates a task as if by {@link JavaCompiler#getTask}, on a pooled context if one with
+     * the same options is idle, and runs it with the given function. The task may only be
+     * used until the function returns.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T withTask(Writer out,
+                   JavaFileManager fileManager,
+                   DiagnosticListener<? super JavaFileObject> diagnosticListener,
+                   List<String> options,
+                   List<String> classes,
+                   List<JavaFileObject> compilationUnits,
+                   Function<JavaCompiler.CompilationTask, T> worker) {
+        Object proxy = Proxy.newProxyInstance(
+                WORKER.getClassLoader(),
+                new Class<?>[]{WORKER},
+                (p, method, args) -> {
+                    switch (method.getName()) {
+                        case "withTask":
+                            return worker.apply((JavaCompiler.CompilationTask) args[0]);
+                        case "equals":
+                            return p == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(p);
+                        default:
+                            return "JavacContextPool.Worker";
+                    }
+                }
+        );
+        try {
+            return (T) GET_TASK.invoke(pool, out, fileManager, diagnosticListener, options, classes, compilationUnits, proxy);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
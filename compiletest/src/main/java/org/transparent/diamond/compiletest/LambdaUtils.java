@@ -8,6 +8,20 @@ import java.util.function.Function;
  */
 public class LambdaUtils {
 
+    /**
+     * {@link Runnable}-like interface that can throw arbitrary exceptions.
+     */
+    public interface RunnableThatCanThrow<E extends Throwable> {
+        void run() throws E;
+    }
+
+    /**
+     * {@link java.util.function.Supplier}-like interface that can throw arbitrary exceptions.
+     */
+    public interface SupplierThatCanThrow<T, E extends Throwable> {
+        T get() throws E;
+    }
+
     /**
      * {@link Consumer}-like interface that can throw arbitrary exceptions.
      */
@@ -22,6 +36,19 @@ public class LambdaUtils {
         R apply(T t) throws E;
     }
 
+    /**
+     * Wrapper for lambdas that can throw exceptions.
+     */
+    public static <E extends Throwable> Runnable rethrowChecked(RunnableThatCanThrow<E> function) {
+        return () -> {
+            try {
+                function.run();
+            } catch (Throwable e) {
+                throwChecked(e);
+            }
+        };
+    }
+
     /**
      * Wrapper for lambdas that can throw exceptions.
      */
@@ -0,0 +1,70 @@
+package org.transparent.diamond.compiletest;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tells whether what one test compiled with is collected once the test is over: the processor instance,
+ * the {@link AnnotationProcessorClassLoader} it was loaded in, and the javac context it ran in, which is
+ * tracked through the processing environment javac gave the processor, since each holds the other.
+ * Objects are only held through weak references, so tracking them does not keep them alive.
+ * <p>
+ * No size is reported for a leak: a heap delta cannot tell what the leaked objects keep alive
+ * from what anything else allocated, and is zero when the leak only replaces an earlier one.
+ */
+final class LeakTracker {
+
+    /**
+     * Garbage collections to run, at most, before an object that is still reachable counts as leaked.
+     */
+    private static final int MAX_COLLECTIONS = 10;
+
+    private final Map<String, WeakReference<Object>> tracked = new LinkedHashMap<>();
+
+    /**
+     * Forgets the objects tracked for an earlier test.
+     */
+    synchronized void start() {
+        tracked.clear();
+    }
+
+    /**
+     * Tracks an object that should no longer be reachable once the test is over.
+     *
+     * @param description What the object is, such as <code>processor instance</code>
+     */
+    synchronized void track(String description, Object object) {
+        if (object != null) {
+            tracked.put(description, new WeakReference<>(object));
+        }
+    }
+
+    /**
+     * Collects garbage until every tracked object is collected, or until it is clear that some never will be.
+     *
+     * @return The description of every tracked object that is still reachable
+     */
+    synchronized List<String> awaitCollection() throws InterruptedException {
+        List<String> reachable = reachable();
+        for (int i = 0; i < MAX_COLLECTIONS && !reachable.isEmpty(); i++) {
+            System.gc();
+            Thread.sleep(10L * i);
+            reachable = reachable();
+        }
+        return reachable;
+    }
+
+    private List<String> reachable() {
+        List<String> reachable = new ArrayList<>();
+        tracked.forEach((description, reference) -> {
+            if (reference.get() != null) {
+                reachable.add(description);
+            }
+        });
+        return reachable;
+    }
+
+}
@@ -0,0 +1,125 @@
+package org.transparent.diamond.compiletest;
+
+import org.junit.jupiter.api.DynamicTest;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs tests on a bounded pool of worker threads, but only once JUnit runs them. Running a test also starts
+ * the tests right after it, at most as many as there are threads, so that they compile while JUnit waits for
+ * the first. A test that JUnit filters out is therefore never started, unless it is within that look-ahead of
+ * one that runs. Each returned test waits for its own result, so tests are still reported in discovery order,
+ * and interrupting one, such as on a JUnit timeout, cancels its work.
+ * <p>
+ * Tests that must run alone are never started ahead; they run on JUnit's thread once it gets to them.
+ */
+final class ParallelTests {
+
+    private final List<DynamicTest> tests;
+    private final int parallelism;
+    private final Predicate<DynamicTest> runsAlone;
+    private final BitSet submitted = new BitSet();
+    private final HashMap<Integer, Future<Throwable>> results = new HashMap<>();
+    private ExecutorService executor;
+    private boolean closed;
+
+    private ParallelTests(List<DynamicTest> tests, int parallelism, Predicate<DynamicTest> runsAlone) {
+        this.tests = tests;
+        this.parallelism = parallelism;
+        this.runsAlone = runsAlone;
+    }
+
+    /**
+     * @param tests       Tests to run, in discovery order
+     * @param parallelism Maximum number of tests running at once
+     * @param runsAlone   Whether a test must run while no other test is running
+     * @return Tests that run the given ones on the pool, which is shut down once the stream is closed
+     */
+    static Stream<DynamicTest> run(Stream<DynamicTest> tests, int parallelism, Predicate<DynamicTest> runsAlone) {
+        ParallelTests parallelTests = new ParallelTests(tests.collect(Collectors.toList()), parallelism, runsAlone);
+        List<DynamicTest> scheduled = new ArrayList<>(parallelTests.tests.size());
+        for (int i = 0; i < parallelTests.tests.size(); i++) {
+            int index = i;
+            DynamicTest test = parallelTests.tests.get(i);
+            scheduled.add(DynamicTest.dynamicTest(test.getDisplayName(), () -> parallelTests.execute(index)));
+        }
+        return scheduled.stream().onClose(() -> {
+            parallelTests.close();
+            tests.close();
+        });
+    }
+
+    private void execute(int index) throws Throwable {
+        Future<Throwable> result = start(index);
+        if (result == null) {
+            tests.get(index).getExecutable().execute();
+            return;
+        }
+        Throwable failure;
+        try {
+            failure = result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Starts a test and the tests right after it, unless it must run alone.
+     *
+     * @return The result of the test, or <code>null</code> if it must run alone
+     */
+    private synchronized Future<Throwable> start(int index) {
+        if (closed) {
+            throw new IllegalStateException("The tests were already closed!");
+        }
+        if (runsAlone.test(tests.get(index))) {
+            // Nothing else is started, so that it runs as soon as the tests already started are done.
+            return null;
+        }
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread thread = new Thread(r, "diamond-compiletest-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (int i = index; i < Math.min(tests.size(), index + parallelism); i++) {
+            DynamicTest test = tests.get(i);
+            if (!submitted.get(i) && !runsAlone.test(test)) {
+                submitted.set(i);
+                results.put(i, executor.submit(() -> {
+                    try {
+                        test.getExecutable().execute();
+                        return null;
+                    } catch (Throwable t) {
+                        return t;
+                    }
+                }));
+            }
+        }
+        return results.remove(index);
+    }
+
+    private synchronized void close() {
+        closed = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.transparent.diamond.compiletest;
+
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+
+/**
+ * Listens to the task events of one compilation and builds its {@link CompilationMetrics}.
+ * Every phase is also reported as a {@link CompilationEvents Flight Recorder event}.
+ */
+final class PhaseRecorder implements TaskListener {
+
+    private final String unit;
+    private final long start = System.nanoTime();
+    private final EnumMap<TaskEvent.Kind, Long> phaseNanos = new EnumMap<>(TaskEvent.Kind.class);
+    private final ArrayList<Long> roundNanos = new ArrayList<>();
+    private final ArrayDeque<OpenPhase> open = new ArrayDeque<>();
+    private long lastMark = start;
+
+    /**
+     * @param unit Name of what is compiled, for the Flight Recorder events
+     */
+    PhaseRecorder(String unit) {
+        this.unit = unit;
+    }
+
+    @Override
+    public void started(TaskEvent e) {
+        if (isWholeCompilation(e.getKind())) {
+            return;
+        }
+        long now = System.nanoTime();
+        chargeInnermost(now);
+        open.push(new OpenPhase(e.getKind(), now, CompilationEvents.beginPhase(unit, e.getKind().name())));
+    }
+
+    @Override
+    public void finished(TaskEvent e) {
+        if (isWholeCompilation(e.getKind())) {
+            return;
+        }
+        boolean isOpen = false;
+        for (OpenPhase phase : open) {
+            if (phase.kind == e.getKind()) {
+                isOpen = true;
+                break;
+            }
+        }
+        if (!isOpen) {
+            return;
+        }
+        long now = System.nanoTime();
+        chargeInnermost(now);
+        // Phases close in reverse order; anything still open above the finished one was left unbalanced.
+        OpenPhase phase;
+        do {
+            phase = open.pop();
+            CompilationEvents.commit(phase.event);
+        } while (phase.kind != e.getKind());
+        if (phase.kind == TaskEvent.Kind.ANNOTATION_PROCESSING_ROUND) {
+            roundNanos.add(now - phase.start);
+        }
+    }
+
+    /**
+     * @return Metrics of the compilation, which ends now
+     */
+    CompilationMetrics finish() {
+        long now = System.nanoTime();
+        chargeInnermost(now);
+        while (!open.isEmpty()) {
+            CompilationEvents.commit(open.pop().event);
+        }
+        return new CompilationMetrics(now - start, phaseNanos, roundNanos);
+    }
+
+    private void chargeInnermost(long now) {
+        OpenPhase innermost = open.peek();
+        if (innermost != null) {
+            phaseNanos.merge(innermost.kind, now - lastMark, Long::sum);
+        }
+        lastMark = now;
+    }
+
+    /**
+     * The COMPILATION event (JDK 9+) spans everything else, which the total already covers.
+     */
+    private static boolean isWholeCompilation(TaskEvent.Kind kind) {
+        return kind.name().equals("COMPILATION");
+    }
+
+    private static final class OpenPhase {
+        final TaskEvent.Kind kind;
+        final long start;
+        final Object event;
+
+        OpenPhase(TaskEvent.Kind kind, long start, Object event) {
+            this.kind = kind;
+            this.start = start;
+            this.event = event;
+        }
+    }
+
+}
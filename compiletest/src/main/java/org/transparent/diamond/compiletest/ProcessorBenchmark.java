@@ -0,0 +1,40 @@
+package org.transparent.diamond.compiletest;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks an {@link javax.annotation.processing.Processor annotation processor}
+ * for benchmarking. Diamond will compile the processor and repeatedly invoke javac
+ * with the processor on the same stub class that {@link ProcessorTest} uses, timing
+ * the processor itself separately from the rest of the compilation.
+ *
+ * @see CompileTestRunner#runProcessorBenchmarksIn(java.io.File, java.util.Collection, CompileTestOptions)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ProcessorBenchmark {
+
+    /**
+     * Annotation class to use. It should support the {@link #target()} ElementType.
+     */
+    Class<? extends Annotation> annotation() default AnnotationForTesting.class;
+
+    /**
+     * Diamond will give the annotation processor an appropriate
+     * stub class with an annotated target of this type.
+     *
+     * @see ProcessorTest#target()
+     */
+    ElementType target();
+
+    /**
+     * Number of compilations to run before measuring, so that the JIT has warmed up.
+     */
+    int warmupIterations() default 5;
+
+    /**
+     * Number of measured compilations.
+     */
+    int iterations() default 10;
+
+}
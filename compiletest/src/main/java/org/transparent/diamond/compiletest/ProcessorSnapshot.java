@@ -0,0 +1,102 @@
+package org.transparent.diamond.compiletest;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A golden snapshot of what a processor generated, kept next to its source file and compared
+ * against instead of compiling an expected source. A snapshot holds the canonical classes,
+ * or the element signatures, of the compilation of the stub with the processor, sorted by name
+ * and compressed. javac generates different bytecode on different JDKs, so every major
+ * JDK version has a snapshot of its own.
+ */
+final class ProcessorSnapshot {
+
+    private static final int MAGIC = 0xD1A35001;
+
+    /**
+     * Contents of a snapshot of bytecode.
+     */
+    static final String CLASSES = "classes";
+
+    /**
+     * Contents of a snapshot of element signatures.
+     */
+    static final String ELEMENT_SIGNATURES = "element signatures";
+
+    private final Path file;
+    private final String contents;
+
+    /**
+     * @param sourceRoot Directory the processor's source file is in
+     * @param className  Name of the processor class, with packages separated by dots
+     * @param contents   Either {@link #CLASSES} or {@link #ELEMENT_SIGNATURES}
+     */
+    ProcessorSnapshot(Path sourceRoot, String className, String contents) {
+        String fileName = className.replace('.', File.separatorChar) + ".jdk" + javaMajorVersion()
+                + (contents.equals(CLASSES) ? "" : ".signatures") + ".snapshot";
+        this.file = sourceRoot.resolve(fileName);
+        this.contents = contents;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return The recorded entries, keyed by class name, or {@link Optional#empty()} if there is no snapshot yet
+     * @throws IOException If the snapshot cannot be read, or holds something else than expected
+     */
+    Optional<Map<String, byte[]>> read() throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(contents)) {
+                throw new IOException(file + " is not a snapshot of " + contents + "; update it to record one");
+            }
+            int count = in.readInt();
+            TreeMap<String, byte[]> entries = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                byte[] entry = new byte[in.readInt()];
+                in.readFully(entry);
+                entries.put(name, entry);
+            }
+            return Optional.of(entries);
+        }
+    }
+
+    /**
+     * Records entries, replacing the snapshot if there is one. The same entries always give
+     * the same file, so an unchanged snapshot does not show up as changed in version control.
+     *
+     * @throws IOException If the snapshot cannot be written
+     */
+    void write(Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(contents);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, byte[]> entry : new TreeMap<>(entries).entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        Files.write(file, bytes.toByteArray());
+    }
+
+    private static int javaMajorVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+}
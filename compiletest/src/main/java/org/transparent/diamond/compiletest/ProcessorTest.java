@@ -7,6 +7,8 @@ import java.lang.annotation.*;
  * for testing. Diamond will compile the processor, invoke javac with the processor
  * with a stub class, invoke vanilla javac with the provided test case, and directly
  * compare the bytecode results. Iff the bytecode matches <b>exactly</b>, the test passes.
+ * Every class counts, including inner, anonymous and generated classes; only debug
+ * information, such as line numbers, is left out of the comparison.
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
@@ -28,6 +30,8 @@ public @interface ProcessorTest {
 
     /**
      * Expected code to be generated by this processor (in source code form).
+     * If neither this nor {@link #expectedFile()} is set, the test compares against a snapshot
+     * instead, if {@link CompileTestOptions#snapshots(boolean) snapshots} are enabled.
      */
     String[] expected() default {};
 
@@ -38,4 +42,55 @@ public @interface ProcessorTest {
      */
     String expectedFile() default "";
 
+    /**
+     * Warnings that the processor is expected to report while it compiles the stub class.
+     * Each one must be part of the message of at least one warning; other warnings are allowed.
+     */
+    String[] expectedWarnings() default {};
+
+    /**
+     * Errors that the processor is expected to report while it compiles the stub class.
+     * If set, the test expects the compilation to fail, with each of these being part of the
+     * message of at least one error, and {@link #expected()} and {@link #expectedFile()} are not used.
+     */
+    String[] expectedErrors() default {};
+
+    /**
+     * Whether to stop both compilations after analysis, and compare the element signatures of their
+     * classes instead of their bytecode: kinds, modifiers, supertypes, annotations kept in class files,
+     * and the signatures of fields, constructors, methods and member classes. This skips generating,
+     * writing and reading class files, but leaves method bodies and local and anonymous classes
+     * unchecked, so it suits processors that only add members or generate sources.
+     */
+    boolean analyzeOnly() default false;
+
+    /**
+     * Maximum time, in milliseconds, that the processor may spend initializing and
+     * processing while it compiles the stub class. The test fails if it takes longer,
+     * even if the bytecode matches. Negative for no limit.
+     */
+    long maxProcessingMillis() default -1;
+
+    /**
+     * Maximum number of bytes that the processor may allocate on the compiling thread while
+     * initializing and processing, including what javac allocates on its behalf. The test fails
+     * if it allocates more, even if the bytecode matches. Negative for no limit.
+     * Needs a JVM that can measure allocations per thread, as HotSpot does; on any other, the test is aborted.
+     */
+    long maxAllocatedBytes() default -1;
+
+    /**
+     * Maximum number of processing rounds that the processor may take part in, including
+     * the final one. The test fails if it takes part in more, even if the bytecode matches.
+     * Negative for no limit.
+     */
+    int maxRounds() default -1;
+
+    /**
+     * Number of compilations to run before the one whose time and allocations are checked against
+     * {@link #maxProcessingMillis()} and {@link #maxAllocatedBytes()}, so that the JIT has warmed up.
+     * Only used if one of those is set.
+     */
+    int budgetWarmupIterations() default 3;
+
 }
@@ -0,0 +1,197 @@
+package org.transparent.diamond.compiletest;
+
+import org.transparent.diamond.compiletest.LambdaUtils.FunctionThatCanThrow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Reads the index written by {@link ProcessorTestIndexer}.
+ */
+final class ProcessorTestIndex {
+
+    static final String RESOURCE = "META-INF/diamond/processor-tests.properties";
+    static final String TESTS = "tests";
+    static final String LENGTH_SUFFIX = "[]";
+
+    private final TreeMap<String, Properties> tests = new TreeMap<>();
+
+    private ProcessorTestIndex() {
+    }
+
+    /**
+     * Loads every index visible to a classloader, keeping only the tests whose
+     * source file is under the given source root.
+     *
+     * @throws IOException If an index cannot be read
+     */
+    static ProcessorTestIndex load(ClassLoader classLoader, File sourceRoot) throws IOException {
+        ProcessorTestIndex index = new ProcessorTestIndex();
+        Enumeration<URL> resources = classLoader.getResources(RESOURCE);
+        while (resources.hasMoreElements()) {
+            Properties properties = new Properties();
+            try (InputStream in = resources.nextElement().openStream()) {
+                properties.load(in);
+            }
+            String names = properties.getProperty(TESTS, "");
+            for (String className : names.split(",")) {
+                if (className.isEmpty()) {
+                    continue;
+                }
+                File sourceFile = new File(sourceRoot, topLevelName(className).replace('.', File.separatorChar) + ".java");
+                if (sourceFile.isFile()) {
+                    index.tests.put(className, properties);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return The key an attribute of a test is recorded under
+     */
+    static String attributeKey(String className, String attribute) {
+        return className + "#" + attribute;
+    }
+
+    /**
+     * @return The name of the top level class that declares a class
+     */
+    static String topLevelName(String binaryName) {
+        int nested = binaryName.indexOf('$', binaryName.lastIndexOf('.') + 1);
+        return nested < 0 ? binaryName : binaryName.substring(0, nested);
+    }
+
+    /**
+     * @return Whether the index lists no tests under the source root
+     */
+    boolean isEmpty() {
+        return tests.isEmpty();
+    }
+
+    /**
+     * @return The binary names of the indexed test classes, sorted
+     */
+    List<String> getClassNames() {
+        return new ArrayList<>(tests.keySet());
+    }
+
+    /**
+     * @return The names of the top level classes whose sources declare the indexed tests, sorted
+     */
+    List<String> getSourceClassNames() {
+        TreeSet<String> sourceClassNames = new TreeSet<>();
+        for (String className : tests.keySet()) {
+            sourceClassNames.add(topLevelName(className));
+        }
+        return new ArrayList<>(sourceClassNames);
+    }
+
+    /**
+     * Rebuilds the {@link ProcessorTest} annotation of an indexed test. Attributes that
+     * were not recorded take their default values; class values are loaded through
+     * the given loader first and the caller's classloader second.
+     */
+    ProcessorTest getAnnotation(String className, FunctionThatCanThrow<String, Class<?>, Exception> classLoader) {
+        Properties properties = tests.get(className);
+        HashMap<String, Object> values = new HashMap<>();
+        return (ProcessorTest) Proxy.newProxyInstance(
+                ProcessorTest.class.getClassLoader(),
+                new Class<?>[]{ProcessorTest.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "annotationType":
+                            return ProcessorTest.class;
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "@" + ProcessorTest.class.getName() + "(indexed " + className + ")";
+                        default:
+                            synchronized (values) {
+                                if (!values.containsKey(method.getName())) {
+                                    values.put(method.getName(), attribute(properties, className, method, classLoader));
+                                }
+                                Object value = values.get(method.getName());
+                                return value.getClass().isArray() ? cloneArray(value) : value;
+                            }
+                    }
+                }
+        );
+    }
+
+    private static Object attribute(Properties properties,
+                                    String className,
+                                    Method method,
+                                    FunctionThatCanThrow<String, Class<?>, Exception> classLoader) {
+        String key = attributeKey(className, method.getName());
+        Class<?> type = method.getReturnType();
+        if (type.isArray()) {
+            String length = properties.getProperty(key + LENGTH_SUFFIX);
+            if (length == null) {
+                return method.getDefaultValue();
+            }
+            Object array = Array.newInstance(type.getComponentType(), Integer.parseInt(length));
+            for (int i = 0; i < Array.getLength(array); i++) {
+                Array.set(array, i, decode(properties.getProperty(key + "[" + i + "]"), type.getComponentType(), classLoader));
+            }
+            return array;
+        }
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return method.getDefaultValue();
+        }
+        return decode(value, type, classLoader);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object decode(String value, Class<?> type, FunctionThatCanThrow<String, Class<?>, Exception> classLoader) {
+        if (type == String.class) {
+            return value;
+        } else if (type == Class.class) {
+            try {
+                return classLoader.apply(value);
+            } catch (Exception e) {
+                try {
+                    return Class.forName(value, false, ProcessorTestIndex.class.getClassLoader());
+                } catch (ClassNotFoundException notFound) {
+                    throw new TypeNotPresentException(value, notFound);
+                }
+            }
+        } else if (type.isEnum()) {
+            return Enum.valueOf((Class<? extends Enum>) type, value);
+        } else if (type == boolean.class) {
+            return Boolean.parseBoolean(value);
+        } else if (type == int.class) {
+            return Integer.parseInt(value);
+        } else if (type == long.class) {
+            return Long.parseLong(value);
+        } else if (type == double.class) {
+            return Double.parseDouble(value);
+        } else if (type == float.class) {
+            return Float.parseFloat(value);
+        } else if (type == short.class) {
+            return Short.parseShort(value);
+        } else if (type == byte.class) {
+            return Byte.parseByte(value);
+        } else if (type == char.class) {
+            return value.charAt(0);
+        }
+        throw new UnsupportedOperationException("Cannot read " + type.getName() + " attributes from the processor test index");
+    }
+
+    private static Object cloneArray(Object array) {
+        int length = Array.getLength(array);
+        Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.transparent.diamond.compiletest;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.SimpleAnnotationValueVisitor8;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * An annotation processor that records every class annotated with {@link ProcessorTest},
+ * together with the attributes set on the annotation, in an index resource.
+ * {@link CompileTestRunner} reads that index to go straight to the tests instead of
+ * compiling and scanning every file under the source root.
+ * <p>
+ * To use it, put Diamond-CompileTest on the annotation processor path of the tests,
+ * for example with <code>testAnnotationProcessor</code> in Gradle. Since the jar declares it as a service,
+ * javac also runs it on any compilation that has the jar on its classpath but no processor path;
+ * pass <code>-proc:none</code> or <code>-processor</code> there to leave it out.
+ */
+@SupportedAnnotationTypes("org.transparent.diamond.compiletest.ProcessorTest")
+public class ProcessorTestIndexer extends AbstractProcessor {
+
+    private final TreeMap<String, String> entries = new TreeMap<>();
+    private final TreeSet<String> tests = new TreeSet<>();
+    private final ArrayList<Element> originatingElements = new ArrayList<>();
+
+    /**
+     * Turns annotation values into strings, or lists of strings for arrays.
+     * Classes are recorded by binary name and enum constants by name.
+     */
+    private final SimpleAnnotationValueVisitor8<Object, Void> encoder = new SimpleAnnotationValueVisitor8<Object, Void>() {
+        @Override
+        protected Object defaultAction(Object o, Void unused) {
+            return String.valueOf(o);
+        }
+
+        @Override
+        public Object visitType(TypeMirror t, Void unused) {
+            if (t instanceof DeclaredType) {
+                TypeElement element = (TypeElement) ((DeclaredType) t).asElement();
+                return processingEnv.getElementUtils().getBinaryName(element).toString();
+            }
+            return t.toString();
+        }
+
+        @Override
+        public Object visitEnumConstant(VariableElement c, Void unused) {
+            return c.getSimpleName().toString();
+        }
+
+        @Override
+        public Object visitArray(List<? extends AnnotationValue> values, Void unused) {
+            ArrayList<Object> out = new ArrayList<>();
+            for (AnnotationValue value : values) {
+                out.add(value.accept(this, null));
+            }
+            return out;
+        }
+    };
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element instanceof TypeElement && isProcessor((TypeElement) element)) {
+                    record((TypeElement) element, annotation);
+                }
+            }
+        }
+        if (roundEnv.processingOver() && !tests.isEmpty()) {
+            write();
+        }
+        return false;
+    }
+
+    /**
+     * Like discovery from the source root, only classes that implement {@link Processor} are tests.
+     */
+    private boolean isProcessor(TypeElement type) {
+        TypeElement processor = processingEnv.getElementUtils().getTypeElement(Processor.class.getName());
+        Types types = processingEnv.getTypeUtils();
+        return processor != null && types.isAssignable(types.erasure(type.asType()), types.erasure(processor.asType()));
+    }
+
+    private void record(TypeElement type, TypeElement annotation) {
+        String className = processingEnv.getElementUtils().getBinaryName(type).toString();
+        tests.add(className);
+        originatingElements.add(type);
+        for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().asElement().equals(annotation)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : mirror.getElementValues().entrySet()) {
+                String key = ProcessorTestIndex.attributeKey(className, value.getKey().getSimpleName().toString());
+                Object encoded = value.getValue().accept(encoder, null);
+                if (encoded instanceof List) {
+                    List<?> values = (List<?>) encoded;
+                    entries.put(key + ProcessorTestIndex.LENGTH_SUFFIX, Integer.toString(values.size()));
+                    for (int i = 0; i < values.size(); i++) {
+                        entries.put(key + "[" + i + "]", String.valueOf(values.get(i)));
+                    }
+                } else {
+                    entries.put(key, String.valueOf(encoded));
+                }
+            }
+        }
+    }
+
+    private void write() {
+        StringBuilder out = new StringBuilder();
+        out.append(ProcessorTestIndex.TESTS).append('=').append(escape(String.join(",", tests))).append('\n');
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            out.append(escape(entry.getKey())).append('=').append(escape(entry.getValue())).append('\n');
+        }
+        try (Writer writer = processingEnv.getFiler()
+                .createResource(StandardLocation.CLASS_OUTPUT, "", ProcessorTestIndex.RESOURCE, originatingElements.toArray(new Element[0]))
+                .openWriter()) {
+            writer.write(out.toString());
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + ProcessorTestIndex.RESOURCE + ": " + e);
+        }
+    }
+
+    /**
+     * Escapes a key or value for a {@link Properties} file.
+     */
+    private static String escape(String value) {
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                    out.append('\\').append(c);
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case ' ':
+                    out.append(i == 0 ? "\\ " : " ");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.toString();
+    }
+
+}
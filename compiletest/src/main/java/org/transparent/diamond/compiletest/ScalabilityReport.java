@@ -0,0 +1,145 @@
+package org.transparent.diamond.compiletest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.transparent.diamond.compiletest.BenchmarkReport.number;
+import static org.transparent.diamond.compiletest.BenchmarkReport.string;
+
+/**
+ * Collects how the time spent in each processor grows with the size of its input, and writes
+ * it as JSON. The growth is fitted as a power law, <code>time = c &times; n<sup>k</sup></code>,
+ * where <code>n</code> is the number of annotated classes; <code>k</code> near 1 is linear,
+ * and well above 1 is super-linear.
+ */
+final class ScalabilityReport {
+
+    private final List<Result> results = new ArrayList<>();
+
+    synchronized void add(Result result) {
+        results.add(result);
+    }
+
+    /**
+     * Writes every result added so far to a file, replacing it.
+     *
+     * @throws IOException If the file cannot be written
+     */
+    synchronized void write(File file) throws IOException {
+        StringBuilder out = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            results.get(i).appendJson(out);
+            out.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        out.append("]\n");
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        Files.write(file.toPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The measurements of one processor at each input size, in milliseconds per compilation.
+     */
+    static final class Result {
+
+        /**
+         * Times below this are rounded up, since a power law cannot fit a time of zero.
+         */
+        private static final double MIN_MILLIS = 0.001;
+
+        private final String processor;
+        private final String target;
+        private final int[] classes;
+        private final int membersPerClass;
+        private final double[] processorMillis;
+        private final double[] javacMillis;
+        private final double maxExponent;
+
+        Result(String processor, String target, int[] classes, int membersPerClass,
+               double[] processorMillis, double[] javacMillis, double maxExponent) {
+            this.processor = processor;
+            this.target = target;
+            this.classes = classes;
+            this.membersPerClass = membersPerClass;
+            this.processorMillis = processorMillis;
+            this.javacMillis = javacMillis;
+            this.maxExponent = maxExponent;
+        }
+
+        /**
+         * @return The exponent <code>k</code> of the power law fitted to the processor time, by least squares
+         * on a log-log scale, or NaN if there are fewer than two sizes
+         */
+        double exponent() {
+            int n = classes.length;
+            if (n < 2) {
+                return Double.NaN;
+            }
+            double meanX = 0;
+            double meanY = 0;
+            for (int i = 0; i < n; i++) {
+                meanX += Math.log(classes[i]) / n;
+                meanY += Math.log(Math.max(processorMillis[i], MIN_MILLIS)) / n;
+            }
+            double covariance = 0;
+            double variance = 0;
+            for (int i = 0; i < n; i++) {
+                double x = Math.log(classes[i]) - meanX;
+                covariance += x * (Math.log(Math.max(processorMillis[i], MIN_MILLIS)) - meanY);
+                variance += x * x;
+            }
+            return variance == 0 ? Double.NaN : covariance / variance;
+        }
+
+        /**
+         * @return Whether the processor time grows faster than the largest allowed exponent
+         */
+        boolean isSuperLinear() {
+            return exponent() > maxExponent;
+        }
+
+        /**
+         * @return A one line summary, such as <code>processor time grows as n^1.02 (limit n^1.20) over 10..640 classes, [0.8, 3.1, 12.9, 51.0] ms</code>
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "processor time grows as n^%.2f (limit n^%.2f) over %d..%d classes, %s ms",
+                    exponent(), maxExponent, classes[0], classes[classes.length - 1],
+                    Arrays.toString(processorMillis));
+        }
+
+        private void appendJson(StringBuilder out) {
+            out.append("    {\n");
+            out.append("        \"processor\" : ").append(string(processor)).append(",\n");
+            out.append("        \"target\" : ").append(string(target)).append(",\n");
+            out.append("        \"classes\" : ").append(Arrays.toString(classes)).append(",\n");
+            out.append("        \"membersPerClass\" : ").append(membersPerClass).append(",\n");
+            out.append("        \"processorMillis\" : ");
+            numbers(out, processorMillis);
+            out.append(",\n        \"javacMillis\" : ");
+            numbers(out, javacMillis);
+            out.append(",\n        \"exponent\" : ").append(number(exponent())).append(",\n");
+            out.append("        \"maxExponent\" : ").append(number(maxExponent)).append(",\n");
+            out.append("        \"superLinear\" : ").append(isSuperLinear()).append("\n");
+            out.append("    }");
+        }
+
+        private static void numbers(StringBuilder out, double[] values) {
+            out.append('[');
+            for (int i = 0; i < values.length; i++) {
+                out.append(i == 0 ? "" : ", ").append(number(values[i]));
+            }
+            out.append(']');
+        }
+
+    }
+
+}
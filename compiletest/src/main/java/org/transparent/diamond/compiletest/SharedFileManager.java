@@ -0,0 +1,137 @@
+package org.transparent.diamond.compiletest;
+
+import javax.tools.*;
+import javax.tools.JavaFileObject.Kind;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A thread-safe file manager that serves the read-only classpath for every
+ * compilation of a {@link CompileTestUtils}. Classpath lookups are answered
+ * from a {@link ClasspathIndex} built once; platform lookups go to the
+ * system file manager, one caller at a time.
+ */
+final class SharedFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+    private final ClasspathIndex index;
+
+    /**
+     * Builds a SharedFileManager over the given classpath.
+     *
+     * @throws IOException If a classpath entry cannot be read
+     */
+    SharedFileManager(StandardJavaFileManager fileManager, Collection<File> classpath) throws IOException {
+        super(fileManager);
+        fileManager.setLocation(StandardLocation.CLASS_PATH, classpath);
+        this.index = new ClasspathIndex(classpath);
+    }
+
+    /**
+     * @return The indexed source file for a class under the given classpath root,
+     * or <code>null</code> if there is none.
+     */
+    JavaFileObject getSourceFile(File root, String className) {
+        return index.find(root, className, Kind.SOURCE);
+    }
+
+    /**
+     * @return Every indexed source file under the given classpath root, in a stable order.
+     */
+    List<JavaFileObject> getSourceFiles(File root) {
+        return new ArrayList<>(index.findAll(root, Kind.SOURCE));
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse) throws IOException {
+        if (location == StandardLocation.CLASS_PATH) {
+            return new ArrayList<>(index.list(packageName, kinds, recurse));
+        }
+        synchronized (this) {
+            ArrayList<JavaFileObject> files = new ArrayList<>();
+            for (JavaFileObject file : super.list(location, packageName, kinds, recurse)) {
+                files.add(file);
+            }
+            return files;
+        }
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof ClasspathIndex.IndexedFileObject) {
+            return ((ClasspathIndex.IndexedFileObject) file).getBinaryName();
+        }
+        synchronized (this) {
+            return super.inferBinaryName(location, file);
+        }
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof ClasspathIndex.IndexedFileObject || b instanceof ClasspathIndex.IndexedFileObject) {
+            return a.toUri().equals(b.toUri());
+        }
+        synchronized (this) {
+            return super.isSameFile(a, b);
+        }
+    }
+
+    @Override
+    public synchronized ClassLoader getClassLoader(Location location) {
+        return super.getClassLoader(location);
+    }
+
+    @Override
+    public synchronized boolean handleOption(String current, Iterator<String> remaining) {
+        return super.handleOption(current, remaining);
+    }
+
+    @Override
+    public synchronized boolean hasLocation(Location location) {
+        return super.hasLocation(location);
+    }
+
+    @Override
+    public synchronized JavaFileObject getJavaFileForInput(Location location, String className, Kind kind) throws IOException {
+        return super.getJavaFileForInput(location, className, kind);
+    }
+
+    @Override
+    public synchronized JavaFileObject getJavaFileForOutput(Location location, String className, Kind kind, FileObject sibling) throws IOException {
+        return super.getJavaFileForOutput(location, className, kind, sibling);
+    }
+
+    @Override
+    public synchronized FileObject getFileForInput(Location location, String packageName, String relativeName) throws IOException {
+        return super.getFileForInput(location, packageName, relativeName);
+    }
+
+    @Override
+    public synchronized FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling) throws IOException {
+        return super.getFileForOutput(location, packageName, relativeName, sibling);
+    }
+
+    @Override
+    public synchronized int isSupportedOption(String option) {
+        return super.isSupportedOption(option);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        super.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            index.close();
+        } finally {
+            super.close();
+        }
+    }
+
+}
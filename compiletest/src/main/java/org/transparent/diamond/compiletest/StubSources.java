@@ -0,0 +1,102 @@
+package org.transparent.diamond.compiletest;
+
+import java.lang.annotation.ElementType;
+import java.util.StringJoiner;
+
+/**
+ * Builds the stub classes that processors under test are run against.
+ */
+final class StubSources {
+
+    private StubSources() {
+    }
+
+    /**
+     * Builds an <code>Example</code> class with one annotated element.
+     *
+     * @param target              Kind of the annotated element
+     * @param annotationClassName Name of the annotation class
+     * @return Source of the stub, or <code>null</code> if the target is not supported
+     */
+    static String stubSource(ElementType target, String annotationClassName) {
+        return stubSource(target, annotationClassName, "Example");
+    }
+
+    /**
+     * Builds a stub class like {@link #stubSource(ElementType, String)}, under another name.
+     *
+     * @param target              Kind of the annotated element
+     * @param annotationClassName Name of the annotation class
+     * @param className           Simple name of the stub class
+     * @return Source of the stub, or <code>null</code> if the target is not supported
+     */
+    static String stubSource(ElementType target, String annotationClassName, String className) {
+        if (target == ElementType.TYPE) {
+            return new StringBuilder()
+                    .append("import " + annotationClassName + ";\n")
+                    .append("@" + annotationClassName + "\n")
+                    .append("public class " + className + " {}")
+                    .toString();
+        } else if (target == ElementType.METHOD) {
+            return new StringBuilder()
+                    .append("import " + annotationClassName + ";\n")
+                    .append("public class " + className + " {\n")
+                    .append("    @" + annotationClassName + "\n")
+                    .append("    public void example() {}\n")
+                    .append("}")
+                    .toString();
+        } else if (target == ElementType.CONSTRUCTOR) {
+            return new StringBuilder()
+                    .append("import " + annotationClassName + ";\n")
+                    .append("public class " + className + " {\n")
+                    .append("    @" + annotationClassName + "\n")
+                    .append("    public " + className + "() {}\n")
+                    .append("}")
+                    .toString();
+        } else if (target == ElementType.FIELD) {
+            return new StringBuilder()
+                    .append("import " + annotationClassName + ";\n")
+                    .append("public class " + className + " {\n")
+                    .append("    @" + annotationClassName + "\n")
+                    .append("    public int example;\n")
+                    .append("}")
+                    .toString();
+        }
+        return null;
+    }
+
+    /**
+     * Builds a larger synthetic class, to measure how a processor scales with its input. The class
+     * has the given number of fields, methods and constructors, and exactly one annotated element,
+     * like a stub: the class itself, or its first member of the target kind.
+     *
+     * @param target              Kind of the annotated element
+     * @param annotationClassName Name of the annotation class
+     * @param className           Simple name of the class
+     * @param members             Number of members of each kind, at least 1
+     * @return Source of the class, or <code>null</code> if the target is not supported
+     */
+    static String syntheticSource(ElementType target, String annotationClassName, String className, int members) {
+        if (target != ElementType.TYPE && target != ElementType.METHOD
+                && target != ElementType.CONSTRUCTOR && target != ElementType.FIELD) {
+            return null;
+        }
+        String annotation = "    @" + annotationClassName + "\n";
+        StringBuilder source = new StringBuilder()
+                .append("import " + annotationClassName + ";\n")
+                .append(target == ElementType.TYPE ? "@" + annotationClassName + "\n" : "")
+                .append("public class " + className + " {\n");
+        StringJoiner parameters = new StringJoiner(", ");
+        for (int i = 0; i < members; i++) {
+            source.append(i == 0 && target == ElementType.FIELD ? annotation : "")
+                    .append("    public int field" + i + ";\n")
+                    .append(i == 0 && target == ElementType.METHOD ? annotation : "")
+                    .append("    public int method" + i + "() { return field" + i + "; }\n")
+                    .append(i == 0 && target == ElementType.CONSTRUCTOR ? annotation : "")
+                    .append("    public " + className + "(" + parameters + ") {}\n");
+            parameters.add("int p" + i);
+        }
+        return source.append("}").toString();
+    }
+
+}
@@ -0,0 +1,278 @@
+package org.transparent.diamond.compiletest;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.transparent.diamond.compiletest.LambdaUtils.SupplierThatCanThrow;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.lang.annotation.ElementType;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs processor tests that share an annotation and a target in batches: the stubs of a batch
+ * are compiled with all of their processors in one javac invocation, and their expected sources
+ * in another. Each test gets its own uniquely named stub and expected class, and each processor
+ * only sees its own stub through an {@link IsolatedProcessor}. The generated and expected classes
+ * are then renamed back to <code>Example</code> and compared per test, as whole sets.
+ * <p>
+ * A batch only ever decides that a test passed. A test whose classes do not match in its batch,
+ * or whose batch failed to compile, is run again on its own, so any failure is reported
+ * by, and attributed to, exactly the test that caused it.
+ */
+final class TestBatches {
+
+    private static final Pattern EXAMPLE = Pattern.compile("\\bExample(\\w*)");
+
+    private final CompileTestUtils compileTestUtils;
+    private final ExpectedBytecodeCache expectedBytecodeCache;
+    private final int batchSize;
+    private final boolean reportCompilationMetrics;
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    TestBatches(CompileTestUtils compileTestUtils, ExpectedBytecodeCache expectedBytecodeCache,
+                int batchSize, boolean reportCompilationMetrics) {
+        this.compileTestUtils = compileTestUtils;
+        this.expectedBytecodeCache = expectedBytecodeCache;
+        this.batchSize = batchSize;
+        this.reportCompilationMetrics = reportCompilationMetrics;
+    }
+
+    /**
+     * Adds a test to a batch. Every test must be added before the first one runs.
+     *
+     * @param upToDate Tells whether the test will be skipped, in which case it is left out of its batch
+     */
+    synchronized Member add(String annotationClassName, ElementType target, String expectedSource,
+                            SupplierThatCanThrow<Class<?>, Exception> processorClass,
+                            SupplierThatCanThrow<Boolean, Exception> upToDate) {
+        String key = annotationClassName + "@" + target;
+        Batch batch = openBatches.get(key);
+        if (batch == null || batch.members.size() >= batchSize) {
+            batch = new Batch(annotationClassName, target);
+            openBatches.put(key, batch);
+        }
+        Member member = new Member(expectedSource, processorClass, upToDate, batch);
+        batch.members.add(member);
+        return member;
+    }
+
+    /**
+     * Runs the batch of a test, unless it already ran.
+     *
+     * @return Whether the test generated exactly the expected classes in its batch
+     */
+    boolean passedInBatch(Member member) {
+        member.batch.run();
+        return member.passed;
+    }
+
+    /**
+     * A test in a batch.
+     */
+    static final class Member {
+
+        private final String expectedSource;
+        private final SupplierThatCanThrow<Class<?>, Exception> processorClass;
+        private final SupplierThatCanThrow<Boolean, Exception> upToDate;
+        private final Batch batch;
+        private String className;
+        private Processor processor;
+        private Map<String, byte[]> expectedClasses;
+        private volatile boolean passed;
+
+        private Member(String expectedSource,
+                       SupplierThatCanThrow<Class<?>, Exception> processorClass,
+                       SupplierThatCanThrow<Boolean, Exception> upToDate,
+                       Batch batch) {
+            this.expectedSource = expectedSource;
+            this.processorClass = processorClass;
+            this.upToDate = upToDate;
+            this.batch = batch;
+        }
+
+    }
+
+    private final class Batch {
+
+        private final String annotationClassName;
+        private final ElementType target;
+        private final List<Member> members = new ArrayList<>();
+        private boolean ran;
+
+        Batch(String annotationClassName, ElementType target) {
+            this.annotationClassName = annotationClassName;
+            this.target = target;
+        }
+
+        synchronized void run() {
+            if (ran) {
+                return;
+            }
+            ran = true;
+            List<Member> running = new ArrayList<>();
+            for (Member member : members) {
+                try {
+                    if (!member.upToDate.get()) {
+                        member.processor = (Processor) member.processorClass.get().newInstance();
+                        member.className = "Example__" + running.size() + "__";
+                        running.add(member);
+                    }
+                } catch (Exception e) {
+                    // The test will fail on its own, with the same exception.
+                }
+            }
+            // A batch of one saves nothing over running the test on its own.
+            if (running.size() < 2) {
+                return;
+            }
+            try {
+                compileExpected(running);
+                compileGenerated(running);
+            } catch (IOException e) {
+                compileTestUtils.printToConsole(CompilationDiagnostic.ofMessage(Diagnostic.Kind.WARNING,
+                        "Could not run a batch of " + running.size() + " tests, running them one by one: " + e));
+            } finally {
+                // Let the classes of the processors be unloaded once their tests are done.
+                for (Member member : running) {
+                    member.processor = null;
+                }
+            }
+        }
+
+        private void compileExpected(List<Member> running) throws IOException {
+            // Tests often expect the same source; each distinct one is compiled once.
+            LinkedHashMap<String, Member> compiling = new LinkedHashMap<>();
+            Map<Member, String> keys = new HashMap<>();
+            for (Member member : running) {
+                if (expectedBytecodeCache != null) {
+                    String key = ExpectedBytecodeCache.key(compileTestUtils.fingerprint(), "Example", member.expectedSource);
+                    Optional<Map<String, byte[]>> cached = expectedBytecodeCache.get(key);
+                    if (cached.isPresent()) {
+                        member.expectedClasses = cached.get();
+                        continue;
+                    }
+                    keys.put(member, key);
+                }
+                compiling.putIfAbsent(member.expectedSource, member);
+            }
+            if (compiling.isEmpty()) {
+                return;
+            }
+            LinkedHashMap<String, String> sources = new LinkedHashMap<>();
+            for (Member member : compiling.values()) {
+                Matcher matcher = EXAMPLE.matcher(member.expectedSource);
+                sources.put(member.className, matcher.replaceAll(Matcher.quoteReplacement(member.className) + "$1"));
+            }
+            CompilationResult result = compileTestUtils.compileBatch(sources, Collections.emptyList());
+            if (!result.isSuccess()) {
+                return;
+            }
+            Map<String, byte[]> outputs = result.getClasses().get();
+            if (!attributable(outputs, compiling.values())) {
+                return;
+            }
+            for (Member member : running) {
+                Member compiled = compiling.get(member.expectedSource);
+                if (compiled == null || member.expectedClasses != null) {
+                    continue;
+                }
+                member.expectedClasses = unbatch(outputs, compiled.className);
+                String key = keys.get(member);
+                if (key != null) {
+                    expectedBytecodeCache.put(key, member.expectedClasses);
+                }
+            }
+        }
+
+        private void compileGenerated(List<Member> running) throws IOException {
+            LinkedHashMap<String, String> sources = new LinkedHashMap<>();
+            for (Member member : running) {
+                sources.put(member.className, StubSources.stubSource(target, annotationClassName, member.className));
+            }
+            ArrayList<Processor> processors = new ArrayList<>();
+            for (Member member : running) {
+                processors.add(new IsolatedProcessor(member.processor, member.className, sources.keySet()));
+            }
+            CompilationResult result = compileTestUtils.compileBatch(sources, processors);
+            if (reportCompilationMetrics) {
+                System.out.println("Batch of " + running.size() + " tests of @" + annotationClassName + " on " + target
+                        + ": compiled the stubs with their processors in " + result.getMetrics());
+            }
+            if (!result.isSuccess()) {
+                return;
+            }
+            Map<String, byte[]> outputs = result.getClasses().get();
+            if (!attributable(outputs, running)) {
+                return;
+            }
+            for (Member member : running) {
+                Map<String, byte[]> generatedClasses = unbatch(outputs, member.className);
+                member.passed = member.expectedClasses != null && ClassComparison.same(member.expectedClasses, generatedClasses);
+            }
+        }
+
+    }
+
+    /**
+     * Tells whether every class in the outputs of a batch belongs to one of its tests. A class that
+     * does not, such as one generated under a fixed name, would be left out of every comparison,
+     * so the tests of the batch must then run on their own to be compared with it.
+     */
+    private static boolean attributable(Map<String, byte[]> outputs, Collection<Member> members) {
+        for (Map.Entry<String, byte[]> entry : outputs.entrySet()) {
+            if (!ClassComparison.isClassFile(entry.getValue())) {
+                continue;
+            }
+            String name = entry.getKey();
+            boolean belongs = false;
+            for (Member member : members) {
+                if (name.startsWith(member.className)) {
+                    belongs = true;
+                    break;
+                }
+            }
+            if (!belongs) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Picks the classes of one test out of the outputs of a batch, strips their
+     * debug info and renames them back, from the name of the test's class in the batch
+     * to <code>Example</code>. Every class whose name starts with the former belongs to the test.
+     *
+     * @return The classes, keyed by their name outside of the batch
+     */
+    private static Map<String, byte[]> unbatch(Map<String, byte[]> outputs, String className) {
+        Remapper remapper = new Remapper() {
+            @Override
+            public String map(String internalName) {
+                if (internalName.startsWith(className)) {
+                    return "Example" + internalName.substring(className.length());
+                }
+                return internalName;
+            }
+        };
+        HashMap<String, byte[]> classes = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : outputs.entrySet()) {
+            String name = entry.getKey();
+            if (!name.startsWith(className) || !ClassComparison.isClassFile(entry.getValue())) {
+                continue;
+            }
+            ClassReader reader = new ClassReader(entry.getValue());
+            ClassWriter writer = new ClassWriter(0);
+            reader.accept(new ClassRemapper(writer, remapper), ClassReader.SKIP_DEBUG);
+            classes.put(remapper.map(name), writer.toByteArray());
+        }
+        return classes;
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.transparent.diamond.compiletest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Durations of processor tests, recorded by earlier runs, that {@link TestShards} balances shards with.
+ * <p>
+ * Every shard has to see the same durations, or the shards would overlap, so a sharded run never
+ * changes the file it read them from. It writes the durations it measured next to it instead,
+ * in a file named after the shard, such as <code>durations.properties.shard-1-of-4</code>,
+ * which a later step merges back. An unsharded run merges its durations into the file directly.
+ */
+final class TestDurations {
+
+    private final Path file;
+    private final int shardIndex;
+    private final int shardCount;
+    private final TreeMap<String, Long> recorded = new TreeMap<>();
+    private final TreeMap<String, Long> measured = new TreeMap<>();
+
+    /**
+     * Loads the recorded durations from a file, if it exists.
+     *
+     * @throws IOException If the file exists but cannot be read
+     */
+    TestDurations(File file, int shardIndex, int shardCount) throws IOException {
+        this.file = file.toPath();
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        if (Files.isRegularFile(this.file)) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(this.file)) {
+                properties.load(in);
+            }
+            for (String testName : properties.stringPropertyNames()) {
+                try {
+                    recorded.put(testName, Long.parseLong(properties.getProperty(testName)));
+                } catch (NumberFormatException e) {
+                    // A duration that cannot be read only costs some balance.
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The durations recorded by earlier runs, in milliseconds, keyed by test name
+     */
+    Map<String, Long> getRecorded() {
+        return Collections.unmodifiableMap(recorded);
+    }
+
+    synchronized void record(String testName, long millis) {
+        measured.put(testName, millis);
+    }
+
+    /**
+     * Writes the measured durations, to the shard's own file if the run is sharded.
+     * Like the incremental manifest, it is written to a temporary file first and then moved into place.
+     *
+     * @throws IOException If the durations cannot be written
+     */
+    synchronized void save() throws IOException {
+        TreeMap<String, Long> durations = new TreeMap<>(measured);
+        Path target = file;
+        if (shardCount == 1) {
+            recorded.forEach(durations::putIfAbsent);
+        } else {
+            target = file.resolveSibling(file.getFileName() + ".shard-" + shardIndex + "-of-" + shardCount);
+        }
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Long> entry : durations.entrySet()) {
+            out.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        Path directory = target.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, out.toString().getBytes(StandardCharsets.ISO_8859_1));
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+}
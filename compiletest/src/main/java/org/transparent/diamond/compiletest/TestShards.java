@@ -0,0 +1,69 @@
+package org.transparent.diamond.compiletest;
+
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Splits tests into disjoint shards, the same way in every JVM that sees the same tests and durations.
+ * <p>
+ * Tests with a recorded duration are dealt out longest first, each to the shard with the least
+ * work so far, which balances the shards by time. Every other test, including any class that
+ * turns out not to be a test, goes to a shard picked by a hash of its name, which spreads
+ * new tests evenly without depending on anything else.
+ */
+final class TestShards {
+
+    private TestShards() {
+    }
+
+    /**
+     * @param names     Names of every candidate test, in the order they run in
+     * @param durations Recorded durations of tests, in milliseconds, keyed by test name
+     * @param index     Index of the shard to select, from 0
+     * @param count     Number of shards
+     * @return The names of the tests in the selected shard, in their original order
+     */
+    static List<String> select(List<String> names, Map<String, Long> durations, int index, int count) {
+        if (count == 1) {
+            return names;
+        }
+        HashSet<String> selected = new HashSet<>();
+        List<String> timed = new ArrayList<>();
+        for (String name : names) {
+            if (durations.containsKey(name)) {
+                timed.add(name);
+            } else if (hashShard(name, count) == index) {
+                selected.add(name);
+            }
+        }
+        timed.sort(Comparator.<String>comparingLong(durations::get).reversed().thenComparing(Comparator.naturalOrder()));
+        long[] loads = new long[count];
+        for (String name : timed) {
+            int shard = 0;
+            for (int i = 1; i < count; i++) {
+                if (loads[i] < loads[shard]) {
+                    shard = i;
+                }
+            }
+            loads[shard] += durations.get(name);
+            if (shard == index) {
+                selected.add(name);
+            }
+        }
+        List<String> shard = new ArrayList<>();
+        for (String name : names) {
+            if (selected.contains(name)) {
+                shard.add(name);
+            }
+        }
+        return shard;
+    }
+
+    private static int hashShard(String name, int count) {
+        MessageDigest digest = Digests.update(Digests.sha256(), name);
+        byte[] hash = digest.digest();
+        int value = ((hash[0] & 0xFF) << 24) | ((hash[1] & 0xFF) << 16) | ((hash[2] & 0xFF) << 8) | (hash[3] & 0xFF);
+        return Math.floorMod(value, count);
+    }
+
+}
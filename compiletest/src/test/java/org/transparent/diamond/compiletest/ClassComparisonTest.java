@@ -0,0 +1,113 @@
+package org.transparent.diamond.compiletest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClassComparisonTest {
+
+    private static final String OUTER = "package example;\n"
+            + "public class Outer {\n"
+            + "    int value;\n"
+            + "    class Inner {\n"
+            + "        int get() {\n"
+            + "            return value;\n"
+            + "        }\n"
+            + "    }\n"
+            + "}\n";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void classesDifferingOnlyInDebugInfoAreEqual() throws IOException {
+        String moved = OUTER.replace("    int value;\n", "\n    // moves every line down\n\n    int value;\n");
+        Map<String, byte[]> withDebugInfo = TestSources.compile(directory, "example.Outer", moved, "-g");
+        Map<String, byte[]> withoutDebugInfo = TestSources.compile(directory, "example.Outer", OUTER, "-g:none");
+        assertFalse(Arrays.equals(withDebugInfo.get("example.Outer"), withoutDebugInfo.get("example.Outer")));
+
+        Map<String, byte[]> expected = ClassComparison.canonicalize(withDebugInfo);
+        Map<String, byte[]> actual = ClassComparison.canonicalize(withoutDebugInfo);
+        assertTrue(ClassComparison.same(expected, actual), ClassComparison.diff(expected, actual));
+        assertEquals("", ClassComparison.diff(expected, actual));
+    }
+
+    @Test
+    void missingInnerClassIsReported() throws IOException {
+        Map<String, byte[]> expected = ClassComparison.canonicalize(TestSources.compile(directory, "example.Outer", OUTER));
+        Map<String, byte[]> actual = new TreeMap<>(expected);
+        actual.remove("example.Outer$Inner");
+
+        assertFalse(ClassComparison.same(expected, actual));
+        assertEquals("missing class example.Outer$Inner", ClassComparison.diff(expected, actual));
+    }
+
+    @Test
+    void extraClassIsReported() throws IOException {
+        Map<String, byte[]> expected = ClassComparison.canonicalize(TestSources.compile(directory, "example.Outer", OUTER));
+        Map<String, byte[]> actual = new TreeMap<>(expected);
+        actual.putAll(ClassComparison.canonicalize(TestSources.compile(directory, "example.Extra",
+                "package example;\nclass Extra {\n}\n")));
+
+        assertFalse(ClassComparison.same(expected, actual));
+        assertEquals("unexpected class example.Extra", ClassComparison.diff(expected, actual));
+    }
+
+    @Test
+    void resourcesAreLeftOut() throws IOException {
+        Map<String, byte[]> outputs = new TreeMap<>(TestSources.compile(directory, "example.Outer", OUTER));
+        outputs.put("META-INF/services/example.Service", "example.Outer\n".getBytes());
+        assertEquals(Arrays.asList("example.Outer", "example.Outer$Inner"),
+                Arrays.asList(ClassComparison.canonicalize(outputs).keySet().toArray()));
+    }
+
+    @Test
+    void diffPointsAtFirstDifferingInstruction() throws IOException {
+        String source = "package example;\n"
+                + "class Math {\n"
+                + "    int f(int x) {\n"
+                + "        int a = x + 1;\n"
+                + "        int b = a * 2;\n"
+                + "        return b - 3;\n"
+                + "    }\n"
+                + "}\n";
+        Map<String, byte[]> expected = ClassComparison.canonicalize(TestSources.compile(directory, "example.Math", source));
+        Map<String, byte[]> actual = ClassComparison.canonicalize(TestSources.compile(directory, "example.Math",
+                source.replace("b - 3", "b + 3")));
+
+        List<String> diff = Arrays.asList(ClassComparison.diff(expected, actual).split(System.lineSeparator()));
+        assertEquals(3, diff.size(), String.join("\n", diff));
+        assertEquals("class example.Math: method f(I)I: instructions differ from #10 on (13 expected, 13 generated)", diff.get(0));
+        assertEquals("    expected:  ... ISTORE 3; ILOAD 3; ICONST_3; ISUB; IRETURN; MAXS 2 4", diff.get(1));
+        assertEquals("    generated: ... ISTORE 3; ILOAD 3; ICONST_3; IADD; IRETURN; MAXS 2 4", diff.get(2));
+    }
+
+    @Test
+    void diffIsBounded() throws IOException {
+        StringBuilder expectedSource = new StringBuilder("package example;\nclass Many {\n");
+        StringBuilder actualSource = new StringBuilder("package example;\nclass Many {\n");
+        for (int i = 0; i < ClassComparison.MAX_DIFF_LINES * 2; i++) {
+            expectedSource.append("    int m").append(i).append("() { return ").append(i).append("; }\n");
+            actualSource.append("    int m").append(i).append("() { return -").append(i + 1).append("; }\n");
+        }
+        Map<String, byte[]> expected = ClassComparison.canonicalize(
+                TestSources.compile(directory, "example.Many", expectedSource.append("}\n").toString()));
+        Map<String, byte[]> actual = ClassComparison.canonicalize(
+                TestSources.compile(directory, "example.Many", actualSource.append("}\n").toString()));
+
+        String[] diff = ClassComparison.diff(expected, actual).split(System.lineSeparator());
+        assertEquals(ClassComparison.MAX_DIFF_LINES + 1, diff.length);
+        // Each of the methods adds three lines: where its instructions differ, and both windows.
+        int omitted = ClassComparison.MAX_DIFF_LINES * 2 * 3 - ClassComparison.MAX_DIFF_LINES;
+        assertEquals("... and " + omitted + " more differences", diff[diff.length - 1]);
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.transparent.diamond.compiletest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncrementalManifestTest {
+
+    private static final String PROCESSOR = "package tests;\n"
+            + "import org.transparent.diamond.compiletest.ProcessorTest;\n"
+            + "import tests.util.Helper1;\n"
+            + "import javax.annotation.processing.*;\n"
+            + "import javax.lang.model.SourceVersion;\n"
+            + "import javax.lang.model.element.TypeElement;\n"
+            + "import java.util.Set;\n"
+            + "@ProcessorTest(target = java.lang.annotation.ElementType.TYPE, expected = \"public class Example {}\")\n"
+            + "@SupportedAnnotationTypes(\"*\")\n"
+            + "public class VersionProcessor extends AbstractProcessor {\n"
+            + "    @Override\n"
+            + "    public SourceVersion getSupportedSourceVersion() {\n"
+            + "        return Helper1.version();\n"
+            + "    }\n"
+            + "    @Override\n"
+            + "    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {\n"
+            + "        return false;\n"
+            + "    }\n"
+            + "}\n";
+
+    private static final String HELPER_2 = "package tests.util;\n"
+            + "public class Helper2 {\n"
+            + "    static javax.lang.model.SourceVersion version() {\n"
+            + "        return javax.lang.model.SourceVersion.latestSupported();\n"
+            + "    }\n"
+            + "}\n";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void changingIndirectlyReachedHelperRerunsTest() throws Exception {
+        Path sourceRoot = directory.resolve("tests");
+        TestSources.write(sourceRoot, "tests/VersionProcessor.java", PROCESSOR);
+        TestSources.write(sourceRoot, "tests/util/Helper1.java", "package tests.util;\n"
+                + "public class Helper1 {\n"
+                + "    public static javax.lang.model.SourceVersion version() {\n"
+                + "        return Helper2.version();\n"
+                + "    }\n"
+                + "}\n");
+        TestSources.write(sourceRoot, "tests/util/Helper2.java", HELPER_2);
+        TestSources.write(sourceRoot, "tests/util/Unrelated.java", "package tests.util;\nclass Unrelated {\n}\n");
+        CompileTestOptions options = new CompileTestOptions().incrementalManifest(directory.resolve("manifest.properties").toFile());
+
+        assertEquals(Collections.singletonMap("tests.VersionProcessor", "PASS"), TestSources.run(sourceRoot, options));
+        assertEquals(Collections.singletonMap("tests.VersionProcessor", "SKIP"), TestSources.run(sourceRoot, options));
+
+        TestSources.write(sourceRoot, "tests/util/Unrelated.java", "package tests.util;\nclass Unrelated {\n    int changed;\n}\n");
+        assertEquals(Collections.singletonMap("tests.VersionProcessor", "SKIP"), TestSources.run(sourceRoot, options),
+                "a class the processor does not reference must not rerun it");
+
+        TestSources.write(sourceRoot, "tests/util/Helper2.java", HELPER_2.replace("{\n    static", "{\n    // changed\n    static"));
+        Map<String, String> outcomes = TestSources.run(sourceRoot, options);
+        assertEquals(Collections.singletonMap("tests.VersionProcessor", "PASS"), outcomes,
+                "a class the processor only reaches through another must rerun it");
+    }
+
+    @Test
+    void fingerprintChangeClearsManifest() throws IOException {
+        File file = directory.resolve("manifest.properties").toFile();
+        IncrementalManifest manifest = new IncrementalManifest(file, "jdk-a");
+        manifest.recordPass("tests.Processor", "inputs");
+        manifest.save();
+        assertTrue(new IncrementalManifest(file, "jdk-a").isUpToDate("tests.Processor", "inputs"));
+        assertFalse(new IncrementalManifest(file, "jdk-a").isUpToDate("tests.Processor", "other inputs"));
+
+        IncrementalManifest changed = new IncrementalManifest(file, "jdk-b");
+        assertFalse(changed.isUpToDate("tests.Processor", "inputs"));
+        changed.save();
+        assertFalse(new IncrementalManifest(file, "jdk-a").isUpToDate("tests.Processor", "inputs"),
+                "the manifest must not keep the tests of another environment");
+    }
+
+    @Test
+    void failureIsForgotten() throws IOException {
+        File file = directory.resolve("manifest.properties").toFile();
+        IncrementalManifest manifest = new IncrementalManifest(file, "jdk");
+        manifest.recordPass("tests.Processor", "inputs");
+        manifest.recordFailure("tests.Processor");
+        manifest.save();
+        assertFalse(new IncrementalManifest(file, "jdk").isUpToDate("tests.Processor", "inputs"));
+    }
+
+}
@@ -0,0 +1,47 @@
+package org.transparent.diamond.compiletest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestBatchesTest {
+
+    private static final String[] EXPECTED = {
+            "public class Example {}",
+            "class ExampleGen { Example owner; ExampleGen self() { return this; } }"
+    };
+
+    @TempDir
+    Path sourceRoot;
+
+    @Test
+    void failureInBatchIsReportedByTheTestThatCausedIt() throws Exception {
+        TestSources.write(sourceRoot, "tests/GenProcessor.java", TestSources.generatingProcessor(
+                "tests.GenProcessor", EXPECTED, "Gen", " $ owner; $Gen self() { return this; } "));
+        TestSources.write(sourceRoot, "tests/WrongProcessor.java", TestSources.generatingProcessor(
+                "tests.WrongProcessor", EXPECTED, "Gen", " $ owner; $Gen self() { return null; } "));
+
+        Map<String, String> outcomes;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(out, true));
+        try {
+            outcomes = TestSources.run(sourceRoot, new CompileTestOptions().batchSize(2).reportCompilationMetrics(true));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        assertTrue(out.toString().contains("Batch of 2 tests"), "the tests did not run in one batch:\n" + out);
+        assertEquals(2, outcomes.size(), outcomes.toString());
+        assertEquals("PASS", outcomes.get("tests.GenProcessor"), outcomes.toString());
+        String wrong = outcomes.get("tests.WrongProcessor");
+        assertTrue(wrong.startsWith("FAIL ") && wrong.contains("ExampleGen"), outcomes.toString());
+    }
+
+}
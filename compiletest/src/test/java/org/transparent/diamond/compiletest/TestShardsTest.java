@@ -0,0 +1,110 @@
+package org.transparent.diamond.compiletest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestShardsTest {
+
+    private static final List<String> NAMES = names(200);
+
+    @Test
+    void shardsAreDisjointAndCoverEveryTest() {
+        Map<String, Long> durations = new HashMap<>();
+        for (int i = 0; i < NAMES.size(); i += 3) {
+            durations.put(NAMES.get(i), (long) (i * 7 % 50));
+        }
+        for (Map<String, Long> recorded : Arrays.asList(Collections.<String, Long>emptyMap(), durations)) {
+            for (int count = 1; count <= 7; count++) {
+                List<String> all = new ArrayList<>();
+                for (int index = 0; index < count; index++) {
+                    List<String> shard = TestShards.select(NAMES, recorded, index, count);
+                    assertEquals(sorted(shard), shard, "a shard must keep the order of the tests");
+                    all.addAll(shard);
+                }
+                assertEquals(NAMES.size(), new HashSet<>(all).size(), "the shards must cover every test");
+                assertEquals(NAMES.size(), all.size(), "the shards must not overlap");
+            }
+        }
+    }
+
+    @Test
+    void splitIsTheSameOnEveryRun() {
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("tests.P3", 40L);
+        durations.put("tests.P7", 40L);
+        durations.put("tests.P11", 5L);
+        List<String> reversed = new ArrayList<>(NAMES);
+        Collections.reverse(reversed);
+        for (int index = 0; index < 4; index++) {
+            List<String> shard = TestShards.select(NAMES, durations, index, 4);
+            assertEquals(shard, TestShards.select(NAMES, new TreeMap<>(durations), index, 4));
+            // Only the order within a shard depends on the order the tests are found in.
+            assertEquals(new HashSet<>(shard), new HashSet<>(TestShards.select(reversed, durations, index, 4)));
+        }
+        // The hash does not depend on the JVM, so every CI agent sees the same split.
+        assertEquals(Arrays.asList(1, 2, 0, 0, 2, 2), Arrays.asList(
+                shardOf("tests.P0", 3), shardOf("tests.P1", 3), shardOf("tests.P2", 3),
+                shardOf("tests.P3", 3), shardOf("tests.P4", 3), shardOf("tests.P5", 3)));
+    }
+
+    @Test
+    void recordedDurationsAreBalancedLongestFirst() {
+        List<String> names = Arrays.asList("tests.A", "tests.B", "tests.C", "tests.D");
+        Map<String, Long> durations = new HashMap<>();
+        durations.put("tests.A", 100L);
+        durations.put("tests.B", 60L);
+        durations.put("tests.C", 50L);
+        durations.put("tests.D", 10L);
+        // A goes first to shard 0, B to the empty shard 1, C to shard 1 with 60 ms, and D to shard 0 with 100 ms.
+        assertEquals(Arrays.asList("tests.A", "tests.D"), TestShards.select(names, durations, 0, 2));
+        assertEquals(Arrays.asList("tests.B", "tests.C"), TestShards.select(names, durations, 1, 2));
+    }
+
+    @Test
+    void testsWithoutDurationsAreSplitByHash() {
+        Map<String, Long> durations = Collections.singletonMap("tests.P0", 1000L);
+        for (int index = 0; index < 3; index++) {
+            for (String name : TestShards.select(NAMES, durations, index, 3)) {
+                if (!durations.containsKey(name)) {
+                    assertEquals(index, shardOf(name, 3), name + " has no duration, so its shard depends only on its name");
+                }
+            }
+        }
+    }
+
+    @Test
+    void singleShardHoldsEveryTest() {
+        assertEquals(NAMES, TestShards.select(NAMES, Collections.emptyMap(), 0, 1));
+    }
+
+    /**
+     * @return The shard a test without a recorded duration goes to
+     */
+    private static int shardOf(String name, int count) {
+        List<String> single = Collections.singletonList(name);
+        for (int index = 0; index < count; index++) {
+            if (!TestShards.select(single, Collections.emptyMap(), index, count).isEmpty()) {
+                return index;
+            }
+        }
+        return fail(name + " is in no shard");
+    }
+
+    private static List<String> names(int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add("tests.P" + i);
+        }
+        return names;
+    }
+
+    private static List<String> sorted(List<String> shard) {
+        List<String> sorted = new ArrayList<>(shard);
+        sorted.sort(Comparator.comparingInt(NAMES::indexOf));
+        return sorted;
+    }
+
+}
@@ -0,0 +1,132 @@
+package org.transparent.diamond.compiletest;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.opentest4j.TestAbortedException;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Writes, compiles and runs the sources that the tests of Diamond-CompileTest work on.
+ */
+final class TestSources {
+
+    private TestSources() {
+    }
+
+    /**
+     * Writes a file under a directory, creating its parent directories.
+     */
+    static Path write(Path directory, String path, String content) throws IOException {
+        Path file = directory.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Compiles one source file with the system compiler.
+     *
+     * @param directory Directory to write the source and classes to
+     * @param className Binary name of the top level class
+     * @param options   Options for javac, such as <code>-g</code>
+     * @return The bytecode of every class compiled from the source, keyed by binary name
+     */
+    static Map<String, byte[]> compile(Path directory, String className, String source, String... options) throws IOException {
+        Path sources = directory.resolve("src");
+        Path classes = Files.createTempDirectory(directory, "classes");
+        Path sourceFile = write(sources, className.replace('.', '/') + ".java", source);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        List<String> arguments = new ArrayList<>(Arrays.asList(options));
+        arguments.addAll(Arrays.asList("-d", classes.toString(), sourceFile.toString()));
+        assertEquals(0, compiler.run(null, null, null, arguments.toArray(new String[0])), "could not compile " + className);
+        TreeMap<String, byte[]> compiled = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(classes)) {
+            for (Path file : files.filter(p -> p.toString().endsWith(".class")).collect(Collectors.toList())) {
+                String name = classes.relativize(file).toString().replace(File.separatorChar, '.');
+                compiled.put(name.substring(0, name.length() - ".class".length()), Files.readAllBytes(file));
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Builds a processor test that generates, for the annotated class, a source file named after it.
+     *
+     * @param className          Binary name of the processor
+     * @param expected           The expected sources, as in {@link ProcessorTest#expected()}
+     * @param generatedSuffix    Suffix of the simple name of the generated class
+     * @param generatedBody      Body of the generated class, in which <code>$</code> stands for the annotated class
+     */
+    static String generatingProcessor(String className, String[] expected, String generatedSuffix, String generatedBody) {
+        int packageEnd = className.lastIndexOf('.');
+        StringJoiner expectedSources = new StringJoiner(", ", "{", "}");
+        for (String source : expected) {
+            expectedSources.add('"' + source.replace("\"", "\\\"") + '"');
+        }
+        return "package " + className.substring(0, packageEnd) + ";\n"
+                + "import org.transparent.diamond.compiletest.ProcessorTest;\n"
+                + "import javax.annotation.processing.*;\n"
+                + "import javax.lang.model.SourceVersion;\n"
+                + "import javax.lang.model.element.*;\n"
+                + "import java.io.*;\n"
+                + "import java.util.*;\n"
+                + "@ProcessorTest(target = java.lang.annotation.ElementType.TYPE, expected = " + expectedSources + ")\n"
+                + "@SupportedAnnotationTypes(\"*\")\n"
+                + "public class " + className.substring(packageEnd + 1) + " extends AbstractProcessor {\n"
+                + "    @Override\n"
+                + "    public SourceVersion getSupportedSourceVersion() {\n"
+                + "        return SourceVersion.latestSupported();\n"
+                + "    }\n"
+                + "    @Override\n"
+                + "    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {\n"
+                + "        for (Element element : roundEnv.getRootElements()) {\n"
+                + "            String name = element.getSimpleName().toString();\n"
+                + "            if (name.endsWith(\"" + generatedSuffix + "\")) {\n"
+                + "                continue;\n"
+                + "            }\n"
+                + "            try (Writer writer = processingEnv.getFiler().createSourceFile(name + \"" + generatedSuffix + "\", element).openWriter()) {\n"
+                + "                writer.write(\"class \" + name + \"" + generatedSuffix + " {" + generatedBody.replace("\"", "\\\"").replace("$", "\" + name + \"") + "}\");\n"
+                + "            } catch (IOException e) {\n"
+                + "                throw new UncheckedIOException(e);\n"
+                + "            }\n"
+                + "        }\n"
+                + "        return false;\n"
+                + "    }\n"
+                + "}\n";
+    }
+
+    /**
+     * Runs every processor test in a source root.
+     *
+     * @return The outcome of each test, keyed by its name: <code>PASS</code>, <code>SKIP</code>,
+     * or <code>FAIL</code> followed by the message of the failure
+     */
+    static Map<String, String> run(Path sourceRoot, CompileTestOptions options) throws Exception {
+        LinkedHashMap<String, String> outcomes = new LinkedHashMap<>();
+        try (Stream<DynamicTest> tests = CompileTestRunner.runProcessorTestsIn(sourceRoot.toFile(), null, options)) {
+            for (DynamicTest test : (Iterable<DynamicTest>) tests::iterator) {
+                try {
+                    test.getExecutable().execute();
+                    outcomes.put(test.getDisplayName(), "PASS");
+                } catch (TestAbortedException e) {
+                    outcomes.put(test.getDisplayName(), "SKIP");
+                } catch (Throwable t) {
+                    outcomes.put(test.getDisplayName(), "FAIL " + t.getMessage());
+                }
+            }
+        }
+        return outcomes;
+    }
+
+}
@@ -2,6 +2,9 @@ package org.transparent.diamond;
 
 public class DiamondConstants {
 
+    /**
+     * Packages of <code>jdk.compiler</code> that processors use, which are exported to them on JDK 9 and above.
+     */
     public static final String[] REQUIRED_EXPORTS = new String[]{
             "com.sun.source.doctree",
             "com.sun.source.tree",
@@ -24,4 +27,21 @@ public class DiamondConstants {
             "com.sun.tools.javac.util",
     };
 
+    /**
+     * Index, from 0, of the shard of the compile tests to run. The name of both the
+     * Gradle property that the plugin reads and the system property it hands to test JVMs.
+     */
+    public static final String SHARD_INDEX_PROPERTY = "diamond.shardIndex";
+
+    /**
+     * Number of shards the compile tests are split into, 1 to run every test. The name of both
+     * the Gradle property that the plugin reads and the system property it hands to test JVMs.
+     */
+    public static final String SHARD_COUNT_PROPERTY = "diamond.shardCount";
+
+    /**
+     * System property with the path of the recorded test durations that shards are balanced with.
+     */
+    public static final String TEST_DURATIONS_PROPERTY = "diamond.testDurations";
+
 }
@@ -1,23 +1,42 @@
 package org.transparent.diamond;
 
+import org.gradle.api.JavaVersion;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.transparent.diamond.misc.ProcessorCategory;
 import org.transparent.diamond.misc.PublishType;
 import org.transparent.diamond.misc.annotation.Usage;
 import org.transparent.diamond.misc.annotation.Usage.Target;
 
+import java.util.Collections;
+
 /**
  * Contains all configurations for the plugin.
+ * <p>
+ * Every configuration is a lazy {@link Property}, so it can be set anywhere in the build script,
+ * and the plugin only reads it once it is needed.
  *
  * @author Arc'blroth, Maow
  * @version %I
  * @since 1.0.0
  */
-public class DiamondConfigExtension {
+public abstract class DiamondConfigExtension {
+    public DiamondConfigExtension() {
+        getPublishType().convention(PublishType.NONE);
+        getCompatibility().convention(true);
+        getTestJavaVersions().convention(Collections.singletonList(Integer.parseInt(JavaVersion.current().getMajorVersion())));
+        getIncrementalProcessors().convention(Collections.emptyMap());
+        getTestForks().convention(1);
+    }
+
     /**
      * Automatically generate a Maven publication that consists of
      * the JAR(s) generated by the <code>java</code> component and a source code JAR.
      */
     @Usage(Target.TRANSPARENT)
-    public PublishType publishType = PublishType.NONE;
+    public abstract Property<PublishType> getPublishType();
 
     /**
      * Automatically adds all required exports or dependencies for cross-version compatibility.
@@ -25,5 +44,48 @@ public class DiamondConfigExtension {
      * This is the main purpose of the plugin, but can be disabled if it isn't required.
      */
     @Usage(Target.ALL)
-    public boolean compatibility = true;
-}
\ No newline at end of file
+    public abstract Property<Boolean> getCompatibility();
+
+    /**
+     * The major versions of the JDKs that the <code>compileTestMatrix</code> task runs the tests on.
+     * Each one is looked up as a Gradle toolchain. Defaults to the JDK running Gradle.
+     */
+    @Usage(Target.ALL)
+    public abstract ListProperty<Integer> getTestJavaVersions();
+
+    /**
+     * Registers processors as incremental with Gradle, mapping each processor's binary class name to its category.
+     * The registration is generated into the resources, and checked against the processors they declare.
+     */
+    @Usage(Target.ALL)
+    public abstract MapProperty<String, ProcessorCategory> getIncrementalProcessors();
+
+    /**
+     * The index, from 0, of the slice of the compile tests that this build runs, out of {@link #getShardCount()}.
+     * Defaults to the <code>diamond.shardIndex</code> Gradle property, such as <code>-Pdiamond.shardIndex=2</code>
+     * on each CI agent, or to 0.
+     */
+    @Usage(Target.ALL)
+    public abstract Property<Integer> getShardIndex();
+
+    /**
+     * The number of slices the compile tests are split into, across CI agents or builds.
+     * Defaults to the <code>diamond.shardCount</code> Gradle property, or to 1, which runs every test.
+     */
+    @Usage(Target.ALL)
+    public abstract Property<Integer> getShardCount();
+
+    /**
+     * A file of recorded compile test durations, which balances the shards by time rather than by number of tests.
+     * Every shard must see the same file.
+     */
+    @Usage(Target.ALL)
+    public abstract RegularFileProperty getTestDurations();
+
+    /**
+     * The number of worker processes that the <code>compileTestMatrix</code> task splits the tests of each JDK across.
+     * Each one runs a shard of the tests. Defaults to 1.
+     */
+    @Usage(Target.ALL)
+    public abstract Property<Integer> getTestForks();
+}
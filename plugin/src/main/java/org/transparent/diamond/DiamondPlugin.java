@@ -2,22 +2,33 @@ package org.transparent.diamond;
 
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.Dependency;
 import org.gradle.api.plugins.ExtraPropertiesExtension;
 import org.gradle.api.plugins.JavaPlugin;
-import org.gradle.api.plugins.JavaPluginConvention;
+import org.gradle.api.plugins.JavaPluginExtension;
 import org.gradle.api.publish.PublishingExtension;
 import org.gradle.api.publish.maven.MavenPublication;
 import org.gradle.api.publish.maven.plugins.MavenPublishPlugin;
-import org.gradle.api.tasks.bundling.Jar;
+import org.gradle.api.tasks.Copy;
+import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.SourceSetContainer;
+import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.compile.JavaCompile;
+import org.gradle.api.tasks.testing.Test;
 import org.gradle.internal.jvm.Jvm;
+import org.transparent.diamond.incremental.IncrementalProcessorRegistration;
+import org.transparent.diamond.matrix.CompileTestMatrix;
+import org.transparent.diamond.misc.ProcessorCategory;
 import org.transparent.diamond.misc.PublishType;
 
 import java.io.File;
-import java.util.ArrayList;
 
 /**
  * The main plugin class.
+ * <p>
+ * Everything is wired lazily and nothing reads the project at execution time,
+ * so the plugin works with Gradle's configuration cache.
  *
  * @author Arc'blroth, Maow
  * @version %I
@@ -25,61 +36,107 @@ import java.util.ArrayList;
  */
 @SuppressWarnings("unused")
 public class DiamondPlugin implements Plugin<Project> {
+    private static final String JUNIT_PLATFORM_LAUNCHER = "org.junit.platform:junit-platform-launcher:1.7.1";
 
     @Override
     public void apply(Project project) {
         // Add the Java plugin if it isn't already present.
         project.getPluginManager().apply(JavaPlugin.class);
 
-        project.getExtensions().add(DiamondConfigExtension.class, "diamond", new DiamondConfigExtension());
+        DiamondConfigExtension extension = project.getExtensions().create("diamond", DiamondConfigExtension.class);
+        extension.getShardIndex().convention(project.getProviders().gradleProperty(DiamondConstants.SHARD_INDEX_PROPERTY).map(Integer::parseInt).orElse(0));
+        extension.getShardCount().convention(project.getProviders().gradleProperty(DiamondConstants.SHARD_COUNT_PROPERTY).map(Integer::parseInt).orElse(1));
+        JavaPluginExtension java = project.getExtensions().getByType(JavaPluginExtension.class);
 
         // Add PublishType to ext so that it doesn't have to be imported manually.
         // IntelliJ doesn't seem to like this, but I don't really care.
         project.getExtensions().getByType(ExtraPropertiesExtension.class).set("PublishType", PublishType.class);
+        project.getExtensions().getByType(ExtraPropertiesExtension.class).set("ProcessorCategory", ProcessorCategory.class);
 
-        project.afterEvaluate(project2 -> {
-            DiamondConfigExtension extension = project2.getExtensions().getByType(DiamondConfigExtension.class);
-            JavaPluginConvention convention = project2.getConvention().getPlugin(JavaPluginConvention.class);
-
-            if (extension.compatibility) {
-                // On JDK <= 8, we need to add the JDK's 'tools.jar' to the classpath.
-                File toolsJar = Jvm.current().getToolsJar();
-                if (toolsJar != null && toolsJar.exists()) {
-                    project.getDependencies().add("compileOnly", project.files(toolsJar));
-                    project.getDependencies().add("testImplementation", project.files(toolsJar));
-                }
-
-                // On JDK >= 9, we also need to configure module information.
-                // Since annotation processors are loaded by javac at runtime,
-                // they are allowed to see jdk.compiler.
-                if (convention.getSourceCompatibility().isJava9Compatible()) {
-                    project2.getTasks().withType(JavaCompile.class).configureEach(task -> {
-                        task.getOptions().getCompilerArgumentProviders().add(() -> {
-                            ArrayList<String> list = new ArrayList<>();
-                            for (String export : DiamondConstants.REQUIRED_EXPORTS) {
-                                list.add("--add-exports");
-                                list.add("jdk.compiler/" + export + "=ALL-UNNAMED");
-                            }
-                            return list;
-                        });
-                    });
-                }
+        // On JDK <= 8, we need to add the JDK's 'tools.jar' to the classpath.
+        // The dependency is only added once the classpath is resolved, after the build script ran.
+        File toolsJar = Jvm.current().getToolsJar();
+        if (toolsJar != null && toolsJar.exists()) {
+            Dependency toolsJarDependency = project.getDependencies().create(project.files(toolsJar));
+            for (String configuration : new String[]{"compileOnly", "testImplementation"}) {
+                project.getConfigurations().getByName(configuration).withDependencies(dependencies -> {
+                    if (extension.getCompatibility().get()) {
+                        dependencies.add(toolsJarDependency);
+                    }
+                });
             }
+        }
+
+        // On JDK >= 9, we also need to configure module information.
+        // Since annotation processors are loaded by javac at runtime,
+        // they are allowed to see jdk.compiler.
+        project.getTasks().withType(JavaCompile.class).configureEach(task ->
+                task.getOptions().getCompilerArgumentProviders().add(new RequiredExportsArgumentProvider(
+                        extension.getCompatibility(),
+                        project.provider(task::getSourceCompatibility),
+                        task.getOptions().getRelease()
+                )));
+
+        // Tell every test JVM which shard of the compile tests to run.
+        project.getTasks().withType(Test.class).configureEach(task ->
+                task.getJvmArgumentProviders().add(new ShardArgumentProvider(
+                        extension.getShardIndex(),
+                        extension.getShardCount(),
+                        extension.getTestDurations()
+                )));
+
+        // Run the tests on every JDK in diamond.testJavaVersions at once.
+        // The test runtime classpath comes first, so its JUnit Platform wins over the launcher's.
+        Configuration testLauncher = project.getConfigurations().create("diamondTestLauncher", configuration -> {
+            configuration.setVisible(false);
+            configuration.setCanBeConsumed(false);
+            configuration.setTransitive(false);
+            configuration.defaultDependencies(dependencies ->
+                    dependencies.add(project.getDependencies().create(JUNIT_PLATFORM_LAUNCHER)));
+        });
+        project.getTasks().register("compileTestMatrix", CompileTestMatrix.class, task -> {
+            SourceSet test = project.getExtensions().getByType(SourceSetContainer.class).getByName(SourceSet.TEST_SOURCE_SET_NAME);
+            task.setGroup("verification");
+            task.setDescription("Runs the tests on every JDK in diamond.testJavaVersions.");
+            task.getJavaVersions().convention(extension.getTestJavaVersions());
+            task.getForks().convention(extension.getTestForks());
+            task.getShardIndex().convention(extension.getShardIndex());
+            task.getShardCount().convention(extension.getShardCount());
+            task.getTestClassesDirs().from(test.getOutput().getClassesDirs());
+            task.getTestClasspath().from(test.getRuntimeClasspath(), testLauncher);
+            task.getWorkingDirectory().convention(project.getLayout().getProjectDirectory());
+            task.getResultsDirectory().convention(project.getLayout().getBuildDirectory().dir("compile-test-matrix"));
+        });
+
+        // Register the processors as incremental with Gradle, and check the registration on every build.
+        TaskProvider<IncrementalProcessorRegistration> registration = project.getTasks().register(
+                "incrementalProcessorRegistration", IncrementalProcessorRegistration.class, task -> {
+                    SourceSet main = project.getExtensions().getByType(SourceSetContainer.class).getByName(SourceSet.MAIN_SOURCE_SET_NAME);
+                    task.setDescription("Generates and checks the registration of incremental annotation processors.");
+                    task.getProcessors().convention(extension.getIncrementalProcessors());
+                    task.getResourceDirectories().from(main.getResources().getSourceDirectories());
+                    task.getOutputDirectory().convention(project.getLayout().getBuildDirectory().dir("generated/incremental-processors"));
+                });
+        project.getTasks().named(JavaPlugin.PROCESS_RESOURCES_TASK_NAME, Copy.class, task -> task.from(registration));
+
+        // Whether there is a publication at all depends on the extension,
+        // so this is the one decision that has to wait for the build script.
+        project.afterEvaluate(project2 -> {
+            extension.getPublishType().finalizeValue();
+            PublishType publishType = extension.getPublishType().get();
 
             // Setup auto-publishing if enabled.
-            if (extension.publishType != PublishType.NONE) {
+            if (publishType != PublishType.NONE) {
                 project2.getPluginManager().apply(MavenPublishPlugin.class);
 
-                MavenPublication pub = project2.getExtensions().getByType(PublishingExtension.class)
-                        .getPublications().create("mavenJava", MavenPublication.class);
-                pub.from(project2.getComponents().getByName("java"));
-
-                if (extension.publishType == PublishType.ALL) {
-                    Jar sourcesJar = project2.getTasks().register("sourcesJar", Jar.class).get();
-                    sourcesJar.from(convention.getSourceSets().getByName("main").getAllJava());
-                    sourcesJar.getArchiveClassifier().set("sources");
-                    pub.artifact(sourcesJar);
+                if (publishType == PublishType.ALL) {
+                    // Registers a lazy 'sourcesJar' task and adds it to the java component.
+                    java.withSourcesJar();
                 }
+
+                project2.getExtensions().getByType(PublishingExtension.class).getPublications()
+                        .register("mavenJava", MavenPublication.class,
+                                pub -> pub.from(project2.getComponents().getByName("java")));
             }
         });
     }
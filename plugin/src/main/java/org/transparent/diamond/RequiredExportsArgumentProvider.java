@@ -0,0 +1,88 @@
+package org.transparent.diamond;
+
+import org.gradle.api.JavaVersion;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Optional;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exports the javac internals that processors need to the compiled code,
+ * if compatibility is enabled and the sources target JDK 9 or above.
+ * Nothing is exported when compiling with <code>--release</code>,
+ * since javac does not allow exporting packages of system modules then.
+ * <p>
+ * Everything the arguments depend on is a declared input, so compile tasks
+ * stay up to date and hit the build cache across machines.
+ *
+ * @version %I
+ * @since 1.2.0
+ */
+public class RequiredExportsArgumentProvider implements CommandLineArgumentProvider {
+    private final Provider<Boolean> enabled;
+    private final Provider<String> targetJdk;
+    private final Provider<Integer> release;
+
+    /**
+     * @param enabled   whether to export anything, usually {@link DiamondConfigExtension#getCompatibility()}
+     * @param targetJdk the Java version the sources are compiled for, such as <code>1.8</code> or <code>11</code>
+     * @param release   the <code>--release</code> the sources are compiled with, usually
+     *                  {@link org.gradle.api.tasks.compile.CompileOptions#getRelease()}, which may have no value
+     */
+    public RequiredExportsArgumentProvider(Provider<Boolean> enabled, Provider<String> targetJdk, Provider<Integer> release) {
+        this.enabled = enabled;
+        this.targetJdk = targetJdk;
+        this.release = release;
+    }
+
+    /**
+     * @return whether to export anything
+     */
+    @Input
+    public Provider<Boolean> getEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the major Java version the sources are compiled for
+     */
+    @Input
+    public Provider<String> getTargetJdk() {
+        return targetJdk.map(version -> JavaVersion.toVersion(version).getMajorVersion());
+    }
+
+    /**
+     * @return the <code>--release</code> the sources are compiled with, if any
+     */
+    @Input
+    @Optional
+    public Provider<Integer> getRelease() {
+        return release;
+    }
+
+    /**
+     * @return the packages of <code>jdk.compiler</code> to export
+     */
+    @Input
+    public List<String> getExports() {
+        return Arrays.asList(DiamondConstants.REQUIRED_EXPORTS);
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+        if (!enabled.get() || release.isPresent() || !JavaVersion.toVersion(getTargetJdk().get()).isJava9Compatible()) {
+            return Collections.emptyList();
+        }
+        ArrayList<String> list = new ArrayList<>();
+        for (String export : getExports()) {
+            list.add("--add-exports");
+            list.add("jdk.compiler/" + export + "=ALL-UNNAMED");
+        }
+        return list;
+    }
+}
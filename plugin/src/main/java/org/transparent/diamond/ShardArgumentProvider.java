@@ -0,0 +1,73 @@
+package org.transparent.diamond;
+
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tells the compile tests in a test JVM which shard of them to run, and where the durations
+ * that balance the shards are kept, through the system properties the test runner reads.
+ * <p>
+ * The durations file is not an input: the tests write it as they run.
+ *
+ * @version %I
+ * @since 1.2.0
+ */
+public class ShardArgumentProvider implements CommandLineArgumentProvider {
+    private final Provider<Integer> shardIndex;
+    private final Provider<Integer> shardCount;
+    private final Provider<RegularFile> testDurations;
+
+    /**
+     * @param shardIndex    the index of the shard to run, usually {@link DiamondConfigExtension#getShardIndex()}
+     * @param shardCount    the number of shards, usually {@link DiamondConfigExtension#getShardCount()}
+     * @param testDurations the file of recorded test durations, if any, usually {@link DiamondConfigExtension#getTestDurations()}
+     */
+    public ShardArgumentProvider(Provider<Integer> shardIndex, Provider<Integer> shardCount, Provider<RegularFile> testDurations) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.testDurations = testDurations;
+    }
+
+    /**
+     * @return the index of the shard to run, from 0
+     */
+    @Input
+    public Provider<Integer> getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * @return the number of shards
+     */
+    @Input
+    public Provider<Integer> getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @return the file of recorded test durations, if any
+     */
+    @Internal
+    public Provider<RegularFile> getTestDurations() {
+        return testDurations;
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+        List<String> list = new ArrayList<>();
+        if (shardCount.get() > 1) {
+            list.add("-D" + DiamondConstants.SHARD_INDEX_PROPERTY + "=" + shardIndex.get());
+            list.add("-D" + DiamondConstants.SHARD_COUNT_PROPERTY + "=" + shardCount.get());
+        }
+        if (testDurations.isPresent()) {
+            list.add("-D" + DiamondConstants.TEST_DURATIONS_PROPERTY + "=" + testDurations.get().getAsFile().getAbsolutePath());
+        }
+        return list;
+    }
+}
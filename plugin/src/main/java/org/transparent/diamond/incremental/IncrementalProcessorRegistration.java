@@ -0,0 +1,152 @@
+package org.transparent.diamond.incremental;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.tasks.*;
+import org.transparent.diamond.misc.ProcessorCategory;
+
+import javax.inject.Inject;
+import javax.lang.model.SourceVersion;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Generates the <code>META-INF/gradle/incremental.annotation.processors</code> file that registers
+ * processors as incremental with Gradle, and checks it against the processors the resources declare.
+ * <p>
+ * If the resources already hold a registration of their own, that one is checked instead,
+ * and nothing is generated. Gradle treats any processor without a registration as not incremental,
+ * which makes every build using it recompile all of its sources, so a processor that is declared as
+ * a service but left out of the registration is reported.
+ *
+ * @version %I
+ * @since 1.2.0
+ */
+@CacheableTask
+public abstract class IncrementalProcessorRegistration extends DefaultTask {
+    public static final String REGISTRATION = "META-INF/gradle/incremental.annotation.processors";
+    public static final String SERVICES = "META-INF/services/javax.annotation.processing.Processor";
+
+    /**
+     * @return the category of each processor to register, by its binary class name
+     */
+    @Input
+    public abstract MapProperty<String, ProcessorCategory> getProcessors();
+
+    /**
+     * @return the resource directories to look for service declarations and registrations in
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getResourceDirectories();
+
+    /**
+     * @return the directory to generate the registration in, as a resource directory
+     */
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
+
+    @Inject
+    protected abstract FileSystemOperations getFileSystemOperations();
+
+    @TaskAction
+    public void generate() throws IOException {
+        List<String> problems = new ArrayList<>();
+        Set<String> services = new TreeSet<>();
+        Map<String, ProcessorCategory> existing = new TreeMap<>();
+        for (File directory : getResourceDirectories()) {
+            Path servicesFile = directory.toPath().resolve(SERVICES);
+            if (Files.isRegularFile(servicesFile)) {
+                for (String line : Files.readAllLines(servicesFile, StandardCharsets.UTF_8)) {
+                    int comment = line.indexOf('#');
+                    String service = (comment < 0 ? line : line.substring(0, comment)).trim();
+                    if (!service.isEmpty()) {
+                        services.add(service);
+                    }
+                }
+            }
+            Path registrationFile = directory.toPath().resolve(REGISTRATION);
+            if (Files.isRegularFile(registrationFile)) {
+                readRegistration(registrationFile, existing, problems);
+            }
+        }
+
+        Map<String, ProcessorCategory> processors = new TreeMap<>(getProcessors().get());
+        if (!processors.isEmpty() && !existing.isEmpty()) {
+            problems.add("Processors are registered both in diamond.incrementalProcessors and in " + REGISTRATION
+                    + "; remove one of them");
+        }
+        for (String processor : processors.keySet()) {
+            if (!SourceVersion.isName(processor)) {
+                problems.add("'" + processor + "' in diamond.incrementalProcessors is not a class name");
+            }
+        }
+        Map<String, ProcessorCategory> registered = processors.isEmpty() ? existing : processors;
+        if (!services.isEmpty()) {
+            for (String processor : registered.keySet()) {
+                if (!services.contains(processor)) {
+                    problems.add(processor + " is registered as incremental, but is not declared in " + SERVICES);
+                }
+            }
+            if (!registered.isEmpty()) {
+                for (String service : services) {
+                    if (!registered.containsKey(service)) {
+                        getLogger().warn("{} is not registered as an incremental processor, "
+                                + "so Gradle recompiles every source of the builds that use it", service);
+                    }
+                }
+            }
+        }
+        if (!problems.isEmpty()) {
+            throw new GradleException("Invalid incremental annotation processor registration:"
+                    + System.lineSeparator() + "    " + String.join(System.lineSeparator() + "    ", problems));
+        }
+
+        File outputDirectory = getOutputDirectory().get().getAsFile();
+        getFileSystemOperations().delete(spec -> spec.delete(outputDirectory));
+        if (!processors.isEmpty()) {
+            StringBuilder registration = new StringBuilder();
+            processors.forEach((processor, category) -> registration.append(processor).append(',').append(category).append('\n'));
+            Path registrationFile = outputDirectory.toPath().resolve(REGISTRATION);
+            Files.createDirectories(registrationFile.getParent());
+            Files.write(registrationFile, registration.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void readRegistration(Path file, Map<String, ProcessorCategory> registered, List<String> problems)
+            throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String location = file + ":" + (i + 1) + ": ";
+            String[] parts = line.split(",");
+            if (parts.length != 2 || !SourceVersion.isName(parts[0].trim())) {
+                problems.add(location + "expected '<processor class>,<category>', but got '" + line + "'");
+                continue;
+            }
+            String processor = parts[0].trim();
+            ProcessorCategory category;
+            try {
+                category = ProcessorCategory.valueOf(parts[1].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                problems.add(location + "unknown category '" + parts[1].trim() + "', expected one of "
+                        + Arrays.toString(ProcessorCategory.values()));
+                continue;
+            }
+            if (registered.put(processor, category) != null) {
+                problems.add(location + processor + " is registered more than once");
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.transparent.diamond.matrix;
+
+import org.junit.platform.launcher.Launcher;
+import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder;
+import org.junit.platform.launcher.core.LauncherFactory;
+import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
+import org.junit.platform.launcher.listeners.TestExecutionSummary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClasspathRoots;
+
+/**
+ * Runs every test found in the test classes directories on the JUnit Platform,
+ * and writes a summary of the results.
+ * <p>
+ * This is loaded in the class loader of the tests, apart from Gradle,
+ * so it only depends on the JUnit Platform launcher and the JDK.
+ *
+ * @version %I
+ * @since 1.2.0
+ */
+public final class CompileTestLauncher {
+    static final String TESTS = "tests";
+    static final String FAILED = "failed";
+    static final String SKIPPED = "skipped";
+    static final String TIME = "time";
+    static final String FAILURE = "failure.";
+
+    private CompileTestLauncher() {
+    }
+
+    /**
+     * @param classesDirs the directories to look for tests in
+     * @param resultsFile the file to write the results to, as properties
+     * @throws IOException if the results cannot be written
+     */
+    public static void run(String[] classesDirs, String resultsFile) throws IOException {
+        Set<Path> roots = new HashSet<>();
+        for (String classesDir : classesDirs) {
+            roots.add(Paths.get(classesDir));
+        }
+        LauncherDiscoveryRequest request = LauncherDiscoveryRequestBuilder.request()
+                .selectors(selectClasspathRoots(roots))
+                .build();
+        Launcher launcher = LauncherFactory.create();
+        SummaryGeneratingListener listener = new SummaryGeneratingListener();
+        launcher.execute(request, listener);
+
+        TestExecutionSummary summary = listener.getSummary();
+        Properties results = new Properties();
+        results.setProperty(TESTS, Long.toString(summary.getTestsStartedCount()));
+        results.setProperty(SKIPPED, Long.toString(summary.getTestsSkippedCount() + summary.getTestsAbortedCount()));
+        results.setProperty(TIME, Long.toString(summary.getTimeFinished() - summary.getTimeStarted()));
+        List<TestExecutionSummary.Failure> failures = summary.getFailures();
+        results.setProperty(FAILED, Integer.toString(failures.size()));
+        for (int i = 0; i < failures.size(); i++) {
+            TestExecutionSummary.Failure failure = failures.get(i);
+            results.setProperty(FAILURE + i, failure.getTestIdentifier().getDisplayName() + ": " + failure.getException());
+        }
+        Path path = Paths.get(resultsFile);
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        try (OutputStream out = Files.newOutputStream(path)) {
+            results.store(out, "JDK " + System.getProperty("java.version"));
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.transparent.diamond.matrix;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.*;
+import org.gradle.jvm.toolchain.JavaLanguageVersion;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.jvm.toolchain.JavaToolchainService;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
+import org.transparent.diamond.DiamondConstants;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs the test suite, compile tests included, on several JDKs at once.
+ * <p>
+ * Each JDK is a Gradle toolchain, and its tests run in a worker process launched from it.
+ * The JDKs run in parallel, so the whole matrix takes about as long as the slowest one.
+ * Gradle keeps worker processes alive between builds, so later runs start from a warm JVM.
+ * <p>
+ * The tests of each JDK can also be split across several worker processes, each running a shard of them.
+ * The durations of the tests are kept per JDK in the results directory, and balance the shards of the next run.
+ * When the build itself is one shard of several, such as on one of several CI agents, the worker processes
+ * split that shard further, and the durations they measure are left in files of their own for merging.
+ *
+ * @version %I
+ * @since 1.2.0
+ */
+public abstract class CompileTestMatrix extends DefaultTask {
+    /**
+     * @return the major versions of the JDKs to run the tests on
+     */
+    @Input
+    public abstract ListProperty<Integer> getJavaVersions();
+
+    /**
+     * @return the number of worker processes to split the tests of each JDK across
+     */
+    @Input
+    public abstract Property<Integer> getForks();
+
+    /**
+     * @return the index of the shard of the tests that this build runs, from 0
+     */
+    @Input
+    public abstract Property<Integer> getShardIndex();
+
+    /**
+     * @return the number of shards the tests are split into across builds
+     */
+    @Input
+    public abstract Property<Integer> getShardCount();
+
+    /**
+     * @return the directories holding the compiled test classes, which are scanned for tests
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getTestClassesDirs();
+
+    /**
+     * @return the runtime classpath of the tests, including the JUnit Platform launcher
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getTestClasspath();
+
+    /**
+     * @return the directory the tests run in
+     */
+    @Internal
+    public abstract DirectoryProperty getWorkingDirectory();
+
+    /**
+     * @return the directory to write the results of each JDK to
+     */
+    @OutputDirectory
+    public abstract DirectoryProperty getResultsDirectory();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    @Inject
+    protected abstract JavaToolchainService getJavaToolchains();
+
+    @TaskAction
+    public void run() throws IOException {
+        List<Integer> javaVersions = getJavaVersions().get();
+        int forks = getForks().get();
+        int shardCount = getShardCount().get() * forks;
+        if (forks < 1 || getShardIndex().get() < 0 || getShardIndex().get() >= getShardCount().get()) {
+            throw new GradleException("Expected at least one fork, and a shard index between 0 and the shard count, but got "
+                    + forks + " forks and shard " + getShardIndex().get() + " of " + getShardCount().get());
+        }
+        for (int javaVersion : javaVersions) {
+            JavaLauncher launcher = getJavaToolchains()
+                    .launcherFor(spec -> spec.getLanguageVersion().set(JavaLanguageVersion.of(javaVersion)))
+                    .get();
+            File durationsFile = durationsFile(javaVersion);
+            for (int forkIndex = 0; forkIndex < forks; forkIndex++) {
+                int shardIndex = getShardIndex().get() * forks + forkIndex;
+                File resultsFile = resultsFile(javaVersion, forkIndex);
+                Files.deleteIfExists(resultsFile.toPath());
+
+                WorkQueue queue = getWorkerExecutor().processIsolation(spec -> spec.forkOptions(fork -> {
+                    fork.setExecutable(launcher.getExecutablePath().getAsFile());
+                    fork.setWorkingDir(getWorkingDirectory().get().getAsFile());
+                    if (javaVersion >= 9) {
+                        for (String export : DiamondConstants.REQUIRED_EXPORTS) {
+                            fork.jvmArgs("--add-exports", "jdk.compiler/" + export + "=ALL-UNNAMED");
+                        }
+                    }
+                    if (shardCount > 1) {
+                        fork.systemProperty(DiamondConstants.SHARD_INDEX_PROPERTY, shardIndex);
+                        fork.systemProperty(DiamondConstants.SHARD_COUNT_PROPERTY, shardCount);
+                    }
+                    fork.systemProperty(DiamondConstants.TEST_DURATIONS_PROPERTY, durationsFile.getAbsolutePath());
+                }));
+                queue.submit(CompileTestWorkAction.class, parameters -> {
+                    parameters.getTestClassesDirs().from(getTestClassesDirs());
+                    parameters.getTestClasspath().from(getTestClasspath());
+                    // On JDK <= 8, javac lives in the JDK's 'tools.jar'.
+                    File toolsJar = launcher.getMetadata().getInstallationPath().file("lib/tools.jar").getAsFile();
+                    if (toolsJar.exists()) {
+                        parameters.getTestClasspath().from(toolsJar);
+                    }
+                    parameters.getResultsFile().set(resultsFile);
+                });
+            }
+        }
+        getWorkerExecutor().await();
+
+        List<Integer> failed = new ArrayList<>();
+        for (int javaVersion : javaVersions) {
+            // The forks of this build are all of the shards only if the build is not a shard itself.
+            if (forks > 1 && getShardCount().get() == 1) {
+                mergeDurations(durationsFile(javaVersion), shardCount);
+            }
+            long tests = 0;
+            long skipped = 0;
+            long time = 0;
+            List<String> failures = new ArrayList<>();
+            for (int forkIndex = 0; forkIndex < forks; forkIndex++) {
+                Properties results = new Properties();
+                File resultsFile = resultsFile(javaVersion, forkIndex);
+                if (resultsFile.exists()) {
+                    try (InputStream in = Files.newInputStream(resultsFile.toPath())) {
+                        results.load(in);
+                    }
+                }
+                tests += Long.parseLong(results.getProperty(CompileTestLauncher.TESTS, "0"));
+                skipped += Long.parseLong(results.getProperty(CompileTestLauncher.SKIPPED, "0"));
+                time = Math.max(time, Long.parseLong(results.getProperty(CompileTestLauncher.TIME, "0")));
+                int forkFailures = Integer.parseInt(results.getProperty(CompileTestLauncher.FAILED, "0"));
+                for (int i = 0; i < forkFailures; i++) {
+                    failures.add(results.getProperty(CompileTestLauncher.FAILURE + i));
+                }
+            }
+            getLogger().lifecycle("JDK {}: {} tests completed, {} failed, {} skipped in {} ms",
+                    javaVersion, tests, failures.size(), skipped, time);
+            for (String failure : failures) {
+                getLogger().lifecycle("    {}", failure);
+            }
+            if (!failures.isEmpty()) {
+                failed.add(javaVersion);
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new GradleException("Compile tests failed on JDK " + failed + ". See the results in "
+                    + getResultsDirectory().get().getAsFile());
+        }
+    }
+
+    private File resultsFile(int javaVersion, int forkIndex) {
+        String name = getForks().get() == 1 ? "jdk-" + javaVersion : "jdk-" + javaVersion + "-fork-" + forkIndex;
+        return getResultsDirectory().file(name + ".properties").get().getAsFile();
+    }
+
+    private File durationsFile(int javaVersion) {
+        return getResultsDirectory().file("jdk-" + javaVersion + "-durations.properties").get().getAsFile();
+    }
+
+    /**
+     * Merges the durations each shard measured into the durations file, for the next run to balance its shards with.
+     */
+    private static void mergeDurations(File durationsFile, int shardCount) throws IOException {
+        Properties durations = new Properties();
+        if (durationsFile.exists()) {
+            try (InputStream in = Files.newInputStream(durationsFile.toPath())) {
+                durations.load(in);
+            }
+        }
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+            File shardFile = new File(durationsFile.getPath() + ".shard-" + shardIndex + "-of-" + shardCount);
+            if (shardFile.exists()) {
+                try (InputStream in = Files.newInputStream(shardFile.toPath())) {
+                    durations.load(in);
+                }
+                Files.delete(shardFile.toPath());
+            }
+        }
+        try (OutputStream out = Files.newOutputStream(durationsFile.toPath())) {
+            durations.store(out, null);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.transparent.diamond.matrix;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the tests of one JDK inside its worker process.
+ * <p>
+ * The tests get a class loader of their own, holding the test classpath and the
+ * {@link CompileTestLauncher}, so that they never see the classes Gradle itself runs on.
+ *
+ * @version %I
+ * @since 1.2.0
+ */
+public abstract class CompileTestWorkAction implements WorkAction<CompileTestWorkAction.Parameters> {
+    public interface Parameters extends WorkParameters {
+        ConfigurableFileCollection getTestClassesDirs();
+
+        ConfigurableFileCollection getTestClasspath();
+
+        RegularFileProperty getResultsFile();
+    }
+
+    @Override
+    public void execute() {
+        Parameters parameters = getParameters();
+        List<URL> urls = new ArrayList<>();
+        List<String> classesDirs = new ArrayList<>();
+        try {
+            urls.add(CompileTestLauncher.class.getProtectionDomain().getCodeSource().getLocation());
+            for (File file : parameters.getTestClassesDirs()) {
+                urls.add(file.toURI().toURL());
+                classesDirs.add(file.getAbsolutePath());
+            }
+            for (File file : parameters.getTestClasspath()) {
+                urls.add(file.toURI().toURL());
+            }
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        try (URLClassLoader classLoader = new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent())) {
+            thread.setContextClassLoader(classLoader);
+            classLoader.loadClass(CompileTestLauncher.class.getName())
+                    .getMethod("run", String[].class, String.class)
+                    .invoke(null, classesDirs.toArray(new String[0]), parameters.getResultsFile().get().getAsFile().getAbsolutePath());
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Could not run the tests", e.getCause());
+        } catch (ReflectiveOperationException | IOException e) {
+            throw new IllegalStateException("Could not run the tests", e);
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+}
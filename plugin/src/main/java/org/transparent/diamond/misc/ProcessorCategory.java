@@ -0,0 +1,22 @@
+package org.transparent.diamond.misc;
+
+/**
+ * Represents how Gradle may process an annotation processor incrementally.
+ *
+ * @version %I
+ * @since 1.2.0
+ */
+public enum ProcessorCategory {
+    /**
+     * Every generated file depends on a single annotated type, given as its only originating element.
+     */
+    ISOLATING,
+    /**
+     * The processor may combine several annotated types into one generated file.
+     */
+    AGGREGATING,
+    /**
+     * The processor names its category at runtime, through an option it supports.
+     */
+    DYNAMIC
+}
@@ -11,7 +11,7 @@ import java.lang.annotation.*;
  * @since 1.1.0
  */
 @Documented
-@Target(ElementType.FIELD)
+@Target({ElementType.FIELD, ElementType.METHOD})
 @Retention(RetentionPolicy.CLASS)
 public @interface Usage {
     /**
@@ -0,0 +1,129 @@
+package org.transparent.diamond;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs real builds that apply the plugin, to check that it works with the configuration cache
+ * and that compile tasks get the right exports.
+ */
+class DiamondPluginFunctionalTest {
+
+    @TempDir
+    Path projectDir;
+
+    @Test
+    void reusesConfigurationCacheAndPublishesSources() throws IOException {
+        write("settings.gradle", "rootProject.name = 'example'\n");
+        write("build.gradle", "plugins {\n"
+                + "    id 'org.transparent.diamond'\n"
+                + "}\n"
+                + "\n"
+                + "group = 'com.example'\n"
+                + "version = '1.0'\n"
+                + "\n"
+                + "diamond {\n"
+                + "    publishType = PublishType.ALL\n"
+                + "}\n");
+        write("src/main/java/com/example/Example.java", "package com.example;\n\npublic class Example {\n}\n");
+        File mavenLocal = projectDir.resolve("m2").toFile();
+
+        BuildResult first = build(mavenLocal);
+        assertTrue(first.getOutput().contains("Configuration cache entry stored"), first.getOutput());
+
+        BuildResult second = build(mavenLocal);
+        assertTrue(second.getOutput().contains("Reusing configuration cache"), second.getOutput());
+        assertEquals(TaskOutcome.SUCCESS, second.task(":publishToMavenLocal").getOutcome());
+
+        File published = new File(mavenLocal, "com/example/example/1.0");
+        assertTrue(new File(published, "example-1.0.jar").isFile(), "the jar is not published");
+        assertTrue(new File(published, "example-1.0-sources.jar").isFile(), "the sources jar is not published");
+    }
+
+    @Test
+    void compilesWithReleaseAndRerunsWhenCompatibilityChanges() throws IOException {
+        write("settings.gradle", "rootProject.name = 'example'\n");
+        write("build.gradle", "plugins {\n"
+                + "    id 'org.transparent.diamond'\n"
+                + "}\n"
+                + "\n"
+                + "java {\n"
+                + "    sourceCompatibility = JavaVersion.VERSION_11\n"
+                + "    targetCompatibility = JavaVersion.VERSION_11\n"
+                + "}\n"
+                + "\n"
+                + "diamond {\n"
+                + "    compatibility = !providers.gradleProperty('noCompatibility').isPresent()\n"
+                + "}\n"
+                + "\n"
+                + "def compileJava = tasks.named('compileJava') {\n"
+                + "    if (providers.gradleProperty('release').isPresent()) {\n"
+                + "        options.release = 11\n"
+                + "    }\n"
+                + "}\n"
+                + "tasks.register('printCompilerArgs') {\n"
+                + "    dependsOn compileJava\n"
+                + "    doLast {\n"
+                + "        println 'Compiler arguments: ' + compileJava.get().options.allCompilerArgs\n"
+                + "    }\n"
+                + "}\n");
+        write("src/main/java/com/example/Example.java", "package com.example;\n\npublic class Example {\n}\n");
+
+        BuildResult withRelease = compile("-Prelease");
+        assertEquals(TaskOutcome.SUCCESS, withRelease.task(":compileJava").getOutcome());
+        assertFalse(withRelease.getOutput().contains("--add-exports"), withRelease.getOutput());
+        assertEquals(TaskOutcome.UP_TO_DATE, compile("-Prelease").task(":compileJava").getOutcome());
+        // Nothing is exported with --release either way, but compatibility is still an input of the task.
+        assertEquals(TaskOutcome.SUCCESS, compile("-Prelease", "-PnoCompatibility").task(":compileJava").getOutcome(),
+                "turning compatibility off must compile again");
+
+        BuildResult withoutRelease = compile();
+        assertEquals(TaskOutcome.SUCCESS, withoutRelease.task(":compileJava").getOutcome());
+        assertTrue(withoutRelease.getOutput().contains("--add-exports, jdk.compiler/com.sun.tools.javac.tree=ALL-UNNAMED"),
+                withoutRelease.getOutput());
+        assertEquals(TaskOutcome.UP_TO_DATE, compile().task(":compileJava").getOutcome());
+
+        BuildResult withoutCompatibility = compile("-PnoCompatibility");
+        assertEquals(TaskOutcome.SUCCESS, withoutCompatibility.task(":compileJava").getOutcome(),
+                "turning compatibility off must compile again");
+        assertFalse(withoutCompatibility.getOutput().contains("--add-exports"), withoutCompatibility.getOutput());
+    }
+
+    private BuildResult compile(String... properties) {
+        String[] arguments = Arrays.copyOf(properties, properties.length + 1);
+        arguments[properties.length] = "printCompilerArgs";
+        return GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withPluginClasspath()
+                .withArguments(arguments)
+                .build();
+    }
+
+    private BuildResult build(File mavenLocal) {
+        return GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withPluginClasspath()
+                .withArguments("build", "publishToMavenLocal", "--configuration-cache",
+                        "-Dmaven.repo.local=" + mavenLocal.getAbsolutePath())
+                .build();
+    }
+
+    private void write(String path, String content) throws IOException {
+        Path file = projectDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,128 @@
+package org.transparent.diamond.incremental;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs real builds that register processors as incremental, to check the generated registration
+ * and every problem the registration is checked for.
+ */
+class IncrementalProcessorRegistrationFunctionalTest {
+
+    @TempDir
+    Path projectDir;
+
+    @Test
+    void generatesRegistration() throws IOException {
+        setUp("diamond {\n"
+                + "    incrementalProcessors = [\n"
+                + "            'com.example.ExampleProcessor': ProcessorCategory.ISOLATING,\n"
+                + "            'com.example.AllProcessor': ProcessorCategory.AGGREGATING\n"
+                + "    ]\n"
+                + "}\n");
+        write("src/main/resources/" + IncrementalProcessorRegistration.SERVICES,
+                "com.example.ExampleProcessor\ncom.example.AllProcessor # collects every example\n");
+
+        runner("processResources").build();
+        assertEquals("com.example.AllProcessor,AGGREGATING\ncom.example.ExampleProcessor,ISOLATING\n",
+                read("build/resources/main/" + IncrementalProcessorRegistration.REGISTRATION));
+    }
+
+    @Test
+    void warnsAboutUnregisteredService() throws IOException {
+        setUp("diamond.incrementalProcessors = ['com.example.ExampleProcessor': ProcessorCategory.ISOLATING]\n");
+        write("src/main/resources/" + IncrementalProcessorRegistration.SERVICES,
+                "com.example.ExampleProcessor\ncom.example.OtherProcessor\n");
+
+        BuildResult result = runner("processResources").build();
+        assertTrue(result.getOutput().contains("com.example.OtherProcessor is not registered as an incremental processor"),
+                result.getOutput());
+    }
+
+    @Test
+    void rejectsMalformedLine() throws IOException {
+        setUp("");
+        write("src/main/resources/" + IncrementalProcessorRegistration.REGISTRATION,
+                "com.example.ExampleProcessor,isolating\ncom.example.OtherProcessor\n");
+
+        assertProblem(":2: expected '<processor class>,<category>', but got 'com.example.OtherProcessor'");
+    }
+
+    @Test
+    void rejectsUnknownCategory() throws IOException {
+        setUp("");
+        write("src/main/resources/" + IncrementalProcessorRegistration.REGISTRATION, "com.example.ExampleProcessor,fast\n");
+
+        assertProblem(":1: unknown category 'fast', expected one of [ISOLATING, AGGREGATING, DYNAMIC]");
+    }
+
+    @Test
+    void rejectsDuplicate() throws IOException {
+        setUp("");
+        write("src/main/resources/" + IncrementalProcessorRegistration.REGISTRATION,
+                "com.example.ExampleProcessor,isolating\n\ncom.example.ExampleProcessor,aggregating\n");
+
+        assertProblem(":3: com.example.ExampleProcessor is registered more than once");
+    }
+
+    @Test
+    void rejectsRegistrationBothWays() throws IOException {
+        setUp("diamond.incrementalProcessors = ['com.example.ExampleProcessor': ProcessorCategory.ISOLATING]\n");
+        write("src/main/resources/" + IncrementalProcessorRegistration.REGISTRATION, "com.example.ExampleProcessor,isolating\n");
+
+        assertProblem("Processors are registered both in diamond.incrementalProcessors and in "
+                + IncrementalProcessorRegistration.REGISTRATION);
+    }
+
+    @Test
+    void rejectsProcessorMissingFromServices() throws IOException {
+        setUp("diamond.incrementalProcessors = ['com.example.ExampleProcessor': ProcessorCategory.ISOLATING]\n");
+        write("src/main/resources/" + IncrementalProcessorRegistration.SERVICES, "com.example.OtherProcessor\n");
+
+        assertProblem("com.example.ExampleProcessor is registered as incremental, but is not declared in "
+                + IncrementalProcessorRegistration.SERVICES);
+        assertFalse(Files.exists(projectDir.resolve("build/resources/main/" + IncrementalProcessorRegistration.REGISTRATION)));
+    }
+
+    private void assertProblem(String problem) {
+        BuildResult result = runner("processResources").buildAndFail();
+        assertTrue(result.getOutput().contains("Invalid incremental annotation processor registration"), result.getOutput());
+        assertTrue(result.getOutput().contains(problem), result.getOutput());
+    }
+
+    private void setUp(String configuration) throws IOException {
+        write("settings.gradle", "rootProject.name = 'example'\n");
+        write("build.gradle", "plugins {\n"
+                + "    id 'org.transparent.diamond'\n"
+                + "}\n"
+                + "\n"
+                + configuration);
+    }
+
+    private GradleRunner runner(String... arguments) {
+        return GradleRunner.create()
+                .withProjectDir(projectDir.toFile())
+                .withPluginClasspath()
+                .withArguments(arguments);
+    }
+
+    private String read(String path) throws IOException {
+        return new String(Files.readAllBytes(projectDir.resolve(path)), StandardCharsets.UTF_8);
+    }
+
+    private void write(String path, String content) throws IOException {
+        Path file = projectDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}